@@ -2,6 +2,8 @@ package io.demoapp.expensive;
 
 import android.app.Application;
 
+import io.demoapp.expensive.data.source.TasksRepository;
+
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -17,6 +19,20 @@ public class ExpensiveApplication extends Application {
         return mExecutorService;
     }
 
+    @Override
+    public void onTrimMemory(int level) {
+        super.onTrimMemory(level);
+        TasksRepository repository = Injection.provideTasksRepository(this);
+        if (level == TRIM_MEMORY_UI_HIDDEN) {
+            // The process may be killed at any point from here on, so don't hold back writes.
+            repository.flush();
+            // Persist the cache while it is still whole, so the next cold start can show it
+            // without waiting on SQLite.
+            mExecutorService.execute(repository::writeSnapshot);
+        }
+        repository.trimMemory(level);
+    }
+
     @Override
     public void onTerminate() {
         super.onTerminate();
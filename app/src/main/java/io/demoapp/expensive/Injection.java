@@ -16,17 +16,22 @@
 
 package io.demoapp.expensive;
 
+import android.app.ActivityManager;
 import android.app.Application;
 import android.content.Context;
 import android.support.annotation.NonNull;
 
 import io.demoapp.expensive.data.source.TasksDataSource;
 import io.demoapp.expensive.data.source.TasksRepository;
+import io.demoapp.expensive.data.source.TasksSnapshotStore;
 import io.demoapp.expensive.data.source.UsersDataSource;
 import io.demoapp.expensive.data.source.UsersRepository;
 import io.demoapp.expensive.data.source.local.TasksLocalDataSource;
 import io.demoapp.expensive.data.source.remote.TasksRemoteDataSource;
 
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
 import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
@@ -35,10 +40,56 @@ import static com.google.common.base.Preconditions.checkNotNull;
  */
 public class Injection {
 
-    public static TasksRepository provideTasksRepository(@NonNull Application application) {
+    /**
+     * How old cached tasks may be and still be shown while a refresh is in flight.
+     */
+    private static final long TASKS_MAX_STALENESS_MINUTES = 30;
+
+    /**
+     * Share of the app's heap limit that cached tasks may use.
+     */
+    private static final int TASKS_CACHE_HEAP_FRACTION = 16;
+
+    private static final String TASKS_SNAPSHOT_FILE_NAME = "tasks.snapshot";
+
+    private static TasksSnapshotStore sTasksSnapshotStore;
+
+    /**
+     * The repository instance that has been configured, so that it is only configured once
+     * rather than on every call, which would also undo any later change to its settings.
+     */
+    private static TasksRepository sConfiguredTasksRepository;
+
+    public static synchronized TasksRepository provideTasksRepository(
+            @NonNull Application application) {
         checkNotNull(application);
-        return TasksRepository.getInstance(TasksRemoteDataSource.getInstance(),
-                TasksLocalDataSource.getInstance(application));
+        TasksLocalDataSource localDataSource = TasksLocalDataSource.getInstance(application);
+        TasksRepository repository = TasksRepository.getInstance(
+                TasksRemoteDataSource.getInstance(), localDataSource, localDataSource);
+        if (repository != sConfiguredTasksRepository) {
+            repository.enableStaleWhileRevalidate(TASKS_MAX_STALENESS_MINUTES, TimeUnit.MINUTES);
+            repository.enableParallelTaskLookups();
+            repository.setCacheBudget(getTasksCacheBudgetBytes(application));
+            repository.setSnapshotStore(provideTasksSnapshotStore(application));
+            sConfiguredTasksRepository = repository;
+        }
+        return repository;
+    }
+
+    private static synchronized TasksSnapshotStore provideTasksSnapshotStore(
+            @NonNull Application application) {
+        if (sTasksSnapshotStore == null) {
+            sTasksSnapshotStore = new TasksSnapshotStore(
+                    new File(application.getFilesDir(), TASKS_SNAPSHOT_FILE_NAME));
+        }
+        return sTasksSnapshotStore;
+    }
+
+    private static long getTasksCacheBudgetBytes(@NonNull Application application) {
+        ActivityManager activityManager =
+                (ActivityManager) application.getSystemService(Context.ACTIVITY_SERVICE);
+        long heapLimitBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        return heapLimitBytes / TASKS_CACHE_HEAP_FRACTION;
     }
 
     public static UsersDataSource providerUsersDataSource(@NonNull Application application) {
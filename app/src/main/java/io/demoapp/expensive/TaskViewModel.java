@@ -24,9 +24,14 @@ import android.databinding.Observable;
 import android.databinding.ObservableField;
 import android.support.annotation.Nullable;
 
+import java.util.List;
+
 import io.demoapp.expensive.data.Task;
+import io.demoapp.expensive.data.source.TaskChange;
+import io.demoapp.expensive.data.source.TaskChangeListener;
 import io.demoapp.expensive.data.source.TasksDataSource;
 import io.demoapp.expensive.data.source.TasksRepository;
+import io.demoapp.expensive.data.source.TasksSubscription;
 import io.demoapp.expensive.util.ObservableViewModel;
 
 
@@ -48,6 +53,9 @@ public abstract class TaskViewModel extends ObservableViewModel
 
     private boolean mIsDataLoading;
 
+    @Nullable
+    private TasksSubscription mTaskSubscription;
+
     public TaskViewModel(Application application) {
         super(application);
         mTasksRepository = Injection.provideTasksRepository(application);
@@ -59,6 +67,7 @@ public abstract class TaskViewModel extends ObservableViewModel
                 Task task = mTaskObservable.get();
                 if (task != null) {
                     title.set(task.getTitle());
+                    // Tasks shown in the list may only have the start of their description.
                     description.set(task.getDescription());
                 } else {
                     title.set(getApplication().getString(R.string.no_data));
@@ -68,10 +77,64 @@ public abstract class TaskViewModel extends ObservableViewModel
         });
     }
 
+    /**
+     * Loads the task and keeps it up to date with changes made elsewhere in the app until the
+     * ViewModel is cleared.
+     */
     public void start(String taskId) {
         if (taskId != null) {
             mIsDataLoading = true;
-            mTasksRepository.getTask(taskId, this);
+            disposeTaskSubscription();
+            mTaskSubscription = mTasksRepository.observeTask(taskId, new TaskChangeListener() {
+                @Override
+                public void onSnapshot(List<Task> tasks) {
+                    if (tasks.isEmpty()) {
+                        TaskViewModel.this.onDataNotAvailable();
+                    } else {
+                        onTaskObserved(tasks.get(0));
+                    }
+                }
+
+                @Override
+                public void onChanges(List<TaskChange> changes) {
+                    // Changes are coalesced per task, so there is only one.
+                    Task task = changes.get(changes.size() - 1).task();
+                    if (task == null) {
+                        TaskViewModel.this.onDataNotAvailable();
+                    } else {
+                        onTaskObserved(task);
+                    }
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    TaskViewModel.this.onDataNotAvailable();
+                }
+            });
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        disposeTaskSubscription();
+    }
+
+    /**
+     * Shows a task delivered by the subscription. A copy that was loaded for the list only has
+     * the start of its description, so the whole task is loaded by id instead.
+     */
+    private void onTaskObserved(Task task) {
+        if (task.isDescriptionLoaded()) {
+            onTaskLoaded(task);
+        } else {
+            mTasksRepository.getTask(task.getId(), this);
+        }
+    }
+
+    private void disposeTaskSubscription() {
+        if (mTaskSubscription != null) {
+            mTaskSubscription.dispose();
+            mTaskSubscription = null;
         }
     }
 
@@ -90,9 +153,10 @@ public abstract class TaskViewModel extends ObservableViewModel
         if (mIsDataLoading) {
             return;
         }
-        Task task = mTaskObservable.get();
-        // Update the entity
-        task.setCompleted(completed);
+        Task current = mTaskObservable.get();
+        // Tasks are shared with the repository's cache, so update a copy rather than the entity
+        Task task = current.withCompleted(completed, current.getCompletedStamp());
+        mTaskObservable.set(task);
 
         // Notify repository and user
         if (completed) {
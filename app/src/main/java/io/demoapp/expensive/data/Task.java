@@ -24,8 +24,17 @@ import com.google.common.base.Strings;
 
 import java.util.UUID;
 
+import static com.google.common.base.Preconditions.checkState;
+
 /**
  * Immutable model class for a Task.
+ * <p>
+ * The title, description and completion state each carry the hybrid logical clock stamp of
+ * their last edit, so that concurrent edits made on different devices can be merged field by
+ * field. A stamp of 0 means the field has never been edited through a stamped write.
+ * <p>
+ * Tasks loaded for a list may carry only the start of their description, see
+ * {@link #isDescriptionLoaded()}.
  */
 public final class Task {
 
@@ -38,7 +47,17 @@ public final class Task {
     @Nullable
     private final String mDescription;
 
-    private boolean mCompleted;
+    private final boolean mCompleted;
+
+    private final long mVersion;
+
+    private final long mTitleStamp;
+
+    private final long mDescriptionStamp;
+
+    private final long mCompletedStamp;
+
+    private final boolean mDescriptionLoaded;
 
     /**
      * Use this constructor to create a new active Task.
@@ -84,10 +103,97 @@ public final class Task {
      */
     public Task(@Nullable String title, @Nullable String description,
                 @NonNull String id, boolean completed) {
+        this(title, description, id, completed, 0);
+    }
+
+    /**
+     * Use this constructor for a Task that carries the version assigned to it by the remote data
+     * source.
+     *
+     * @param title       title of the task
+     * @param description description of the task
+     * @param id          id of the task
+     * @param completed   true if the task is completed, false if it's active
+     * @param version     version of the task, 0 if it has never been synced
+     */
+    public Task(@Nullable String title, @Nullable String description,
+                @NonNull String id, boolean completed, long version) {
+        this(title, description, id, completed, version, 0, 0, 0);
+    }
+
+    /**
+     * Use this constructor for a Task whose fields carry the clock stamps of their last edits.
+     *
+     * @param title            title of the task
+     * @param description      description of the task
+     * @param id               id of the task
+     * @param completed        true if the task is completed, false if it's active
+     * @param version          version of the task, 0 if it has never been synced
+     * @param titleStamp       clock stamp of the last edit to the title
+     * @param descriptionStamp clock stamp of the last edit to the description
+     * @param completedStamp   clock stamp of the last change to the completion state
+     */
+    public Task(@Nullable String title, @Nullable String description,
+                @NonNull String id, boolean completed, long version,
+                long titleStamp, long descriptionStamp, long completedStamp) {
+        this(title, description, id, completed, version, titleStamp, descriptionStamp,
+                completedStamp, true);
+    }
+
+    /**
+     * Use this constructor for a Task that may carry only the start of its description.
+     *
+     * @param title             title of the task
+     * @param description       description of the task, or the start of it
+     * @param id                id of the task
+     * @param completed         true if the task is completed, false if it's active
+     * @param version           version of the task, 0 if it has never been synced
+     * @param titleStamp        clock stamp of the last edit to the title
+     * @param descriptionStamp  clock stamp of the last edit to the description
+     * @param completedStamp    clock stamp of the last change to the completion state
+     * @param descriptionLoaded true if {@code description} is the whole description
+     */
+    public Task(@Nullable String title, @Nullable String description,
+                @NonNull String id, boolean completed, long version,
+                long titleStamp, long descriptionStamp, long completedStamp,
+                boolean descriptionLoaded) {
         mId = id;
         mTitle = title;
         mDescription = description;
         mCompleted = completed;
+        mVersion = version;
+        mTitleStamp = titleStamp;
+        mDescriptionStamp = descriptionStamp;
+        mCompletedStamp = completedStamp;
+        mDescriptionLoaded = descriptionLoaded;
+    }
+
+    /**
+     * Returns a copy of this task with its completion state changed at {@code completedStamp}.
+     */
+    @NonNull
+    public Task withCompleted(boolean completed, long completedStamp) {
+        return new Task(mTitle, mDescription, mId, completed, mVersion,
+                mTitleStamp, mDescriptionStamp, completedStamp, mDescriptionLoaded);
+    }
+
+    /**
+     * Returns a copy of this task at {@code version}.
+     */
+    @NonNull
+    public Task withVersion(long version) {
+        return new Task(mTitle, mDescription, mId, mCompleted, version,
+                mTitleStamp, mDescriptionStamp, mCompletedStamp, mDescriptionLoaded);
+    }
+
+    /**
+     * Returns a copy of this task carrying the whole of its description, which was last edited
+     * at {@code descriptionStamp}.
+     */
+    @NonNull
+    public Task withDescription(@Nullable String description, long descriptionStamp) {
+        return new Task(mTitle, description, mId, mCompleted, mVersion,
+                mTitleStamp, descriptionStamp, mCompletedStamp, true);
     }
 
     @NonNull
@@ -109,17 +215,57 @@ public final class Task {
         }
     }
 
+    /**
+     * Returns the description of this task if it is loaded, or else the start of it. See
+     * {@link #isDescriptionLoaded()}.
+     */
     @Nullable
     public String getDescription() {
         return mDescription;
     }
 
+    /**
+     * Returns the whole description of this task, for code that must never mistake the start of
+     * it for all of it, such as writes to storage. Only valid if {@link #isDescriptionLoaded()}.
+     *
+     * @throws IllegalStateException if this task only carries the start of its description
+     */
+    @Nullable
+    public String getFullDescription() {
+        checkState(mDescriptionLoaded, "Description of task %s not loaded", mId);
+        return mDescription;
+    }
+
+    /**
+     * Returns false if this task was loaded for a list and carries only the start of its
+     * description. Load the task by id to get the whole of it.
+     */
+    public boolean isDescriptionLoaded() {
+        return mDescriptionLoaded;
+    }
+
     public boolean isCompleted() {
         return mCompleted;
     }
 
-    public void setCompleted(boolean completed) {
-        mCompleted = completed;
+    /**
+     * Returns the version the remote data source assigned to this task when it was last written,
+     * or 0 if it has never been synced. Versions increase with every write to any task.
+     */
+    public long getVersion() {
+        return mVersion;
+    }
+
+    public long getTitleStamp() {
+        return mTitleStamp;
+    }
+
+    public long getDescriptionStamp() {
+        return mDescriptionStamp;
+    }
+
+    public long getCompletedStamp() {
+        return mCompletedStamp;
     }
 
     public boolean isActive() {
@@ -138,12 +284,13 @@ public final class Task {
         Task task = (Task) o;
         return Objects.equal(mId, task.mId) &&
                Objects.equal(mTitle, task.mTitle) &&
-               Objects.equal(mDescription, task.mDescription);
+               Objects.equal(mDescription, task.mDescription) &&
+               mDescriptionLoaded == task.mDescriptionLoaded;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(mId, mTitle, mDescription);
+        return Objects.hashCode(mId, mTitle, mDescription, mDescriptionLoaded);
     }
 
     @Override
@@ -0,0 +1,78 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.VisibleForTesting;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Issues hybrid logical clock stamps for task edits.
+ * <p>
+ * A stamp packs the wall clock time in milliseconds into its upper 48 bits and a logical counter
+ * into the lower 16. Stamps issued by one clock always increase, even if the wall clock goes
+ * backwards, and stay close to wall clock time so that, across devices, a later edit usually
+ * carries a larger stamp. Every stamp received from elsewhere is passed to {@link #update(long)},
+ * which guarantees that the next local edit is ordered after every edit it could have seen.
+ * <p>
+ * The clock is not persisted. Stamps read back from local storage must be passed to
+ * {@link #update(long)} as well before the next edit, or a wall clock that is now behind them
+ * would stamp new edits as older than what is stored.
+ */
+public final class HybridLogicalClock {
+
+    private static final int LOGICAL_BITS = 16;
+
+    private static HybridLogicalClock INSTANCE;
+
+    /**
+     * Source of wall clock time, replaced in tests.
+     */
+    interface WallClock {
+
+        long currentTimeMillis();
+    }
+
+    private final WallClock mWallClock;
+
+    /**
+     * The largest stamp issued or observed so far. Guarded by this.
+     */
+    private long mLast = 0;
+
+    public static synchronized HybridLogicalClock getInstance() {
+        if (INSTANCE == null) {
+            INSTANCE = new HybridLogicalClock(new WallClock() {
+                @Override
+                public long currentTimeMillis() {
+                    return System.currentTimeMillis();
+                }
+            });
+        }
+        return INSTANCE;
+    }
+
+    @VisibleForTesting
+    HybridLogicalClock(@NonNull WallClock wallClock) {
+        mWallClock = checkNotNull(wallClock);
+    }
+
+    /**
+     * Returns a new stamp, larger than any issued or observed before.
+     */
+    public synchronized long now() {
+        long wall = mWallClock.currentTimeMillis() << LOGICAL_BITS;
+        // Once the counter overflows it carries into the millis, which is harmless: the stamp is
+        // still unique and only runs ahead of the wall clock until it catches up.
+        mLast = wall > mLast ? wall : mLast + 1;
+        return mLast;
+    }
+
+    /**
+     * Records a stamp received from another device.
+     */
+    public synchronized void update(long stamp) {
+        if (stamp > mLast) {
+            mLast = stamp;
+        }
+    }
+}
@@ -0,0 +1,130 @@
+package io.demoapp.expensive.data.source;
+
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.BloomFilter;
+import com.google.common.hash.Funnels;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Remembers task ids that are known not to exist, so that {@link TasksRepository#getTask} can
+ * fail immediately instead of querying SQLite and then waiting on the network.
+ * <p>
+ * Two tiers are consulted:
+ * <ul>
+ * <li>A Bloom filter of every id seen in the last full load that included the remote data
+ * source. An id the filter has never seen cannot exist, as long as nothing has been created
+ * since; every save is added to the filter to keep that true. The filter is dropped when a
+ * refresh is requested and rebuilt by the next such load. Loads from SQLite alone only add to
+ * it, since SQLite may lack tasks that exist only on the remote.</li>
+ * <li>A negative cache of ids that both data sources recently failed to find, or that were
+ * deleted. Entries expire after a fixed TTL and are cleared when the task is saved.</li>
+ * </ul>
+ */
+final class MissingTaskFilter {
+
+    private static final double FALSE_POSITIVE_PROBABILITY = 0.01;
+
+    /**
+     * Lower bound on the filter's expected insertions, so that tasks created after a load of a
+     * small list don't quickly push up its false positive rate.
+     */
+    private static final int MIN_EXPECTED_IDS = 1024;
+
+    private final long mTtlMillis;
+
+    private final Object mFilterLock = new Object();
+
+    /**
+     * Ids seen in the last full load, or null if there is no up-to-date set of known ids.
+     * Guarded by {@link #mFilterLock}.
+     */
+    @Nullable
+    private BloomFilter<CharSequence> mKnownIds;
+
+    /**
+     * Expiry time, in {@link SystemClock#elapsedRealtime()} millis, of each negative entry.
+     */
+    private final Map<String, Long> mMissingIds = new ConcurrentHashMap<>();
+
+    MissingTaskFilter(long ttlMillis) {
+        mTtlMillis = ttlMillis;
+    }
+
+    /**
+     * Returns true if {@code taskId} definitely does not exist in any data source.
+     */
+    boolean isKnownMissing(@NonNull String taskId) {
+        checkNotNull(taskId);
+        Long expiresAt = mMissingIds.get(taskId);
+        if (expiresAt != null) {
+            if (SystemClock.elapsedRealtime() < expiresAt) {
+                return true;
+            }
+            mMissingIds.remove(taskId, expiresAt);
+        }
+        synchronized (mFilterLock) {
+            return mKnownIds != null && !mKnownIds.mightContain(taskId);
+        }
+    }
+
+    /**
+     * Rebuilds the set of known ids from a full load that included the remote data source and
+     * forgets every negative entry, since the load is newer than any of them.
+     */
+    void rebuild(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+        BloomFilter<CharSequence> knownIds = BloomFilter.create(
+                Funnels.stringFunnel(Charsets.UTF_8),
+                Math.max(MIN_EXPECTED_IDS, tasks.size() * 2),
+                FALSE_POSITIVE_PROBABILITY);
+        for (Task task : tasks) {
+            knownIds.put(task.getId());
+        }
+        synchronized (mFilterLock) {
+            mKnownIds = knownIds;
+        }
+        mMissingIds.clear();
+    }
+
+    /**
+     * Stops trusting the known ids until the next {@link #rebuild}, e.g. because the remote
+     * data may have gained tasks.
+     */
+    void invalidateKnownIds() {
+        synchronized (mFilterLock) {
+            mKnownIds = null;
+        }
+    }
+
+    /**
+     * Records that {@code taskId} exists, clearing it from both tiers.
+     */
+    void recordPresent(@NonNull String taskId) {
+        checkNotNull(taskId);
+        synchronized (mFilterLock) {
+            if (mKnownIds != null) {
+                mKnownIds.put(taskId);
+            }
+        }
+        mMissingIds.remove(taskId);
+    }
+
+    /**
+     * Records that {@code taskId} could not be found or has been deleted.
+     */
+    void recordMissing(@NonNull String taskId) {
+        checkNotNull(taskId);
+        mMissingIds.put(taskId, SystemClock.elapsedRealtime() + mTtlMillis);
+    }
+}
@@ -0,0 +1,280 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import static com.google.common.base.Preconditions.checkElementIndex;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * An immutable sorted map that shares structure between versions, used for the snapshots of
+ * {@link TasksCache}.
+ * <p>
+ * The map is a treap: a binary search tree on the keys that is also a heap on a priority taken
+ * from a hash of each key, which keeps it balanced in expectation whatever order the keys
+ * arrive in. {@link #put} and {@link #remove} copy only the O(log n) nodes on the path to the
+ * changed key and return a new map; every other node is shared with the old one, which stays
+ * valid and unchanged. Lookups are O(log n) and {@link #size()} is O(1).
+ */
+final class PersistentSortedMap<K extends Comparable<? super K>, V> {
+
+    private static final PersistentSortedMap<?, ?> EMPTY = new PersistentSortedMap<>(null);
+
+    @Nullable
+    private final Node<K, V> mRoot;
+
+    private PersistentSortedMap(@Nullable Node<K, V> root) {
+        mRoot = root;
+    }
+
+    @SuppressWarnings("unchecked")
+    @NonNull
+    static <K extends Comparable<? super K>, V> PersistentSortedMap<K, V> empty() {
+        return (PersistentSortedMap<K, V>) EMPTY;
+    }
+
+    int size() {
+        return size(mRoot);
+    }
+
+    boolean isEmpty() {
+        return mRoot == null;
+    }
+
+    @Nullable
+    V get(@NonNull K key) {
+        checkNotNull(key);
+        Node<K, V> node = mRoot;
+        while (node != null) {
+            int c = key.compareTo(node.key);
+            if (c == 0) {
+                return node.value;
+            }
+            node = c < 0 ? node.left : node.right;
+        }
+        return null;
+    }
+
+    /**
+     * Returns a map with {@code key} mapped to {@code value}, replacing any previous value.
+     */
+    @NonNull
+    PersistentSortedMap<K, V> put(@NonNull K key, @NonNull V value) {
+        checkNotNull(key);
+        checkNotNull(value);
+        return new PersistentSortedMap<>(put(mRoot, key, value, priorityOf(key)));
+    }
+
+    /**
+     * Returns a map without {@code key}, or this map if it has no such key.
+     */
+    @NonNull
+    PersistentSortedMap<K, V> remove(@NonNull K key) {
+        checkNotNull(key);
+        Node<K, V> root = remove(mRoot, key);
+        return root == mRoot ? this : new PersistentSortedMap<>(root);
+    }
+
+    /**
+     * Returns the values in key order, as an immutable view of this map. Creating the view is
+     * O(1); {@link List#get(int)} is O(log n) and iterating is O(1) per value.
+     */
+    @NonNull
+    List<V> values() {
+        return new Values<>(mRoot);
+    }
+
+    private static int size(@Nullable Node<?, ?> node) {
+        return node == null ? 0 : node.size;
+    }
+
+    /**
+     * Spreads the key's hash code so that keys that hash to neighbouring values, such as
+     * increasing {@code Long}s, still get unrelated priorities.
+     */
+    private static int priorityOf(@NonNull Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    @NonNull
+    private static <K extends Comparable<? super K>, V> Node<K, V> put(
+            @Nullable Node<K, V> node, @NonNull K key, @NonNull V value, int priority) {
+        if (node == null) {
+            return new Node<>(key, value, priority, null, null);
+        }
+        int c = key.compareTo(node.key);
+        if (c == 0) {
+            return new Node<>(key, value, node.priority, node.left, node.right);
+        }
+        if (c < 0) {
+            Node<K, V> left = put(node.left, key, value, priority);
+            if (left.priority > node.priority) {
+                // Rotate right.
+                return new Node<>(left.key, left.value, left.priority, left.left,
+                        new Node<>(node.key, node.value, node.priority, left.right, node.right));
+            }
+            return new Node<>(node.key, node.value, node.priority, left, node.right);
+        }
+        Node<K, V> right = put(node.right, key, value, priority);
+        if (right.priority > node.priority) {
+            // Rotate left.
+            return new Node<>(right.key, right.value, right.priority,
+                    new Node<>(node.key, node.value, node.priority, node.left, right.left),
+                    right.right);
+        }
+        return new Node<>(node.key, node.value, node.priority, node.left, right);
+    }
+
+    @Nullable
+    private static <K extends Comparable<? super K>, V> Node<K, V> remove(
+            @Nullable Node<K, V> node, @NonNull K key) {
+        if (node == null) {
+            return null;
+        }
+        int c = key.compareTo(node.key);
+        if (c == 0) {
+            return merge(node.left, node.right);
+        }
+        if (c < 0) {
+            Node<K, V> left = remove(node.left, key);
+            return left == node.left
+                    ? node
+                    : new Node<>(node.key, node.value, node.priority, left, node.right);
+        }
+        Node<K, V> right = remove(node.right, key);
+        return right == node.right
+                ? node
+                : new Node<>(node.key, node.value, node.priority, node.left, right);
+    }
+
+    /**
+     * Joins two treaps where every key in {@code a} is smaller than every key in {@code b}.
+     */
+    @Nullable
+    private static <K, V> Node<K, V> merge(@Nullable Node<K, V> a, @Nullable Node<K, V> b) {
+        if (a == null) {
+            return b;
+        }
+        if (b == null) {
+            return a;
+        }
+        if (a.priority > b.priority) {
+            return new Node<>(a.key, a.value, a.priority, a.left, merge(a.right, b));
+        }
+        return new Node<>(b.key, b.value, b.priority, merge(a, b.left), b.right);
+    }
+
+    private static final class Node<K, V> {
+
+        final K key;
+
+        final V value;
+
+        final int priority;
+
+        @Nullable
+        final Node<K, V> left;
+
+        @Nullable
+        final Node<K, V> right;
+
+        final int size;
+
+        Node(K key, V value, int priority,
+             @Nullable Node<K, V> left, @Nullable Node<K, V> right) {
+            this.key = key;
+            this.value = value;
+            this.priority = priority;
+            this.left = left;
+            this.right = right;
+            this.size = 1 + size(left) + size(right);
+        }
+    }
+
+    private static final class Values<V> extends AbstractList<V> {
+
+        @Nullable
+        private final Node<?, V> mRoot;
+
+        Values(@Nullable Node<?, V> root) {
+            mRoot = root;
+        }
+
+        @Override
+        public V get(int index) {
+            checkElementIndex(index, size());
+            Node<?, V> node = mRoot;
+            while (true) {
+                int leftSize = PersistentSortedMap.size(node.left);
+                if (index < leftSize) {
+                    node = node.left;
+                } else if (index == leftSize) {
+                    return node.value;
+                } else {
+                    index -= leftSize + 1;
+                    node = node.right;
+                }
+            }
+        }
+
+        @Override
+        public int size() {
+            return PersistentSortedMap.size(mRoot);
+        }
+
+        @NonNull
+        @Override
+        public Iterator<V> iterator() {
+            return new Iterator<V>() {
+                /**
+                 * The nodes whose value and right subtree are still to come, next one on top.
+                 */
+                private final Deque<Node<?, V>> mPath = new ArrayDeque<>();
+
+                {
+                    pushLeftmostPath(mRoot);
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return !mPath.isEmpty();
+                }
+
+                @Override
+                public V next() {
+                    if (mPath.isEmpty()) {
+                        throw new NoSuchElementException();
+                    }
+                    Node<?, V> node = mPath.pop();
+                    pushLeftmostPath(node.right);
+                    return node.value;
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                private void pushLeftmostPath(@Nullable Node<?, V> node) {
+                    while (node != null) {
+                        mPath.push(node);
+                        node = node.left;
+                    }
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package io.demoapp.expensive.data.source;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Point-in-time statistics for the in-memory task cache of {@link TasksRepository}. Hits and
+ * misses count single task lookups; evictions count tasks dropped to stay within the budget.
+ */
+@AutoValue
+public abstract class TaskCacheStats {
+
+    public abstract long hitCount();
+
+    public abstract long missCount();
+
+    public abstract long evictionCount();
+
+    public abstract int entryCount();
+
+    public abstract long sizeBytes();
+
+    public abstract long maxSizeBytes();
+
+    static TaskCacheStats create(
+            long hitCount,
+            long missCount,
+            long evictionCount,
+            int entryCount,
+            long sizeBytes,
+            long maxSizeBytes) {
+        return new AutoValue_TaskCacheStats(
+                hitCount,
+                missCount,
+                evictionCount,
+                entryCount,
+                sizeBytes,
+                maxSizeBytes);
+    }
+}
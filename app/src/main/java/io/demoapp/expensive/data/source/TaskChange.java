@@ -0,0 +1,49 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.auto.value.AutoValue;
+
+import io.demoapp.expensive.data.Task;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A single change to the tasks held by the {@link TasksRepository}, as delivered to a
+ * {@link TaskChangeListener}.
+ * <p>
+ * Changes are best applied idempotently: an insert or update replaces any task with the same
+ * id, and a delete of an unknown id is ignored.
+ */
+@AutoValue
+public abstract class TaskChange {
+
+    public enum Type {
+        INSERT,
+        UPDATE,
+        DELETE
+    }
+
+    public abstract Type type();
+
+    public abstract String taskId();
+
+    /**
+     * The task after the change, or null for {@link Type#DELETE}.
+     */
+    @Nullable
+    public abstract Task task();
+
+    public static TaskChange insert(@NonNull Task task) {
+        return new AutoValue_TaskChange(Type.INSERT, task.getId(), checkNotNull(task));
+    }
+
+    public static TaskChange update(@NonNull Task task) {
+        return new AutoValue_TaskChange(Type.UPDATE, task.getId(), checkNotNull(task));
+    }
+
+    public static TaskChange delete(@NonNull String taskId) {
+        return new AutoValue_TaskChange(Type.DELETE, checkNotNull(taskId), null);
+    }
+}
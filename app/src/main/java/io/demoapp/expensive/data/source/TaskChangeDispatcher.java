@@ -0,0 +1,319 @@
+package io.demoapp.expensive.data.source;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Fans task changes out from the {@link TasksRepository} to its {@link TaskChangeListener}s.
+ * <p>
+ * Each subscription keeps its own queue of pending changes, coalesced per task id, and drains it
+ * on the main thread at most once per message loop turn. A subscriber that falls more than
+ * {@link #MAX_PENDING_CHANGES} ids behind has its queue dropped and is sent a fresh snapshot
+ * instead, so a slow main thread never makes the queue grow without bound.
+ * <p>
+ * A new subscription asks {@code tasksSource} for its initial snapshot, unless it only wants
+ * changes. Changes made while that load is in flight are held back and delivered after the
+ * snapshot; since they are applied idempotently it does not matter whether the snapshot already
+ * reflects them.
+ */
+final class TaskChangeDispatcher {
+
+    static final int MAX_PENDING_CHANGES = 256;
+
+    private final TasksDataSource mTasksSource;
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final List<Subscription> mSubscriptions = new CopyOnWriteArrayList<>();
+
+    TaskChangeDispatcher(@NonNull TasksDataSource tasksSource) {
+        mTasksSource = checkNotNull(tasksSource);
+    }
+
+    /**
+     * Registers {@code listener} for every task, or only for {@code taskId} if it is not null.
+     */
+    @NonNull
+    TasksSubscription subscribe(@Nullable String taskId, @NonNull TaskChangeListener listener) {
+        Subscription subscription = new Subscription(taskId, checkNotNull(listener));
+        mSubscriptions.add(subscription);
+        subscription.requestSnapshot();
+        return subscription;
+    }
+
+    /**
+     * Registers {@code listener} for every task without requesting an initial snapshot. Later
+     * snapshots, e.g. after {@link #invalidate()}, are still delivered.
+     */
+    @NonNull
+    TasksSubscription subscribeToChanges(@NonNull TaskChangeListener listener) {
+        Subscription subscription = new Subscription(null, checkNotNull(listener));
+        subscription.skipInitialSnapshot();
+        mSubscriptions.add(subscription);
+        return subscription;
+    }
+
+    boolean hasSubscribers() {
+        return !mSubscriptions.isEmpty();
+    }
+
+    void dispatch(@NonNull TaskChange change) {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.enqueue(change);
+        }
+    }
+
+    void dispatchAll(@NonNull Collection<TaskChange> changes) {
+        for (Subscription subscription : mSubscriptions) {
+            for (TaskChange change : changes) {
+                subscription.enqueue(change);
+            }
+        }
+    }
+
+    /**
+     * Sends every subscriber {@code tasks} as a new snapshot, replacing anything still queued.
+     * Used when the repository reloads all of its tasks.
+     */
+    void dispatchSnapshot(@NonNull List<Task> tasks) {
+        checkNotNull(tasks);
+        for (Subscription subscription : mSubscriptions) {
+            subscription.replaceWithSnapshot(tasks);
+        }
+    }
+
+    /**
+     * Makes every subscriber reload its snapshot, for changes that can't be described task by
+     * task, e.g. because the affected tasks are not cached.
+     */
+    void invalidate() {
+        for (Subscription subscription : mSubscriptions) {
+            subscription.requestSnapshot();
+        }
+    }
+
+    private final class Subscription implements TasksSubscription, Runnable {
+
+        @Nullable
+        private final String mTaskId;
+
+        private final TaskChangeListener mListener;
+
+        private volatile boolean mDisposed = false;
+
+        // The fields below are guarded by this.
+
+        private final Map<String, TaskChange> mPending = new LinkedHashMap<>();
+
+        /**
+         * Identifies the most recent snapshot request, so that an older load that completes late
+         * cannot overwrite a newer snapshot.
+         */
+        private int mGeneration = 0;
+
+        private boolean mAwaitingSnapshot = true;
+
+        @Nullable
+        private List<Task> mSnapshot;
+
+        private boolean mSnapshotNotAvailable = false;
+
+        private boolean mDrainScheduled = false;
+
+        Subscription(@Nullable String taskId, @NonNull TaskChangeListener listener) {
+            mTaskId = taskId;
+            mListener = listener;
+        }
+
+        @Override
+        public void dispose() {
+            mDisposed = true;
+            mSubscriptions.remove(this);
+            mMainHandler.removeCallbacks(this);
+        }
+
+        @Override
+        public boolean isDisposed() {
+            return mDisposed;
+        }
+
+        synchronized void skipInitialSnapshot() {
+            mAwaitingSnapshot = false;
+        }
+
+        void requestSnapshot() {
+            final int generation;
+            synchronized (this) {
+                generation = ++mGeneration;
+                mAwaitingSnapshot = true;
+                mPending.clear();
+            }
+            if (mTaskId != null) {
+                mTasksSource.getTask(mTaskId, new TasksDataSource.GetTaskCallback() {
+                    @Override
+                    public void onTaskLoaded(Task task) {
+                        offerSnapshot(generation, ImmutableList.of(task), false);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        offerSnapshot(generation, ImmutableList.<Task>of(), false);
+                    }
+                });
+            } else {
+                mTasksSource.getTasks(new TasksDataSource.LoadTasksCallback() {
+                    @Override
+                    public void onTasksLoaded(List<Task> tasks) {
+                        offerSnapshot(generation, tasks, false);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        offerSnapshot(generation, ImmutableList.<Task>of(), true);
+                    }
+                });
+            }
+        }
+
+        void replaceWithSnapshot(@NonNull List<Task> tasks) {
+            synchronized (this) {
+                mPending.clear();
+                offerSnapshot(++mGeneration, filter(tasks), false);
+            }
+        }
+
+        void enqueue(@NonNull TaskChange change) {
+            if (mTaskId != null && !mTaskId.equals(change.taskId())) {
+                return;
+            }
+            boolean overflow;
+            synchronized (this) {
+                TaskChange previous = mPending.get(change.taskId());
+                overflow = previous == null && mPending.size() >= MAX_PENDING_CHANGES;
+                if (!overflow) {
+                    TaskChange coalesced = coalesce(previous, change);
+                    if (coalesced == null) {
+                        mPending.remove(change.taskId());
+                    } else {
+                        mPending.put(change.taskId(), coalesced);
+                    }
+                    if (!mAwaitingSnapshot) {
+                        scheduleDrain();
+                    }
+                }
+            }
+            if (overflow) {
+                requestSnapshot();
+            }
+        }
+
+        /**
+         * Delivers whatever is queued. Runs on the main thread.
+         */
+        @Override
+        public void run() {
+            List<Task> snapshot;
+            boolean snapshotNotAvailable;
+            List<TaskChange> changes;
+            synchronized (this) {
+                mDrainScheduled = false;
+                if (mAwaitingSnapshot) {
+                    return;
+                }
+                snapshot = mSnapshot;
+                snapshotNotAvailable = mSnapshotNotAvailable;
+                changes = ImmutableList.copyOf(mPending.values());
+                mSnapshot = null;
+                mSnapshotNotAvailable = false;
+                mPending.clear();
+            }
+            if (mDisposed) {
+                return;
+            }
+            if (snapshotNotAvailable) {
+                mListener.onDataNotAvailable();
+            } else if (snapshot != null) {
+                mListener.onSnapshot(snapshot);
+            }
+            if (!changes.isEmpty()) {
+                mListener.onChanges(changes);
+            }
+        }
+
+        private synchronized void offerSnapshot(int generation, @NonNull List<Task> tasks,
+                                                boolean notAvailable) {
+            if (generation != mGeneration) {
+                return;
+            }
+            mAwaitingSnapshot = false;
+            mSnapshot = tasks;
+            mSnapshotNotAvailable = notAvailable;
+            scheduleDrain();
+        }
+
+        private void scheduleDrain() {
+            if (!mDrainScheduled && !mDisposed) {
+                mDrainScheduled = true;
+                mMainHandler.post(this);
+            }
+        }
+
+        @NonNull
+        private List<Task> filter(@NonNull List<Task> tasks) {
+            if (mTaskId == null) {
+                return tasks;
+            }
+            for (Task task : tasks) {
+                if (mTaskId.equals(task.getId())) {
+                    return ImmutableList.of(task);
+                }
+            }
+            return ImmutableList.of();
+        }
+
+        /**
+         * Folds {@code next} into the change already queued for the same id. Returns null if the
+         * two cancel out.
+         */
+        @Nullable
+        private TaskChange coalesce(@Nullable TaskChange previous, @NonNull TaskChange next) {
+            if (previous == null) {
+                return next;
+            }
+            switch (previous.type()) {
+                case INSERT:
+                    if (next.type() == TaskChange.Type.DELETE) {
+                        // The listener never saw the task, unless the snapshot it is still
+                        // waiting for picked it up; deliver the delete to be safe.
+                        return mAwaitingSnapshot ? next : null;
+                    }
+                    return TaskChange.insert(next.task());
+                case DELETE:
+                    if (next.type() == TaskChange.Type.DELETE) {
+                        return next;
+                    }
+                    // The listener still has the old task, so this replaces it.
+                    return TaskChange.update(next.task());
+                case UPDATE:
+                default:
+                    return next.type() == TaskChange.Type.INSERT
+                            ? TaskChange.update(next.task())
+                            : next;
+            }
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.MainThread;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.List;
+
+/**
+ * Receives the tasks held by the {@link TasksRepository} and every later change to them. See
+ * {@link TasksRepository#observeTasks(TaskChangeListener)}.
+ * <p>
+ * All methods are called on the main thread.
+ */
+public interface TaskChangeListener {
+
+    /**
+     * Replaces everything the listener knows with {@code tasks}. This is always the first call
+     * and is repeated whenever the repository reloads its tasks, or when too many changes have
+     * queued up to be worth delivering one by one.
+     */
+    @MainThread
+    void onSnapshot(List<Task> tasks);
+
+    /**
+     * Delivers the changes made since the last call, coalesced so that there is at most one
+     * change per task id, in the order the ids were first changed.
+     */
+    @MainThread
+    void onChanges(List<TaskChange> changes);
+
+    /**
+     * The initial snapshot could not be loaded. Changes are still delivered afterwards, as if
+     * the snapshot had been empty.
+     */
+    @MainThread
+    void onDataNotAvailable();
+}
@@ -0,0 +1,22 @@
+package io.demoapp.expensive.data.source;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Number of active and completed tasks.
+ */
+@AutoValue
+public abstract class TaskCounts {
+
+    public abstract int active();
+
+    public abstract int completed();
+
+    public int total() {
+        return active() + completed();
+    }
+
+    public static TaskCounts create(int active, int completed) {
+        return new AutoValue_TaskCounts(active, completed);
+    }
+}
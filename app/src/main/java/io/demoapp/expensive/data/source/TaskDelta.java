@@ -0,0 +1,62 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The tasks written and deleted since a sync token, as returned by
+ * {@link TasksDataSource#getTaskDelta(long, TasksDataSource.GetTaskDeltaCallback)}.
+ */
+@AutoValue
+public abstract class TaskDelta {
+
+    /**
+     * Sync token of a delta that didn't come from the remote data source, such as a rollback.
+     * Applying it leaves the stored token where it is.
+     */
+    public static final long NO_SYNC_TOKEN = -1;
+
+    /**
+     * Tasks created or updated since the requested token, or every task for a full snapshot.
+     */
+    public abstract List<Task> changed();
+
+    /**
+     * Ids of the tasks deleted since the requested token. Always empty for a full snapshot.
+     */
+    public abstract List<String> deletedIds();
+
+    /**
+     * True if {@link #changed()} holds every task, so any other task held locally is gone.
+     */
+    public abstract boolean isFullSnapshot();
+
+    /**
+     * Token to pass to the next request, covering every change included here, or
+     * {@link #NO_SYNC_TOKEN}.
+     */
+    public abstract long syncToken();
+
+    public boolean isEmpty() {
+        return !isFullSnapshot() && changed().isEmpty() && deletedIds().isEmpty();
+    }
+
+    public static TaskDelta create(@NonNull Collection<Task> changed,
+                                   @NonNull Collection<String> deletedIds,
+                                   long syncToken) {
+        return new AutoValue_TaskDelta(ImmutableList.copyOf(changed),
+                ImmutableList.copyOf(deletedIds), false, syncToken);
+    }
+
+    public static TaskDelta createFullSnapshot(@NonNull Collection<Task> tasks, long syncToken) {
+        return new AutoValue_TaskDelta(ImmutableList.copyOf(tasks),
+                ImmutableList.<String>of(), true, syncToken);
+    }
+}
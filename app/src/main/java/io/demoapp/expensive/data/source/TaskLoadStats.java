@@ -0,0 +1,32 @@
+package io.demoapp.expensive.data.source;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Counters describing how {@link TasksRepository} has served full task list loads since it was
+ * created. A coalesced load is a caller that joined a load which was already in flight rather
+ * than starting its own.
+ */
+@AutoValue
+public abstract class TaskLoadStats {
+
+    public abstract int localLoads();
+
+    public abstract int coalescedLocalLoads();
+
+    public abstract int remoteLoads();
+
+    public abstract int coalescedRemoteLoads();
+
+    static TaskLoadStats create(
+            int localLoads,
+            int coalescedLocalLoads,
+            int remoteLoads,
+            int coalescedRemoteLoads) {
+        return new AutoValue_TaskLoadStats(
+                localLoads,
+                coalescedLocalLoads,
+                remoteLoads,
+                coalescedRemoteLoads);
+    }
+}
@@ -0,0 +1,73 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import io.demoapp.expensive.data.Task;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Merges two copies of the same task field by field, keeping for each field the value with the
+ * larger {@link HybridLogicalClock} stamp. Equal stamps are broken by comparing the values, so
+ * the result does not depend on which copy is local. A copy that carries only the start of its
+ * description loses such a tie to one that carries all of it.
+ * <p>
+ * The merge is commutative, associative and idempotent, so every device that has seen the same
+ * set of edits ends up with the same task, whatever order the edits arrived in. It only looks at
+ * the two tasks, so merging a sync is O(1) per task.
+ */
+public final class TaskMerger {
+
+    // Prevent instantiation.
+    private TaskMerger() {}
+
+    @NonNull
+    public static Task merge(@NonNull Task a, @NonNull Task b) {
+        checkNotNull(a);
+        checkNotNull(b);
+        checkArgument(a.getId().equals(b.getId()), "Tasks have different ids");
+
+        boolean titleFromA = compare(a.getTitleStamp(), a.getTitle(),
+                b.getTitleStamp(), b.getTitle()) >= 0;
+        boolean descriptionFromA = a.getDescriptionStamp() == b.getDescriptionStamp()
+                && a.isDescriptionLoaded() != b.isDescriptionLoaded()
+                ? a.isDescriptionLoaded()
+                : compare(a.getDescriptionStamp(), a.getDescription(),
+                        b.getDescriptionStamp(), b.getDescription()) >= 0;
+        boolean completedFromA = a.getCompletedStamp() != b.getCompletedStamp()
+                ? a.getCompletedStamp() > b.getCompletedStamp()
+                : a.isCompleted() || !b.isCompleted();
+
+        return new Task(
+                titleFromA ? a.getTitle() : b.getTitle(),
+                descriptionFromA ? a.getDescription() : b.getDescription(),
+                a.getId(),
+                completedFromA ? a.isCompleted() : b.isCompleted(),
+                Math.max(a.getVersion(), b.getVersion()),
+                titleFromA ? a.getTitleStamp() : b.getTitleStamp(),
+                descriptionFromA ? a.getDescriptionStamp() : b.getDescriptionStamp(),
+                completedFromA ? a.getCompletedStamp() : b.getCompletedStamp(),
+                descriptionFromA ? a.isDescriptionLoaded() : b.isDescriptionLoaded());
+    }
+
+    /**
+     * Returns the largest stamp on any field of {@code task}.
+     */
+    public static long latestStamp(@NonNull Task task) {
+        return Math.max(task.getTitleStamp(),
+                Math.max(task.getDescriptionStamp(), task.getCompletedStamp()));
+    }
+
+    private static int compare(long stampA, @Nullable String valueA,
+                               long stampB, @Nullable String valueB) {
+        if (stampA != stampB) {
+            return stampA > stampB ? 1 : -1;
+        }
+        if (valueA == null || valueB == null) {
+            return valueA == null ? (valueB == null ? 0 : -1) : 1;
+        }
+        return valueA.compareTo(valueB);
+    }
+}
@@ -0,0 +1,209 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A fixed-shape hash tree over a set of tasks, used to find where two replicas differ without
+ * comparing every task.
+ * <p>
+ * Tasks are spread over {@link #BUCKET_COUNT} buckets by a hash of their id. The buckets are the
+ * leaves of a tree with a fan-out of {@link #FAN_OUT}. Nodes are numbered breadth-first from the
+ * root, {@link #ROOT}. A bucket's hash is the XOR of the hashes of its tasks, and an inner node's
+ * is the XOR of its children's, so adding, changing or removing a task only updates the nodes on
+ * its path to the root.
+ * <p>
+ * Two replicas compare their root hashes, then the children of every node that differs, and so on
+ * down to the buckets. This takes one round trip per level. Only the buckets that differ then
+ * have to be transferred.
+ * <p>
+ * A tree can be marked invalid when its owner loses track of the tasks it describes. An invalid
+ * tree ignores updates until it is rebuilt.
+ */
+public final class TaskMerkleTree {
+
+    public static final int ROOT = 0;
+
+    public static final int FAN_OUT = 16;
+
+    /**
+     * Number of levels below the root.
+     */
+    public static final int DEPTH = 2;
+
+    public static final int BUCKET_COUNT = 256; // FAN_OUT ^ DEPTH
+
+    private static final int FIRST_BUCKET_NODE = 1 + FAN_OUT;
+
+    private static final int NODE_COUNT = FIRST_BUCKET_NODE + BUCKET_COUNT;
+
+    private static final HashFunction TASK_HASH = Hashing.murmur3_128();
+
+    private final long[] mNodeHashes = new long[NODE_COUNT];
+
+    /**
+     * Hash of every task, per bucket, so that a task's old hash can be taken out of the tree when
+     * it changes.
+     */
+    private final List<Map<String, Long>> mBuckets = new ArrayList<>(BUCKET_COUNT);
+
+    private boolean mValid = true;
+
+    public TaskMerkleTree() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            mBuckets.add(new HashMap<String, Long>());
+        }
+    }
+
+    public static boolean isBucketNode(int node) {
+        return node >= FIRST_BUCKET_NODE;
+    }
+
+    public static int bucketOfNode(int node) {
+        return node - FIRST_BUCKET_NODE;
+    }
+
+    public static int firstChildOf(int node) {
+        return node * FAN_OUT + 1;
+    }
+
+    public static int bucketOf(@NonNull String taskId) {
+        return (taskId.hashCode() & Integer.MAX_VALUE) % BUCKET_COUNT;
+    }
+
+    public synchronized boolean isValid() {
+        return mValid;
+    }
+
+    /**
+     * Stops tracking updates until the next {@link #rebuild(Collection)} or {@link #clear()}.
+     */
+    public synchronized void invalidate() {
+        mValid = false;
+    }
+
+    /**
+     * Replaces the contents of the tree with {@code tasks} and marks it valid.
+     */
+    public synchronized void rebuild(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+        clear();
+        for (Task task : tasks) {
+            put(task);
+        }
+    }
+
+    /**
+     * Empties the tree and marks it valid.
+     */
+    public synchronized void clear() {
+        for (Map<String, Long> bucket : mBuckets) {
+            bucket.clear();
+        }
+        for (int i = 0; i < NODE_COUNT; i++) {
+            mNodeHashes[i] = 0;
+        }
+        mValid = true;
+    }
+
+    public synchronized void put(@NonNull Task task) {
+        checkNotNull(task);
+        if (!mValid) {
+            return;
+        }
+        int bucket = bucketOf(task.getId());
+        long hash = hash(task);
+        Long previous = mBuckets.get(bucket).put(task.getId(), hash);
+        update(bucket, previous == null ? hash : hash ^ previous);
+    }
+
+    public synchronized void remove(@NonNull String taskId) {
+        checkNotNull(taskId);
+        if (!mValid) {
+            return;
+        }
+        int bucket = bucketOf(taskId);
+        Long previous = mBuckets.get(bucket).remove(taskId);
+        if (previous != null) {
+            update(bucket, previous);
+        }
+    }
+
+    /**
+     * Returns the hash of each of {@code nodes}, in the same order.
+     */
+    @NonNull
+    public synchronized long[] getHashes(@NonNull List<Integer> nodes) {
+        long[] hashes = new long[nodes.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = mNodeHashes[nodes.get(i)];
+        }
+        return hashes;
+    }
+
+    /**
+     * Returns the ids of the tasks in {@code buckets}.
+     */
+    @NonNull
+    public synchronized List<String> getTaskIds(@NonNull Collection<Integer> buckets) {
+        List<String> taskIds = new ArrayList<>();
+        for (int bucket : buckets) {
+            taskIds.addAll(mBuckets.get(bucket).keySet());
+        }
+        return taskIds;
+    }
+
+    /**
+     * XORs {@code delta} into a bucket and every node above it.
+     */
+    private void update(int bucket, long delta) {
+        int node = FIRST_BUCKET_NODE + bucket;
+        while (true) {
+            mNodeHashes[node] ^= delta;
+            if (node == ROOT) {
+                return;
+            }
+            node = (node - 1) / FAN_OUT;
+        }
+    }
+
+    /**
+     * Hashes the fields that replicas must agree on. The version is left out because it is only
+     * assigned by the remote. The description is represented by its stamp alone, so that tasks
+     * loaded for a list, which carry only the start of it, hash the same as whole ones.
+     */
+    private static long hash(@NonNull Task task) {
+        Hasher hasher = TASK_HASH.newHasher();
+        hasher.putString(task.getId(), Charsets.UTF_8);
+        putNullableString(hasher, task.getTitle());
+        hasher.putBoolean(task.isCompleted());
+        hasher.putLong(task.getTitleStamp());
+        hasher.putLong(task.getDescriptionStamp());
+        hasher.putLong(task.getCompletedStamp());
+        return hasher.hash().asLong();
+    }
+
+    private static void putNullableString(@NonNull Hasher hasher, @Nullable String value) {
+        if (value == null) {
+            hasher.putInt(-1);
+        } else {
+            hasher.putInt(value.length());
+            hasher.putString(value, Charsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.List;
+
+/**
+ * A durable, ordered queue of {@link TaskWrite}s that have been applied locally but not yet
+ * acknowledged by the remote data source. Writes are appended in the same transaction as the
+ * local change they describe, so neither can be lost without the other.
+ * <p>
+ * Reads see every write queued before them and are delivered on the main thread.
+ */
+public interface TaskOutbox {
+
+    interface LoadPendingWritesCallback {
+
+        void onPendingWritesLoaded(List<TaskWrite> writes);
+    }
+
+    interface GetPendingWriteCountCallback {
+
+        void onPendingWriteCountLoaded(int count);
+    }
+
+    interface CommitFailureListener {
+
+        /**
+         * {@code count} local changes, and the outbox entries that described them, could not be
+         * committed and were dropped. Called on the main thread.
+         */
+        void onWritesFailed(int count);
+    }
+
+    /**
+     * Gets up to {@code maxCount} of the oldest pending writes, in order.
+     */
+    void peekPendingWrites(int maxCount, @NonNull LoadPendingWritesCallback callback);
+
+    /**
+     * Removes every pending write up to and including {@code sequence}, once the remote data
+     * source has acknowledged them.
+     */
+    void removePendingWrites(long sequence);
+
+    void getPendingWriteCount(@NonNull GetPendingWriteCountCallback callback);
+
+    /**
+     * Sets the listener told about writes that failed to commit, replacing any previous one.
+     */
+    void setCommitFailureListener(@Nullable CommitFailureListener listener);
+}
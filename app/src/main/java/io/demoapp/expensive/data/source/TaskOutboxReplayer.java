@@ -0,0 +1,272 @@
+package io.demoapp.expensive.data.source;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Sends the writes waiting in a {@link TaskOutbox} to the remote data source, oldest first, in
+ * batches of at most {@link #MAX_BATCH_SIZE}. A write leaves the outbox only once the remote has
+ * acknowledged its batch.
+ * <p>
+ * When a push fails, replay stops and is retried after an exponentially growing delay, starting
+ * at {@link #INITIAL_BACKOFF_MILLIS} and capped at {@link #MAX_BACKOFF_MILLIS}. A retried batch
+ * may contain writes the remote already applied; their idempotency keys let it skip them.
+ * <p>
+ * Writes the remote refuses are acknowledged like the rest and handed to a
+ * {@link RejectionListener}, which is expected to roll them back.
+ */
+final class TaskOutboxReplayer {
+
+    interface ReplayCallback {
+
+        /**
+         * The outbox has been emptied.
+         */
+        void onReplayed();
+
+        /**
+         * The remote data source could not be reached. Replay will be retried later.
+         */
+        void onReplayFailed();
+    }
+
+    interface RejectionListener {
+
+        /**
+         * The remote data source refused {@code rejected}, which have left the outbox.
+         */
+        void onTaskWritesRejected(@NonNull List<TaskWrite> rejected);
+    }
+
+    static final int MAX_BATCH_SIZE = 50;
+
+    static final long INITIAL_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+    static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final long DRAIN_RATE_WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private final TasksDataSource mTasksRemoteDataSource;
+
+    private final TaskOutbox mOutbox;
+
+    private final RejectionListener mRejectionListener;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (TaskOutboxReplayer.this) {
+                mRetryScheduled = false;
+            }
+            replay(null);
+        }
+    };
+
+    // The fields below are guarded by this.
+
+    private boolean mReplaying = false;
+
+    /**
+     * Set when {@link #replay} is called during a replay, so that writes appended after the
+     * outbox last looked empty are not left behind.
+     */
+    private boolean mReplayRequested = false;
+
+    private boolean mRetryScheduled = false;
+
+    private long mBackoffMillis = 0;
+
+    private final List<ReplayCallback> mWaiting = new ArrayList<>();
+
+    private long mPushedWrites;
+
+    private long mPushedBatches;
+
+    private long mFailedPushes;
+
+    private long mRejectedWrites;
+
+    /**
+     * Acknowledgement time and size of each recent batch, oldest first.
+     */
+    private final Deque<long[]> mRecentBatches = new ArrayDeque<>();
+
+    TaskOutboxReplayer(@NonNull TasksDataSource tasksRemoteDataSource,
+                       @NonNull TaskOutbox outbox,
+                       @NonNull RejectionListener rejectionListener) {
+        mTasksRemoteDataSource = checkNotNull(tasksRemoteDataSource);
+        mOutbox = checkNotNull(outbox);
+        mRejectionListener = checkNotNull(rejectionListener);
+    }
+
+    /**
+     * Starts sending the outbox, unless a replay is already running or waiting for its retry.
+     * {@code callback}, if given, is told once the outbox is empty or the remote has failed. While
+     * a retry is pending it fails straight away rather than waiting out the backoff.
+     */
+    void replay(@Nullable ReplayCallback callback) {
+        synchronized (this) {
+            if (mRetryScheduled) {
+                if (callback != null) {
+                    callback.onReplayFailed();
+                }
+                return;
+            }
+            if (callback != null) {
+                mWaiting.add(callback);
+            }
+            if (mReplaying) {
+                mReplayRequested = true;
+                return;
+            }
+            mReplaying = true;
+        }
+        pushNextBatch();
+    }
+
+    /**
+     * Counts the writes waiting in the outbox, which is read off the main thread, and hands the
+     * stats to {@code callback} on the main thread.
+     */
+    void getStats(@NonNull final TasksRepository.GetOutboxStatsCallback callback) {
+        checkNotNull(callback);
+        mOutbox.getPendingWriteCount(new TaskOutbox.GetPendingWriteCountCallback() {
+            @Override
+            public void onPendingWriteCountLoaded(int pendingWrites) {
+                callback.onOutboxStatsLoaded(createStats(pendingWrites));
+            }
+        });
+    }
+
+    @NonNull
+    private synchronized TaskOutboxStats createStats(int pendingWrites) {
+        pruneRecentBatches();
+        int writesPushedLastMinute = 0;
+        for (long[] batch : mRecentBatches) {
+            writesPushedLastMinute += batch[1];
+        }
+        return TaskOutboxStats.create(
+                pendingWrites,
+                mPushedWrites,
+                mPushedBatches,
+                mFailedPushes,
+                mRejectedWrites,
+                writesPushedLastMinute,
+                mRetryScheduled ? mBackoffMillis : 0);
+    }
+
+    /**
+     * Reads the next batch off the main thread and pushes it, or finishes the replay if the
+     * outbox is empty and nothing asked for another pass while it was being read.
+     */
+    private void pushNextBatch() {
+        synchronized (this) {
+            mReplayRequested = false;
+        }
+        mOutbox.peekPendingWrites(MAX_BATCH_SIZE, new TaskOutbox.LoadPendingWritesCallback() {
+            @Override
+            public void onPendingWritesLoaded(List<TaskWrite> batch) {
+                if (!batch.isEmpty()) {
+                    pushBatch(batch);
+                    return;
+                }
+                synchronized (TaskOutboxReplayer.this) {
+                    if (!mReplayRequested) {
+                        finish(true);
+                        return;
+                    }
+                }
+                pushNextBatch();
+            }
+        });
+    }
+
+    private void pushBatch(@NonNull final List<TaskWrite> pushed) {
+        mTasksRemoteDataSource.pushTaskWrites(pushed, new TasksDataSource.PushTaskWritesCallback() {
+            @Override
+            public void onTaskWritesPushed() {
+                acknowledge(pushed);
+                pushNextBatch();
+            }
+
+            @Override
+            public void onTaskWritesRejected(List<TaskWrite> rejected) {
+                acknowledge(pushed);
+                synchronized (TaskOutboxReplayer.this) {
+                    mRejectedWrites += rejected.size();
+                }
+                mRejectionListener.onTaskWritesRejected(rejected);
+                pushNextBatch();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                synchronized (TaskOutboxReplayer.this) {
+                    mFailedPushes++;
+                    mBackoffMillis = mBackoffMillis == 0
+                            ? INITIAL_BACKOFF_MILLIS
+                            : Math.min(mBackoffMillis * 2, MAX_BACKOFF_MILLIS);
+                    mRetryScheduled = true;
+                    mHandler.postDelayed(mRetryRunnable, mBackoffMillis);
+                    finish(false);
+                }
+            }
+        });
+    }
+
+    private void acknowledge(@NonNull List<TaskWrite> pushed) {
+        mOutbox.removePendingWrites(pushed.get(pushed.size() - 1).sequence());
+        synchronized (this) {
+            mPushedWrites += pushed.size();
+            mPushedBatches++;
+            mBackoffMillis = 0;
+            mRecentBatches.addLast(new long[] { SystemClock.elapsedRealtime(), pushed.size() });
+            pruneRecentBatches();
+        }
+    }
+
+    /**
+     * Ends the current replay and tells everyone waiting on it. Called while holding this lock;
+     * the callbacks are posted so that none of them runs under it.
+     */
+    private void finish(final boolean replayed) {
+        mReplaying = false;
+        final List<ReplayCallback> waiting = new ArrayList<>(mWaiting);
+        mWaiting.clear();
+        if (waiting.isEmpty()) {
+            return;
+        }
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (ReplayCallback callback : waiting) {
+                    if (replayed) {
+                        callback.onReplayed();
+                    } else {
+                        callback.onReplayFailed();
+                    }
+                }
+            }
+        });
+    }
+
+    private void pruneRecentBatches() {
+        long cutoff = SystemClock.elapsedRealtime() - DRAIN_RATE_WINDOW_MILLIS;
+        while (!mRecentBatches.isEmpty() && mRecentBatches.peekFirst()[0] < cutoff) {
+            mRecentBatches.removeFirst();
+        }
+    }
+}
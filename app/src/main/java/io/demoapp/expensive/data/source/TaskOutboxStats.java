@@ -0,0 +1,55 @@
+package io.demoapp.expensive.data.source;
+
+import com.google.auto.value.AutoValue;
+
+/**
+ * Describes the backlog of local writes waiting for the remote data source, and how quickly it
+ * is being sent. Counters cover the lifetime of the {@link TasksRepository}.
+ */
+@AutoValue
+public abstract class TaskOutboxStats {
+
+    /**
+     * Writes currently waiting in the outbox.
+     */
+    public abstract int pendingWrites();
+
+    public abstract long pushedWrites();
+
+    public abstract long pushedBatches();
+
+    public abstract long failedPushes();
+
+    /**
+     * Writes the remote data source acknowledged but refused to apply.
+     */
+    public abstract long rejectedWrites();
+
+    /**
+     * Writes acknowledged by the remote data source over the last minute.
+     */
+    public abstract int writesPushedLastMinute();
+
+    /**
+     * Delay before the next retry, or 0 if the last push succeeded.
+     */
+    public abstract long retryDelayMillis();
+
+    static TaskOutboxStats create(
+            int pendingWrites,
+            long pushedWrites,
+            long pushedBatches,
+            long failedPushes,
+            long rejectedWrites,
+            int writesPushedLastMinute,
+            long retryDelayMillis) {
+        return new AutoValue_TaskOutboxStats(
+                pendingWrites,
+                pushedWrites,
+                pushedBatches,
+                failedPushes,
+                rejectedWrites,
+                writesPushedLastMinute,
+                retryDelayMillis);
+    }
+}
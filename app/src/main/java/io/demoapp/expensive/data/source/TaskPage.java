@@ -0,0 +1,45 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.google.auto.value.AutoValue;
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One page of tasks, as returned by
+ * {@link TasksDataSource#getTaskPage(long, int, TasksDataSource.LoadTaskPageCallback)}.
+ * <p>
+ * Pages are keyed on a position in a stable order rather than an offset, so fetching the next
+ * page costs the same however far into the tasks it is, and tasks written in the meantime don't
+ * shift the pages that follow.
+ */
+@AutoValue
+public abstract class TaskPage {
+
+    /**
+     * Key of the first page.
+     */
+    public static final long FIRST_PAGE_KEY = 0;
+
+    public abstract List<Task> tasks();
+
+    /**
+     * Key to pass to the next request for the page after this one.
+     */
+    public abstract long nextPageKey();
+
+    /**
+     * True if there are no tasks after this page.
+     */
+    public abstract boolean isLastPage();
+
+    public static TaskPage create(@NonNull Collection<Task> tasks, long nextPageKey,
+                                  boolean isLastPage) {
+        return new AutoValue_TaskPage(ImmutableList.copyOf(tasks), nextPageKey, isLastPage);
+    }
+}
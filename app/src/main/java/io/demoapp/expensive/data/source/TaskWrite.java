@@ -0,0 +1,82 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.auto.value.AutoValue;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.UUID;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A write made locally that still has to be sent to the remote data source. See
+ * {@link TaskOutbox}.
+ */
+@AutoValue
+public abstract class TaskWrite {
+
+    public enum Operation {
+        /** Creates or replaces {@link #task()}. */
+        SAVE,
+        /** Deletes the task with {@link #taskId()}. */
+        DELETE,
+        /** Marks the task with {@link #taskId()} as {@link #completed()}. */
+        SET_COMPLETED,
+        /** Deletes every completed task. */
+        DELETE_COMPLETED,
+        /** Deletes every task. */
+        DELETE_ALL
+    }
+
+    /**
+     * Position in the outbox. Writes must be sent in increasing order.
+     */
+    public abstract long sequence();
+
+    /**
+     * Unique per write and kept across retries, so that the remote can ignore a write it has
+     * already applied when an acknowledgement was lost.
+     */
+    public abstract String idempotencyKey();
+
+    public abstract Operation operation();
+
+    @Nullable
+    public abstract String taskId();
+
+    /**
+     * The task to save, for {@link Operation#SAVE} only.
+     */
+    @Nullable
+    public abstract Task task();
+
+    public abstract boolean completed();
+
+    /**
+     * The {@link HybridLogicalClock} stamp of the change to {@link #completed()}, for
+     * {@link Operation#SET_COMPLETED} only.
+     */
+    public abstract long completedStamp();
+
+    public static TaskWrite create(long sequence,
+                                   @NonNull String idempotencyKey,
+                                   @NonNull Operation operation,
+                                   @Nullable String taskId,
+                                   @Nullable Task task,
+                                   boolean completed,
+                                   long completedStamp) {
+        return new AutoValue_TaskWrite(sequence, checkNotNull(idempotencyKey),
+                checkNotNull(operation), taskId, task, completed, completedStamp);
+    }
+
+    /**
+     * Returns a new, random idempotency key.
+     */
+    @NonNull
+    public static String newIdempotencyKey() {
+        return UUID.randomUUID().toString();
+    }
+}
@@ -0,0 +1,142 @@
+package io.demoapp.expensive.data.source;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Holds back single-task writes for a short window and then writes them to the local data source
+ * as one batch, from where the {@link TaskOutboxReplayer} sends them on to the remote.
+ * <p>
+ * Writes to the same task within the window collapse to its final state: toggling a task's
+ * completion five times costs one write, and saving and then deleting a task only deletes it.
+ * The window starts with the first pending write and is not extended by later ones, so no write
+ * waits longer than the window.
+ * <p>
+ * The queue only orders writes against each other. Callers must {@link #flush()} before any
+ * write or read that goes to the data sources directly.
+ */
+final class TaskWriteBehindQueue {
+
+    private final TasksDataSource mTasksLocalDataSource;
+
+    private final TaskOutboxReplayer mOutboxReplayer;
+
+    private final long mWindowMillis;
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Held for the whole of a flush, so that two flushes can't write different states of the
+     * same task out of order.
+     */
+    private final Object mFlushLock = new Object();
+
+    private final Object mLock = new Object();
+
+    // The fields below are guarded by mLock.
+
+    private final Map<String, Task> mPendingSaves = new LinkedHashMap<>();
+
+    private final Set<String> mPendingDeletes = new LinkedHashSet<>();
+
+    private boolean mFlushScheduled = false;
+
+    TaskWriteBehindQueue(@NonNull TasksDataSource tasksLocalDataSource,
+                         @NonNull TaskOutboxReplayer outboxReplayer,
+                         long windowMillis) {
+        mTasksLocalDataSource = checkNotNull(tasksLocalDataSource);
+        mOutboxReplayer = checkNotNull(outboxReplayer);
+        mWindowMillis = windowMillis;
+    }
+
+    /**
+     * Queues {@code task} to be saved, replacing any write already queued for its id.
+     */
+    void save(@NonNull Task task) {
+        checkNotNull(task);
+        synchronized (mLock) {
+            mPendingDeletes.remove(task.getId());
+            mPendingSaves.put(task.getId(), task);
+            scheduleFlush();
+        }
+    }
+
+    /**
+     * Queues the task with {@code taskId} to be deleted, replacing any write already queued for
+     * it.
+     */
+    void delete(@NonNull String taskId) {
+        checkNotNull(taskId);
+        synchronized (mLock) {
+            mPendingSaves.remove(taskId);
+            mPendingDeletes.add(taskId);
+            scheduleFlush();
+        }
+    }
+
+    boolean isEmpty() {
+        synchronized (mLock) {
+            return mPendingSaves.isEmpty() && mPendingDeletes.isEmpty();
+        }
+    }
+
+    /**
+     * Hands everything queued to the local data source before returning, ahead of any read
+     * issued afterwards, and starts sending it to the remote.
+     */
+    void flush() {
+        synchronized (mFlushLock) {
+            List<Task> saves;
+            List<String> deletes;
+            synchronized (mLock) {
+                if (mFlushScheduled) {
+                    mHandler.removeCallbacks(mFlushRunnable);
+                    mFlushScheduled = false;
+                }
+                if (mPendingSaves.isEmpty() && mPendingDeletes.isEmpty()) {
+                    return;
+                }
+                saves = new ArrayList<>(mPendingSaves.values());
+                deletes = new ArrayList<>(mPendingDeletes);
+                mPendingSaves.clear();
+                mPendingDeletes.clear();
+            }
+
+            // A task is never both saved and deleted in one batch, so the order of the two
+            // doesn't matter.
+            if (!saves.isEmpty()) {
+                mTasksLocalDataSource.saveTasks(saves);
+            }
+            if (!deletes.isEmpty()) {
+                mTasksLocalDataSource.deleteTasks(deletes);
+            }
+        }
+        mOutboxReplayer.replay(null);
+    }
+
+    private void scheduleFlush() {
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWindowMillis);
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+
+import com.google.auto.value.AutoValue;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A local write the remote data source refused, and which has been rolled back. See
+ * {@link TasksRepository#observeWriteFailures(TaskWriteFailureListener)}.
+ */
+@AutoValue
+public abstract class TaskWriteFailure {
+
+    public enum Reason {
+        /**
+         * The task had been deleted on the remote, for example from another device. The task has
+         * been deleted locally too.
+         */
+        TASK_DELETED
+    }
+
+    public abstract TaskWrite write();
+
+    public abstract Reason reason();
+
+    public static TaskWriteFailure create(@NonNull TaskWrite write, @NonNull Reason reason) {
+        return new AutoValue_TaskWriteFailure(checkNotNull(write), checkNotNull(reason));
+    }
+}
@@ -0,0 +1,14 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.MainThread;
+
+/**
+ * Told about local writes that the remote data source refused. By the time it is called, the
+ * write has been rolled back and observers of the tasks have been sent the change. See
+ * {@link TasksRepository#observeWriteFailures(TaskWriteFailureListener)}.
+ */
+public interface TaskWriteFailureListener {
+
+    @MainThread
+    void onTaskWriteFailed(TaskWriteFailure failure);
+}
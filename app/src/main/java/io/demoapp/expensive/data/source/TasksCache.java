@@ -0,0 +1,559 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Thread-safe, memory-bounded in-memory cache of tasks, used by {@link TasksRepository}.
+ * <p>
+ * The cache publishes immutable snapshots. Readers take the current snapshot with a single
+ * volatile read and never copy. Writers serialize on a lock, build the next snapshot and
+ * publish it in one step, so a reader never observes a half-applied write and concurrent
+ * writers never lose each other's updates. Tasks keep their insertion order.
+ * <p>
+ * Snapshots are {@link PersistentSortedMap}s, so building the next one copies only the
+ * O(log n) tree nodes on the path to each written task and shares the rest with the previous
+ * snapshot, instead of copying every task on every write.
+ * <p>
+ * Each snapshot also indexes its tasks by completion state, so filtered views and counts are
+ * O(1) to read instead of a scan over every task. Writers update the indexes along with the
+ * tasks they change, so keeping them costs O(log n) per written task.
+ * <p>
+ * The estimated size of the cached tasks is kept under a byte budget by evicting the least
+ * recently used tasks. Once anything has been evicted the cache is no longer
+ * {@link #isComplete() complete}: single lookups may miss and whole-list reads have to go back
+ * to the data sources until the cache is next replaced wholesale.
+ */
+final class TasksCache {
+
+    /**
+     * Rough per-task cost on top of its strings: the {@link Task} object itself, its nodes in
+     * the id, task and completion index trees of the snapshot and its entry in the LRU map.
+     */
+    private static final int TASK_OVERHEAD_BYTES = 224;
+
+    /**
+     * Rough cost of a {@link String} with no characters: the object, its char array header and
+     * the cached hash code.
+     */
+    private static final int STRING_OVERHEAD_BYTES = 40;
+
+    private final Object mWriteLock = new Object();
+
+    /**
+     * The current snapshot, or null if the cache has never been populated.
+     */
+    @Nullable
+    private volatile Snapshot mSnapshot;
+
+    /**
+     * Estimated size of each cached task, in access order. Guarded by {@link #mWriteLock}.
+     */
+    private final LinkedHashMap<String, Integer> mLru = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Guarded by {@link #mWriteLock}.
+     */
+    private long mSizeBytes;
+
+    private volatile long mMaxSizeBytes;
+
+    private long mHitCount;
+
+    private long mMissCount;
+
+    private long mEvictionCount;
+
+    /**
+     * Guarded by {@link #mWriteLock}.
+     */
+    private long mModificationCount;
+
+    /**
+     * The insertion sequence number for the next task that is not already cached. Guarded by
+     * {@link #mWriteLock}.
+     */
+    private long mNextSequence;
+
+    TasksCache(long maxSizeBytes) {
+        checkArgument(maxSizeBytes > 0);
+        mMaxSizeBytes = maxSizeBytes;
+    }
+
+    /**
+     * Returns true if the cache holds every known task: it has been populated and nothing has
+     * been evicted since.
+     */
+    boolean isComplete() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot != null && snapshot.complete;
+    }
+
+    /**
+     * Returns a number that changes whenever the contents of the cache do, including removals
+     * and evictions, so that a load can tell whether the cache was written while it was in
+     * flight.
+     */
+    long modificationCount() {
+        synchronized (mWriteLock) {
+            return mModificationCount;
+        }
+    }
+
+    /**
+     * Looks up a single task, counting a hit or a miss and marking the task as recently used.
+     * Unlike the other reads this briefly takes the write lock to update the LRU order.
+     */
+    @Nullable
+    Task get(@NonNull String taskId) {
+        Snapshot snapshot = mSnapshot;
+        Task task = snapshot == null ? null : snapshot.get(checkNotNull(taskId));
+        synchronized (mWriteLock) {
+            if (task != null) {
+                mHitCount++;
+                mLru.get(taskId);
+            } else {
+                mMissCount++;
+            }
+        }
+        return task;
+    }
+
+    /**
+     * Looks up a single task without counting a hit or a miss or touching the LRU order.
+     */
+    @Nullable
+    Task peek(@NonNull String taskId) {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? null : snapshot.get(checkNotNull(taskId));
+    }
+
+    /**
+     * Returns an immutable view of every cached task. This is O(1): the list is backed by the
+     * current snapshot, which later writes never modify.
+     */
+    @NonNull
+    List<Task> getAll() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? ImmutableList.<Task>of() : snapshot.all.values();
+    }
+
+    /**
+     * Returns an immutable view of the active tasks, in O(1).
+     */
+    @NonNull
+    List<Task> getActive() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? ImmutableList.<Task>of() : snapshot.active.values();
+    }
+
+    /**
+     * Returns an immutable view of the completed tasks, in O(1).
+     */
+    @NonNull
+    List<Task> getCompleted() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? ImmutableList.<Task>of() : snapshot.completed.values();
+    }
+
+    int size() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? 0 : snapshot.all.size();
+    }
+
+    int activeCount() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? 0 : snapshot.active.size();
+    }
+
+    int completedCount() {
+        Snapshot snapshot = mSnapshot;
+        return snapshot == null ? 0 : snapshot.completed.size();
+    }
+
+    /**
+     * Replaces the entire contents of the cache with {@code tasks}. If they do not fit in the
+     * budget the cache is left incomplete.
+     */
+    void replaceAll(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+        synchronized (mWriteLock) {
+            mLru.clear();
+            mSizeBytes = 0;
+            Edit next = new Edit(Snapshot.EMPTY);
+            for (Task task : tasks) {
+                put(next, task);
+                track(task);
+            }
+            publish(next, true);
+        }
+    }
+
+    void put(@NonNull Task task) {
+        putAll(Collections.singletonList(checkNotNull(task)));
+    }
+
+    /**
+     * Adds or replaces tasks. Writing to a cache that has never been populated leaves it
+     * incomplete, since the tasks that were not written are still unknown.
+     */
+    void putAll(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+        synchronized (mWriteLock) {
+            Edit next = editCurrent();
+            for (Task task : tasks) {
+                put(next, task);
+                track(task);
+            }
+            publish(next, isComplete());
+        }
+    }
+
+    /**
+     * Replaces each cached task in {@code taskIds} with a copy marked as completed or active at
+     * {@code completedStamp}. Ids that are not cached are ignored.
+     */
+    void setCompleted(@NonNull Collection<String> taskIds, boolean completed,
+                      long completedStamp) {
+        checkNotNull(taskIds);
+        synchronized (mWriteLock) {
+            if (mSnapshot == null) {
+                return;
+            }
+            Edit next = editCurrent();
+            for (String taskId : taskIds) {
+                Task task = next.get(taskId);
+                if (task != null) {
+                    put(next, task.withCompleted(completed, completedStamp));
+                }
+            }
+            publish(next, isComplete());
+        }
+    }
+
+    void remove(@NonNull String taskId) {
+        removeAll(Collections.singletonList(checkNotNull(taskId)));
+    }
+
+    void removeAll(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds);
+        synchronized (mWriteLock) {
+            if (mSnapshot == null) {
+                return;
+            }
+            Edit next = editCurrent();
+            for (String taskId : taskIds) {
+                if (next.remove(taskId)) {
+                    untrack(taskId);
+                }
+            }
+            publish(next, isComplete());
+        }
+    }
+
+    /**
+     * Drops every completed task. The completed index identifies them directly and the active
+     * index is carried over to the next snapshot unchanged.
+     */
+    void removeCompleted() {
+        synchronized (mWriteLock) {
+            Snapshot current = mSnapshot;
+            if (current == null || current.completed.isEmpty()) {
+                return;
+            }
+            Edit next = new Edit(current);
+            for (Task task : current.completed.values()) {
+                next.remove(task.getId());
+                untrack(task.getId());
+            }
+            mSnapshot = new Snapshot(
+                    next.sequences,
+                    next.all,
+                    current.active,
+                    PersistentSortedMap.<Long, Task>empty(),
+                    current.complete);
+            mModificationCount++;
+        }
+    }
+
+    void clear() {
+        synchronized (mWriteLock) {
+            mLru.clear();
+            mSizeBytes = 0;
+            mSnapshot = Snapshot.EMPTY;
+            mModificationCount++;
+        }
+    }
+
+    /**
+     * Changes the byte budget, evicting immediately if the cache no longer fits.
+     */
+    void setMaxSizeBytes(long maxSizeBytes) {
+        checkArgument(maxSizeBytes > 0);
+        synchronized (mWriteLock) {
+            mMaxSizeBytes = maxSizeBytes;
+            trimToSize(maxSizeBytes);
+        }
+    }
+
+    /**
+     * Evicts least recently used tasks until the cache is at most {@code targetBytes}. The
+     * budget itself is not changed, so the cache may grow back later.
+     */
+    void trimToSize(long targetBytes) {
+        synchronized (mWriteLock) {
+            if (mSnapshot == null || mSizeBytes <= targetBytes) {
+                return;
+            }
+            Edit next = editCurrent();
+            evict(next, targetBytes);
+            mSnapshot = next.build(false);
+            mModificationCount++;
+        }
+    }
+
+    long getMaxSizeBytes() {
+        return mMaxSizeBytes;
+    }
+
+    @NonNull
+    TaskCacheStats getStats() {
+        synchronized (mWriteLock) {
+            return TaskCacheStats.create(
+                    mHitCount,
+                    mMissCount,
+                    mEvictionCount,
+                    mLru.size(),
+                    mSizeBytes,
+                    mMaxSizeBytes);
+        }
+    }
+
+    /**
+     * Returns a rough estimate of the heap retained by caching {@code task}.
+     */
+    static int estimateSizeBytes(@NonNull Task task) {
+        return TASK_OVERHEAD_BYTES
+                + estimateSizeBytes(task.getId())
+                + estimateSizeBytes(task.getTitle())
+                + estimateSizeBytes(task.getDescription());
+    }
+
+    private static int estimateSizeBytes(@Nullable String value) {
+        // Strings are UTF-16 on Android.
+        return value == null ? 0 : STRING_OVERHEAD_BYTES + 2 * value.length();
+    }
+
+    /**
+     * Publishes {@code next}, first evicting down to the budget if needed. Must be called while
+     * holding {@link #mWriteLock}.
+     */
+    private void publish(@NonNull Edit next, boolean complete) {
+        if (mSizeBytes > mMaxSizeBytes) {
+            evict(next, mMaxSizeBytes);
+            complete = false;
+        }
+        mSnapshot = next.build(complete);
+        mModificationCount++;
+    }
+
+    /**
+     * Must be called while holding {@link #mWriteLock}.
+     */
+    private void evict(@NonNull Edit next, long targetBytes) {
+        Iterator<Map.Entry<String, Integer>> it = mLru.entrySet().iterator();
+        while (mSizeBytes > targetBytes && it.hasNext()) {
+            Map.Entry<String, Integer> eldest = it.next();
+            next.remove(eldest.getKey());
+            mSizeBytes -= eldest.getValue();
+            mEvictionCount++;
+            it.remove();
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #mWriteLock}.
+     */
+    private void track(@NonNull Task task) {
+        int size = estimateSizeBytes(task);
+        Integer previous = mLru.put(task.getId(), size);
+        mSizeBytes += size - (previous == null ? 0 : previous);
+    }
+
+    /**
+     * Must be called while holding {@link #mWriteLock}.
+     */
+    private void untrack(@NonNull String taskId) {
+        Integer previous = mLru.remove(taskId);
+        if (previous != null) {
+            mSizeBytes -= previous;
+        }
+    }
+
+    /**
+     * Adds or replaces {@code task} in {@code next}. A task that is already cached keeps its
+     * place in the insertion order. Must be called while holding {@link #mWriteLock}.
+     */
+    private void put(@NonNull Edit next, @NonNull Task task) {
+        if (!next.replace(task)) {
+            next.insert(task, mNextSequence++);
+        }
+    }
+
+    /**
+     * Must be called while holding {@link #mWriteLock}.
+     */
+    @NonNull
+    private Edit editCurrent() {
+        Snapshot snapshot = mSnapshot;
+        return new Edit(snapshot == null ? Snapshot.EMPTY : snapshot);
+    }
+
+    private static final class Snapshot {
+
+        static final Snapshot EMPTY = new Snapshot(
+                PersistentSortedMap.<String, Long>empty(),
+                PersistentSortedMap.<Long, Task>empty(),
+                PersistentSortedMap.<Long, Task>empty(),
+                PersistentSortedMap.<Long, Task>empty(),
+                true);
+
+        /**
+         * The insertion sequence number of each task, by id.
+         */
+        final PersistentSortedMap<String, Long> sequences;
+
+        /**
+         * Every task, by insertion sequence number.
+         */
+        final PersistentSortedMap<Long, Task> all;
+
+        final PersistentSortedMap<Long, Task> active;
+
+        final PersistentSortedMap<Long, Task> completed;
+
+        /**
+         * True if this snapshot holds every known task.
+         */
+        final boolean complete;
+
+        Snapshot(PersistentSortedMap<String, Long> sequences,
+                 PersistentSortedMap<Long, Task> all,
+                 PersistentSortedMap<Long, Task> active,
+                 PersistentSortedMap<Long, Task> completed,
+                 boolean complete) {
+            this.sequences = sequences;
+            this.all = all;
+            this.active = active;
+            this.completed = completed;
+            this.complete = complete;
+        }
+
+        @Nullable
+        Task get(@NonNull String taskId) {
+            Long sequence = sequences.get(taskId);
+            return sequence == null ? null : all.get(sequence);
+        }
+    }
+
+    /**
+     * The maps of the next snapshot while a writer builds it. Each change replaces a map with
+     * a new version that shares everything else with the old one.
+     */
+    private static final class Edit {
+
+        PersistentSortedMap<String, Long> sequences;
+
+        PersistentSortedMap<Long, Task> all;
+
+        PersistentSortedMap<Long, Task> active;
+
+        PersistentSortedMap<Long, Task> completed;
+
+        Edit(@NonNull Snapshot from) {
+            sequences = from.sequences;
+            all = from.all;
+            active = from.active;
+            completed = from.completed;
+        }
+
+        @Nullable
+        Task get(@NonNull String taskId) {
+            Long sequence = sequences.get(taskId);
+            return sequence == null ? null : all.get(sequence);
+        }
+
+        /**
+         * Replaces the task with the same id, returning false if there is none.
+         */
+        boolean replace(@NonNull Task task) {
+            Long sequence = sequences.get(task.getId());
+            if (sequence == null) {
+                return false;
+            }
+            Task previous = all.get(sequence);
+            all = all.put(sequence, task);
+            if (previous.isCompleted() != task.isCompleted()) {
+                unindex(sequence, previous);
+            }
+            index(sequence, task);
+            return true;
+        }
+
+        void insert(@NonNull Task task, long sequence) {
+            sequences = sequences.put(task.getId(), sequence);
+            all = all.put(sequence, task);
+            index(sequence, task);
+        }
+
+        /**
+         * Removes the task with {@code taskId}, returning false if there is none.
+         */
+        boolean remove(@NonNull String taskId) {
+            Long sequence = sequences.get(taskId);
+            if (sequence == null) {
+                return false;
+            }
+            Task previous = all.get(sequence);
+            sequences = sequences.remove(taskId);
+            all = all.remove(sequence);
+            unindex(sequence, previous);
+            return true;
+        }
+
+        @NonNull
+        Snapshot build(boolean complete) {
+            return new Snapshot(sequences, all, active, completed, complete);
+        }
+
+        private void index(long sequence, @NonNull Task task) {
+            if (task.isCompleted()) {
+                completed = completed.put(sequence, task);
+            } else {
+                active = active.put(sequence, task);
+            }
+        }
+
+        private void unindex(long sequence, @NonNull Task task) {
+            if (task.isCompleted()) {
+                completed = completed.remove(sequence);
+            } else {
+                active = active.remove(sequence);
+            }
+        }
+    }
+}
@@ -16,10 +16,13 @@
 
 package io.demoapp.expensive.data.source;
 
+import android.os.CancellationSignal;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import io.demoapp.expensive.data.Task;
 
+import java.util.Collection;
 import java.util.List;
 
 /**
@@ -41,12 +44,111 @@ public interface TasksDataSource {
         void onDataNotAvailable();
     }
 
+    interface GetTaskCountsCallback {
+
+        void onTaskCountsLoaded(TaskCounts counts);
+
+        void onDataNotAvailable();
+    }
+
+    interface PushTaskWritesCallback {
+
+        /**
+         * Every write in the batch has been applied, or had already been applied before.
+         */
+        void onTaskWritesPushed();
+
+        /**
+         * The batch has been acknowledged, but {@code rejected} were refused because the task
+         * they change has been deleted. Every other write in the batch has been applied.
+         */
+        void onTaskWritesRejected(List<TaskWrite> rejected);
+
+        void onDataNotAvailable();
+    }
+
+    interface GetTaskDeltaCallback {
+
+        void onTaskDeltaLoaded(TaskDelta delta);
+
+        /**
+         * The source no longer knows everything that changed since the token, e.g. because the
+         * tombstones it needed have been discarded. Ask again with token 0 for a full snapshot.
+         */
+        void onSyncTokenExpired();
+
+        void onDataNotAvailable();
+    }
+
+    interface GetTaskTreeHashesCallback {
+
+        /**
+         * @param hashes    the hash of each requested node, in the order requested
+         * @param syncToken the sync token that the hashes are up to date with
+         */
+        void onTaskTreeHashesLoaded(long[] hashes, long syncToken);
+
+        void onDataNotAvailable();
+    }
+
+    interface LoadTaskPageCallback {
+
+        void onTaskPageLoaded(TaskPage page);
+
+        void onDataNotAvailable();
+    }
+
+    interface GetSyncTokenCallback {
+
+        void onSyncTokenLoaded(long syncToken);
+    }
+
     void getTasks(@NonNull LoadTasksCallback callback);
 
     void getTask(@NonNull String taskId, @NonNull GetTaskCallback callback);
 
+    /**
+     * Like {@link #getTask(String, GetTaskCallback)}, but once {@code cancellationSignal} is
+     * cancelled the lookup may stop early, and {@code callback} is not invoked.
+     */
+    void getTask(@NonNull String taskId, @Nullable CancellationSignal cancellationSignal,
+                 @NonNull GetTaskCallback callback);
+
+    /**
+     * Gets the tasks with the given ids as a single batch. Ids that can't be found are left out
+     * of the result; {@link LoadTasksCallback#onDataNotAvailable()} is fired if none of them can.
+     */
+    void getTasks(@NonNull Collection<String> taskIds, @NonNull LoadTasksCallback callback);
+
+    /**
+     * Gets up to {@code pageSize} tasks, starting after {@code pageKey}. Pass
+     * {@link TaskPage#FIRST_PAGE_KEY} for the first page and {@link TaskPage#nextPageKey()} for
+     * each page after it. {@link LoadTaskPageCallback#onDataNotAvailable()} is fired if there
+     * are no tasks at all.
+     */
+    void getTaskPage(long pageKey, int pageSize, @NonNull LoadTaskPageCallback callback);
+
+    /**
+     * Gets the tasks whose title or description has a word starting with each word of
+     * {@code query}, best matches first. {@link LoadTasksCallback#onDataNotAvailable()} is fired
+     * if none match.
+     */
+    void searchTasks(@NonNull String query, @NonNull LoadTasksCallback callback);
+
+    /**
+     * Gets the number of active and completed tasks without loading the tasks themselves.
+     * {@link GetTaskCountsCallback#onDataNotAvailable()} is fired if there are no tasks at all.
+     */
+    void getTaskCounts(@NonNull GetTaskCountsCallback callback);
+
     void saveTask(@NonNull Task task);
 
+    /**
+     * Saves all of the given tasks as a single batch, replacing any existing task with the
+     * same id.
+     */
+    void saveTasks(@NonNull List<Task> tasks);
+
     void completeTask(@NonNull Task task);
 
     void completeTask(@NonNull String taskId);
@@ -62,4 +164,54 @@ public interface TasksDataSource {
     void deleteAllTasks();
 
     void deleteTask(@NonNull String taskId);
+
+    /**
+     * Deletes all of the tasks with the given ids as a single batch. Unknown ids are ignored.
+     */
+    void deleteTasks(@NonNull Collection<String> taskIds);
+
+    /**
+     * Marks all of the tasks with the given ids as completed or active as a single batch, with
+     * {@code completedStamp} as the clock stamp of the change. Unknown ids are ignored.
+     */
+    void updateCompletion(@NonNull Collection<String> taskIds, boolean completed,
+                          long completedStamp);
+
+    /**
+     * Gets the tasks written and deleted since {@code syncToken}. A token of 0 requests a full
+     * snapshot of every task.
+     */
+    void getTaskDelta(long syncToken, @NonNull GetTaskDeltaCallback callback);
+
+    /**
+     * Applies {@code delta} as a single batch and remembers its sync token, unless it is
+     * {@link TaskDelta#NO_SYNC_TOKEN}. A full snapshot replaces every task.
+     */
+    void applyTaskDelta(@NonNull TaskDelta delta);
+
+    /**
+     * Gets the sync token that the tasks held by this data source are up to date with, or 0 if
+     * they have never been synced.
+     */
+    void getSyncToken(@NonNull GetSyncTokenCallback callback);
+
+    /**
+     * Applies {@code writes} in order as a single batch. Writes whose idempotency key has been
+     * seen before are skipped, so a batch can safely be retried.
+     */
+    void pushTaskWrites(@NonNull List<TaskWrite> writes, @NonNull PushTaskWritesCallback callback);
+
+    /**
+     * Gets the hashes of {@code nodes} in the {@link TaskMerkleTree} of every task.
+     */
+    void getTaskTreeHashes(@NonNull List<Integer> nodes,
+                           @NonNull GetTaskTreeHashesCallback callback);
+
+    /**
+     * Gets every task in the given {@link TaskMerkleTree} buckets. Unlike
+     * {@link #getTasks(LoadTasksCallback)}, empty buckets are reported through
+     * {@link LoadTasksCallback#onTasksLoaded(List)} with an empty list.
+     */
+    void getTasksInTreeBuckets(@NonNull Collection<Integer> buckets,
+                               @NonNull LoadTasksCallback callback);
 }
@@ -16,30 +16,82 @@
 
 package io.demoapp.expensive.data.source;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
+import android.content.ComponentCallbacks2;
+import android.os.CancellationSignal;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+
+import com.google.common.base.Objects;
+import com.google.common.collect.ImmutableList;
 
 import io.demoapp.expensive.data.Task;
 
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Concrete implementation to load tasks from the data sources into a cache.
  * <p>
+ * The repository may be called from any thread. Task lists handed to callbacks are immutable
+ * snapshots of the cache and stay valid after later writes.
+ * <p>
  * For simplicity, this implements a dumb synchronisation between locally persisted data and data
  * obtained from the server, by using the remote data source only if the local database doesn't
- * exist or is empty.
+ * exist or is empty, or a refresh was requested. A refresh only fetches and applies the tasks
+ * that changed on the server since the last sync.
+ * <p>
+ * Writes go to the local data source only, which records each of them in its {@link TaskOutbox}.
+ * The outbox is replayed to the remote data source in the background, and always before a sync,
+ * so that writes made while offline are neither lost nor overwritten by older remote data.
+ * The cache and observers see a write straight away. If the remote later refuses it, the write is
+ * rolled back and reported to {@link #observeWriteFailures(TaskWriteFailureListener)}.
+ * <p>
+ * Every edit stamps the fields it changes with the {@link HybridLogicalClock}, and tasks that
+ * arrive from the remote are merged with the local copy field by field by {@link TaskMerger}, so
+ * concurrent edits on different devices converge without a full refetch. The clock is not
+ * persisted, so it is advanced past the stamps of every task read from storage.
+ * <p>
+ * The repository keeps a {@link TaskMerkleTree} of the tasks in SQLite. When the remote can no
+ * longer send a delta, the two trees are compared level by level and only the buckets that
+ * differ are fetched, instead of every task.
  */
 public class TasksRepository implements TasksDataSource {
 
+    public interface GetOutboxStatsCallback {
+
+        void onOutboxStatsLoaded(TaskOutboxStats stats);
+    }
+
     private static TasksRepository INSTANCE = null;
 
+    /**
+     * How long an id that could not be found anywhere is reported missing without asking the
+     * data sources again.
+     */
+    private static final long MISSING_TASK_TTL_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+    /**
+     * How long single-task writes are held back so that repeated writes to the same task can be
+     * collapsed into one.
+     */
+    private static final long WRITE_BEHIND_WINDOW_MILLIS = 500;
+
     private final TasksDataSource mTasksRemoteDataSource;
 
     private final TasksDataSource mTasksLocalDataSource;
@@ -47,19 +99,117 @@ public class TasksRepository implements TasksDataSource {
     /**
      * This variable has package local visibility so it can be accessed from tests.
      */
-    Map<String, Task> mCachedTasks;
+    final TasksCache mCachedTasks = new TasksCache(Long.MAX_VALUE);
 
     /**
      * Marks the cache as invalid, to force an update the next time data is requested. This variable
      * has package local visibility so it can be accessed from tests.
      */
-    boolean mCacheIsDirty = false;
+    volatile boolean mCacheIsDirty = false;
+
+    private final MissingTaskFilter mMissingTasks = new MissingTaskFilter(MISSING_TASK_TTL_MILLIS);
+
+    /**
+     * When true, a dirty cache is still served immediately and revalidated against the remote
+     * data source in the background. See {@link #enableStaleWhileRevalidate(long, TimeUnit)}.
+     */
+    private volatile boolean mStaleWhileRevalidate = false;
+
+    private volatile long mMaxStalenessMillis;
+
+    /**
+     * When true, a cache miss in {@link #getTask(String, GetTaskCallback)} queries both data
+     * sources at once. See {@link #enableParallelTaskLookups()}.
+     */
+    private volatile boolean mParallelTaskLookups = false;
+
+    /**
+     * {@link SystemClock#elapsedRealtime()} at which the cache was last rebuilt from a data
+     * source.
+     */
+    private volatile long mCacheRefreshedAtMillis;
+
+    /**
+     * Where the cache is persisted between processes, or null to always start from SQLite. See
+     * {@link #setSnapshotStore(TasksSnapshotStore)}.
+     */
+    @Nullable
+    private volatile TasksSnapshotStore mSnapshotStore;
+
+    /**
+     * Set once the first load has had its chance to use the snapshot. A snapshot is only ever
+     * served to the first load after a cold start.
+     */
+    private final AtomicBoolean mSnapshotConsumed = new AtomicBoolean(false);
+
+    private final TaskChangeDispatcher mChangeDispatcher = new TaskChangeDispatcher(this);
+
+    private final HybridLogicalClock mClock = HybridLogicalClock.getInstance();
+
+    /**
+     * Tree of the tasks in SQLite, including single-task writes that are still pending. Invalid
+     * whenever a write's effect on SQLite isn't known here, until the next full load.
+     */
+    private final TaskMerkleTree mTaskTree = new TaskMerkleTree();
+
+    private final TaskOutboxReplayer mOutboxReplayer;
+
+    private final List<TaskWriteFailureListener> mWriteFailureListeners =
+            new CopyOnWriteArrayList<>();
+
+    /**
+     * Single-task writes that have reached the cache but not yet the local data source.
+     */
+    private final TaskWriteBehindQueue mPendingWrites;
+
+    private final Object mPendingLoadsLock = new Object();
+
+    /**
+     * Callbacks waiting on the local load that is currently in flight, if any. A non-empty list
+     * means a load has been issued and every new caller should join it.
+     */
+    private final List<LoadTasksCallback> mPendingLocalLoads = new ArrayList<>();
+
+    /**
+     * Callbacks waiting on the remote load that is currently in flight, if any.
+     */
+    private final List<LoadTasksCallback> mPendingRemoteLoads = new ArrayList<>();
+
+    private int mLocalLoads;
+
+    private int mCoalescedLocalLoads;
+
+    private int mRemoteLoads;
+
+    private int mCoalescedRemoteLoads;
 
     // Prevent direct instantiation.
     private TasksRepository(@NonNull TasksDataSource tasksRemoteDataSource,
-                            @NonNull TasksDataSource tasksLocalDataSource) {
+                            @NonNull TasksDataSource tasksLocalDataSource,
+                            @NonNull TaskOutbox tasksOutbox) {
         mTasksRemoteDataSource = checkNotNull(tasksRemoteDataSource);
         mTasksLocalDataSource = checkNotNull(tasksLocalDataSource);
+        mOutboxReplayer = new TaskOutboxReplayer(mTasksRemoteDataSource, checkNotNull(tasksOutbox),
+                new TaskOutboxReplayer.RejectionListener() {
+                    @Override
+                    public void onTaskWritesRejected(@NonNull List<TaskWrite> rejected) {
+                        rollBackRejectedWrites(rejected);
+                    }
+                });
+        mPendingWrites = new TaskWriteBehindQueue(
+                mTasksLocalDataSource, mOutboxReplayer, WRITE_BEHIND_WINDOW_MILLIS);
+        tasksOutbox.setCommitFailureListener(new TaskOutbox.CommitFailureListener() {
+            @Override
+            public void onWritesFailed(int count) {
+                invalidateAfterFailedWrites();
+            }
+        });
+
+        // Nothing is known about SQLite until the first full load.
+        mTaskTree.invalidate();
+
+        // Send anything left over from a previous process.
+        mOutboxReplayer.replay(null);
     }
 
     /**
@@ -67,28 +217,101 @@ public class TasksRepository implements TasksDataSource {
      *
      * @param tasksRemoteDataSource the backend data source
      * @param tasksLocalDataSource  the device storage data source
+     * @param tasksOutbox           the writes {@code tasksLocalDataSource} has yet to send to
+     *                              {@code tasksRemoteDataSource}
      * @return the {@link TasksRepository} instance
      */
-    public static TasksRepository getInstance(TasksDataSource tasksRemoteDataSource,
-                                              TasksDataSource tasksLocalDataSource) {
+    public static synchronized TasksRepository getInstance(TasksDataSource tasksRemoteDataSource,
+                                                           TasksDataSource tasksLocalDataSource,
+                                                           TaskOutbox tasksOutbox) {
         if (INSTANCE == null) {
-            INSTANCE = new TasksRepository(tasksRemoteDataSource, tasksLocalDataSource);
+            INSTANCE = new TasksRepository(
+                    tasksRemoteDataSource, tasksLocalDataSource, tasksOutbox);
         }
         return INSTANCE;
     }
 
     /**
-     * Used to force {@link #getInstance(TasksDataSource, TasksDataSource)} to create a new instance
-     * next time it's called.
+     * Used to force {@link #getInstance(TasksDataSource, TasksDataSource, TaskOutbox)} to create a
+     * new instance next time it's called.
      */
-    public static void destroyInstance() {
+    public static synchronized void destroyInstance() {
         INSTANCE = null;
     }
 
+    /**
+     * Switches the repository into stale-while-revalidate mode. After {@link #refreshTasks()}, a
+     * request is answered straight away with the cached tasks, or with the SQLite copy if nothing
+     * is cached yet, while the remote data source is queried in the background. The callback is
+     * invoked a second time only if the remote data differs from what was first delivered.
+     * <p>
+     * A cache that was last rebuilt longer than {@code maxStaleness} ago is not served; the
+     * caller waits for the remote data source as usual.
+     */
+    public void enableStaleWhileRevalidate(long maxStaleness, @NonNull TimeUnit unit) {
+        checkNotNull(unit);
+        mMaxStalenessMillis = unit.toMillis(maxStaleness);
+        mStaleWhileRevalidate = true;
+    }
+
+    /**
+     * Restores the default behaviour, where a refresh makes callers wait for the remote data
+     * source.
+     */
+    public void disableStaleWhileRevalidate() {
+        mStaleWhileRevalidate = false;
+    }
+
+    /**
+     * Makes {@link #getTask(String, GetTaskCallback)} query the local and remote data sources at
+     * the same time on a cache miss, instead of asking the remote only after SQLite has missed.
+     * A local hit is answered straight away and cancels the remote request. A remote hit is
+     * answered as soon as SQLite has missed too, since a local copy may hold edits the remote
+     * hasn't seen, and is then stored in SQLite so the next lookup stays local.
+     */
+    public void enableParallelTaskLookups() {
+        mParallelTaskLookups = true;
+    }
+
+    /**
+     * Restores the default behaviour, where the remote data source is only asked for a task once
+     * SQLite has missed.
+     */
+    public void disableParallelTaskLookups() {
+        mParallelTaskLookups = false;
+    }
+
+    /**
+     * Uses {@code snapshotStore} to persist the cache across process restarts. The first
+     * {@link #getTasks(LoadTasksCallback)} after a cold start is answered from the snapshot, if
+     * one is present and intact, and the cache is then reconciled with SQLite; the callback is
+     * invoked a second time only if SQLite disagrees with the snapshot.
+     */
+    public void setSnapshotStore(@Nullable TasksSnapshotStore snapshotStore) {
+        mSnapshotStore = snapshotStore;
+    }
+
+    /**
+     * Writes the cache to the snapshot store, if one is set and the cache holds every task. This
+     * does file I/O and must not be called on the main thread; the application calls it when its
+     * UI goes to the background.
+     */
+    @WorkerThread
+    public void writeSnapshot() {
+        TasksSnapshotStore snapshotStore = mSnapshotStore;
+        if (snapshotStore == null || !mCachedTasks.isComplete() || mCacheIsDirty) {
+            return;
+        }
+        snapshotStore.write(mCachedTasks.getAll());
+    }
+
     /**
      * Gets tasks from cache, local data source (SQLite) or remote data source, whichever is
      * available first.
      * <p>
+     * At most one load per data source is in flight at a time; callers that arrive while one is
+     * running are handed its result instead of starting another.
+     * <p>
      * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if all data sources fail to
      * get the data.
      */
@@ -97,225 +320,1718 @@ public class TasksRepository implements TasksDataSource {
         checkNotNull(callback);
 
         // Respond immediately with cache if available and not dirty
-        if (mCachedTasks != null && !mCacheIsDirty) {
-            callback.onTasksLoaded(new ArrayList<>(mCachedTasks.values()));
+        if (mCachedTasks.isComplete() && !mCacheIsDirty) {
+            callback.onTasksLoaded(mCachedTasks.getAll());
             return;
         }
 
+        if (mCacheIsDirty && mStaleWhileRevalidate) {
+            if (!mCachedTasks.isComplete()) {
+                // Serve whatever SQLite has, then check it against the network.
+                getTasksFromLocalDataSource(new LoadTasksCallback() {
+                    @Override
+                    public void onTasksLoaded(List<Task> tasks) {
+                        callback.onTasksLoaded(tasks);
+                        // The cache is only clean here if SQLite was empty and this callback was
+                        // answered by the network already.
+                        if (mCacheIsDirty) {
+                            revalidateInBackground(tasks, callback);
+                        }
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        callback.onDataNotAvailable();
+                    }
+                });
+                return;
+            }
+            if (SystemClock.elapsedRealtime() - mCacheRefreshedAtMillis <= mMaxStalenessMillis) {
+                List<Task> staleTasks = mCachedTasks.getAll();
+                callback.onTasksLoaded(staleTasks);
+                revalidateInBackground(staleTasks, callback);
+                return;
+            }
+        }
+
         if (mCacheIsDirty) {
             // If the cache is dirty we need to fetch new data from the network.
             getTasksFromRemoteDataSource(callback);
         } else {
-            // Query the local storage if available. If not, query the network.
-            mTasksLocalDataSource.getTasks(new LoadTasksCallback() {
-                @Override
-                public void onTasksLoaded(List<Task> tasks) {
-                    refreshCache(tasks);
-                    callback.onTasksLoaded(new ArrayList<>(mCachedTasks.values()));
-                }
-
+            getTasksFromSnapshot(callback, new Runnable() {
                 @Override
-                public void onDataNotAvailable() {
-                    getTasksFromRemoteDataSource(callback);
+                public void run() {
+                    // Query the local storage if available. If not, query the network.
+                    getTasksFromLocalDataSource(callback);
                 }
             });
         }
     }
 
-    @Override
-    public void saveTask(@NonNull Task task) {
-        checkNotNull(task);
-        mTasksRemoteDataSource.saveTask(task);
-        mTasksLocalDataSource.saveTask(task);
-
-        // Do in memory cache update to keep the app UI up to date
-        if (mCachedTasks == null) {
-            mCachedTasks = new LinkedHashMap<>();
+    /**
+     * Like {@link #getTasks(LoadTasksCallback)}, but when the tasks have to be read from SQLite
+     * they are delivered page by page as they are read, so the first {@code pageSize} tasks can
+     * be shown without waiting for the rest. A task is only delivered once. When the last page
+     * has been read, the cache is filled from the pages. In stale-while-revalidate mode the
+     * pages are then checked against the network, and the whole list is delivered again as a
+     * single page only if it differs.
+     * <p>
+     * Tasks served from the cache, the snapshot or the network arrive as a single page: the
+     * cache and the snapshot are already in memory, and a dirty cache has to wait for the
+     * network anyway unless stale data may be served.
+     */
+    public void streamTasks(final int pageSize, @NonNull final LoadTaskPageCallback callback) {
+        checkArgument(pageSize > 0);
+        checkNotNull(callback);
+        boolean complete = mCachedTasks.isComplete();
+        if (mCacheIsDirty && mStaleWhileRevalidate && !complete) {
+            // Serve whatever SQLite has, then check it against the network.
+            new TaskStream(pageSize, callback, true).readPage(TaskPage.FIRST_PAGE_KEY);
+            return;
+        }
+        if (mCacheIsDirty || complete) {
+            getTasks(asSinglePage(callback));
+            return;
         }
-        mCachedTasks.put(task.getId(), task);
+        getTasksFromSnapshot(asSinglePage(callback), new Runnable() {
+            @Override
+            public void run() {
+                new TaskStream(pageSize, callback, false).readPage(TaskPage.FIRST_PAGE_KEY);
+            }
+        });
     }
 
-    @Override
-    public void completeTask(@NonNull Task task) {
-        checkNotNull(task);
-        mTasksRemoteDataSource.completeTask(task);
-        mTasksLocalDataSource.completeTask(task);
-
-        Task completedTask = new Task(task.getTitle(), task.getDescription(), task.getId(), true);
+    /**
+     * Registers {@code listener} to receive every task and then each change made through this
+     * repository as it happens, instead of reloading the whole list. Changes are coalesced per
+     * task and delivered in batches on the main thread.
+     * <p>
+     * The returned subscription must be disposed when the listener is no longer needed.
+     */
+    @NonNull
+    public TasksSubscription observeTasks(@NonNull TaskChangeListener listener) {
+        return mChangeDispatcher.subscribe(null, listener);
+    }
 
-        // Do in memory cache update to keep the app UI up to date
-        if (mCachedTasks == null) {
-            mCachedTasks = new LinkedHashMap<>();
-        }
-        mCachedTasks.put(task.getId(), completedTask);
+    /**
+     * Like {@link #observeTasks(TaskChangeListener)}, but without loading every task for an
+     * initial snapshot: {@code listener} only hears of changes made after it subscribed. It is
+     * still sent a snapshot when the repository reloads all of its tasks, or when it can't
+     * describe the changes task by task.
+     */
+    @NonNull
+    public TasksSubscription observeTaskChanges(@NonNull TaskChangeListener listener) {
+        return mChangeDispatcher.subscribeToChanges(listener);
     }
 
-    @Override
-    public void completeTask(@NonNull String taskId) {
-        checkNotNull(taskId);
-        completeTask(getTaskWithId(taskId));
+    /**
+     * Like {@link #observeTasks(TaskChangeListener)}, but only for the task with
+     * {@code taskId}. The snapshot is loaded as by {@link #getTask(String, GetTaskCallback)} and
+     * holds the task, or nothing if it doesn't exist.
+     */
+    @NonNull
+    public TasksSubscription observeTask(@NonNull String taskId,
+                                         @NonNull TaskChangeListener listener) {
+        return mChangeDispatcher.subscribe(checkNotNull(taskId), listener);
     }
 
-    @Override
-    public void activateTask(@NonNull Task task) {
-        checkNotNull(task);
-        mTasksRemoteDataSource.activateTask(task);
-        mTasksLocalDataSource.activateTask(task);
+    /**
+     * Registers {@code listener} to be told about every write the remote data source refuses,
+     * once it has been rolled back.
+     * <p>
+     * The returned subscription must be disposed when the listener is no longer needed.
+     */
+    @NonNull
+    public TasksSubscription observeWriteFailures(
+            @NonNull final TaskWriteFailureListener listener) {
+        mWriteFailureListeners.add(checkNotNull(listener));
+        return new TasksSubscription() {
+            private volatile boolean mDisposed = false;
 
-        Task activeTask = new Task(task.getTitle(), task.getDescription(), task.getId());
+            @Override
+            public void dispose() {
+                mDisposed = true;
+                mWriteFailureListeners.remove(listener);
+            }
 
-        // Do in memory cache update to keep the app UI up to date
-        if (mCachedTasks == null) {
-            mCachedTasks = new LinkedHashMap<>();
-        }
-        mCachedTasks.put(task.getId(), activeTask);
+            @Override
+            public boolean isDisposed() {
+                return mDisposed;
+            }
+        };
     }
 
-    @Override
-    public void activateTask(@NonNull String taskId) {
-        checkNotNull(taskId);
-        activateTask(getTaskWithId(taskId));
+    /**
+     * Gets only the active tasks, loading them in the same way as
+     * {@link #getTasks(LoadTasksCallback)}. The filtered list is read from the cache's
+     * completion index rather than by scanning every task, unless tasks have been evicted to
+     * stay within the cache budget.
+     */
+    public void getActiveTasks(@NonNull final LoadTasksCallback callback) {
+        checkNotNull(callback);
+        getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onTasksLoaded(mCachedTasks.isComplete()
+                        ? mCachedTasks.getActive()
+                        : filterByCompletion(tasks, false));
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        });
     }
 
-    @Override
-    public void clearCompletedTasks() {
-        mTasksRemoteDataSource.clearCompletedTasks();
-        mTasksLocalDataSource.clearCompletedTasks();
+    /**
+     * Gets only the completed tasks. See {@link #getActiveTasks(LoadTasksCallback)}.
+     */
+    public void getCompletedTasks(@NonNull final LoadTasksCallback callback) {
+        checkNotNull(callback);
+        getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onTasksLoaded(mCachedTasks.isComplete()
+                        ? mCachedTasks.getCompleted()
+                        : filterByCompletion(tasks, true));
+            }
 
-        // Do in memory cache update to keep the app UI up to date
-        if (mCachedTasks == null) {
-            mCachedTasks = new LinkedHashMap<>();
-        }
-        Iterator<Map.Entry<String, Task>> it = mCachedTasks.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Task> entry = it.next();
-            if (entry.getValue().isCompleted()) {
-                it.remove();
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
             }
-        }
+        });
     }
 
     /**
-     * Gets tasks from local data source (sqlite) unless the table is new or empty. In that case it
-     * uses the network data source. This is done to simplify the sample.
-     * <p>
-     * Note: {@link GetTaskCallback#onDataNotAvailable()} is fired if both data sources fail to
-     * get the data.
+     * Gets the number of active and completed tasks without loading any. Once the cache holds
+     * every task the counts are read straight from the counters of its completion index, which
+     * are kept up to date as tasks change. Otherwise the local data source counts them with one
+     * query, after flushing pending writes. Counting only loads tasks if SQLite has none, in
+     * which case they are loaded as by {@link #getTasks(LoadTasksCallback)}, from the network if
+     * need be, and then counted. Otherwise it doesn't sync with the remote data source, even if
+     * the cache is dirty; a sync started elsewhere reaches the counts through
+     * {@link #observeTaskChanges}.
      */
     @Override
-    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
-        checkNotNull(taskId);
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
         checkNotNull(callback);
-
-        Task cachedTask = getTaskWithId(taskId);
-
-        // Respond immediately with cache if available
-        if (cachedTask != null) {
-            callback.onTaskLoaded(cachedTask);
+        if (mCachedTasks.isComplete()) {
+            callback.onTaskCountsLoaded(TaskCounts.create(
+                    mCachedTasks.activeCount(), mCachedTasks.completedCount()));
             return;
         }
 
-        // Load from server/persisted if needed.
-
-        // Is the task in the local data source? If not, query the network.
-        mTasksLocalDataSource.getTask(taskId, new GetTaskCallback() {
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTaskCounts(new GetTaskCountsCallback() {
             @Override
-            public void onTaskLoaded(Task task) {
-                // Do in memory cache update to keep the app UI up to date
-                if (mCachedTasks == null) {
-                    mCachedTasks = new LinkedHashMap<>();
-                }
-                mCachedTasks.put(task.getId(), task);
-                callback.onTaskLoaded(task);
+            public void onTaskCountsLoaded(TaskCounts counts) {
+                callback.onTaskCountsLoaded(counts);
             }
 
             @Override
             public void onDataNotAvailable() {
-                mTasksRemoteDataSource.getTask(taskId, new GetTaskCallback() {
+                // There are no tasks on the device yet, as on first launch. Like the list, the
+                // counts then come from the network.
+                getTasks(new LoadTasksCallback() {
                     @Override
-                    public void onTaskLoaded(Task task) {
-                        // Do in memory cache update to keep the app UI up to date
-                        if (mCachedTasks == null) {
-                            mCachedTasks = new LinkedHashMap<>();
-                        }
-                        mCachedTasks.put(task.getId(), task);
-                        callback.onTaskLoaded(task);
+                    public void onTasksLoaded(List<Task> tasks) {
+                        int completed = filterByCompletion(tasks, true).size();
+                        callback.onTaskCountsLoaded(
+                                TaskCounts.create(tasks.size() - completed, completed));
                     }
 
                     @Override
                     public void onDataNotAvailable() {
-                        callback.onDataNotAvailable();
+                        callback.onTaskCountsLoaded(TaskCounts.create(0, 0));
                     }
                 });
             }
         });
     }
 
-    @Override
-    public void refreshTasks() {
-        mCacheIsDirty = true;
+    /**
+     * Limits the estimated heap used by cached tasks. When the budget is exceeded the least
+     * recently used tasks are evicted; lookups that miss fall back to the local data source.
+     */
+    public void setCacheBudget(long maxSizeBytes) {
+        mCachedTasks.setMaxSizeBytes(maxSizeBytes);
     }
 
-    @Override
-    public void deleteAllTasks() {
-        mTasksRemoteDataSource.deleteAllTasks();
-        mTasksLocalDataSource.deleteAllTasks();
+    /**
+     * Shrinks the cache in response to
+     * {@link ComponentCallbacks2#onTrimMemory(int) onTrimMemory}. The harder the system is
+     * pressed for memory, the more is evicted; once the process is about to be killed everything
+     * goes.
+     */
+    public void trimMemory(int level) {
+        long sizeBytes = mCachedTasks.getStats().sizeBytes();
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            mCachedTasks.trimToSize(0);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+            mCachedTasks.trimToSize(sizeBytes / 4);
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+                || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+            mCachedTasks.trimToSize(sizeBytes / 2);
+        }
+    }
+
+    /**
+     * Returns hit, miss and eviction counts and the current size of the task cache.
+     */
+    @NonNull
+    public TaskCacheStats getCacheStats() {
+        return mCachedTasks.getStats();
+    }
 
-        if (mCachedTasks == null) {
-            mCachedTasks = new LinkedHashMap<>();
+    /**
+     * Returns counters for the loads issued to each data source and for the callers that were
+     * coalesced onto a load already in flight.
+     */
+    @NonNull
+    public TaskLoadStats getLoadStats() {
+        synchronized (mPendingLoadsLock) {
+            return TaskLoadStats.create(
+                    mLocalLoads,
+                    mCoalescedLocalLoads,
+                    mRemoteLoads,
+                    mCoalescedRemoteLoads);
         }
-        mCachedTasks.clear();
     }
 
+    /**
+     * Writes every pending single-task write to the local data source before returning. Call this
+     * before the process may be killed, and in tests that inspect the data sources. Writes reach
+     * the remote data source later, through the outbox.
+     */
+    public void flush() {
+        mPendingWrites.flush();
+    }
+
+    /**
+     * Gets counters describing how the outbox is draining to the remote data source. The outbox
+     * is read off the main thread and {@code callback} is invoked on it.
+     */
+    public void getOutboxStats(@NonNull GetOutboxStatsCallback callback) {
+        mOutboxReplayer.getStats(callback);
+    }
+
+    /**
+     * Pages straight through the local data source, bypassing the cache. See
+     * {@link #streamTasks(int, LoadTaskPageCallback)}.
+     */
     @Override
-    public void deleteTask(@NonNull String taskId) {
-        mTasksRemoteDataSource.deleteTask(checkNotNull(taskId));
-        mTasksLocalDataSource.deleteTask(checkNotNull(taskId));
+    public void getTaskPage(long pageKey, int pageSize, @NonNull LoadTaskPageCallback callback) {
+        checkNotNull(callback);
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTaskPage(pageKey, pageSize, callback);
+    }
 
-        mCachedTasks.remove(taskId);
+    /**
+     * Searches the local data source's full-text index, bypassing the cache. Pending writes are
+     * flushed first so that the results reflect them.
+     */
+    @Override
+    public void searchTasks(@NonNull String query, @NonNull LoadTasksCallback callback) {
+        checkNotNull(query);
+        checkNotNull(callback);
+        mPendingWrites.flush();
+        mTasksLocalDataSource.searchTasks(query, callback);
     }
 
-    private void getTasksFromRemoteDataSource(@NonNull final LoadTasksCallback callback) {
-        mTasksRemoteDataSource.getTasks(new LoadTasksCallback() {
+    /**
+     * The cache is updated immediately; the local data source is written after a short delay,
+     * together with any other pending single-task writes. See {@link #flush()}.
+     * <p>
+     * A task that may have been evicted from the cache is first read back from the local data
+     * source, so that only the fields that actually changed get new clock stamps. The cache is
+     * then updated once that read completes.
+     */
+    @Override
+    public void saveTask(@NonNull final Task task) {
+        checkNotNull(task);
+        if (!mayBeEvicted(task.getId())) {
+            saveStampedTask(mCachedTasks.peek(task.getId()), task);
+            return;
+        }
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTask(task.getId(), new GetTaskCallback() {
             @Override
-            public void onTasksLoaded(List<Task> tasks) {
-                refreshCache(tasks);
-                refreshLocalDataSource(tasks);
-                callback.onTasksLoaded(new ArrayList<>(mCachedTasks.values()));
+            public void onTaskLoaded(Task stored) {
+                Task cached = mCachedTasks.peek(task.getId());
+                saveStampedTask(cached != null ? cached : stored, task);
             }
 
             @Override
             public void onDataNotAvailable() {
-                callback.onDataNotAvailable();
+                saveStampedTask(mCachedTasks.peek(task.getId()), task);
             }
         });
     }
 
-    private void refreshCache(List<Task> tasks) {
-        if (mCachedTasks == null) {
-            mCachedTasks = new LinkedHashMap<>();
-        }
-        mCachedTasks.clear();
-        for (Task task : tasks) {
-            mCachedTasks.put(task.getId(), task);
+    private void saveStampedTask(@Nullable Task previous, @NonNull Task task) {
+        task = stampEdits(previous, task);
+        mPendingWrites.save(task);
+
+        boolean existed = previous != null;
+
+        // Do in memory cache update to keep the app UI up to date
+        mCachedTasks.put(task);
+        mTaskTree.put(task);
+        mMissingTasks.recordPresent(task.getId());
+        mChangeDispatcher.dispatch(existed ? TaskChange.update(task) : TaskChange.insert(task));
+    }
+
+    /**
+     * Tasks that may have been evicted from the cache are first read back from the local data
+     * source, as for {@link #saveTask(Task)}.
+     */
+    @Override
+    public void saveTasks(@NonNull final List<Task> tasks) {
+        checkNotNull(tasks);
+        List<String> evictedIds = new ArrayList<>();
+        for (Task task : tasks) {
+            if (mayBeEvicted(task.getId())) {
+                evictedIds.add(task.getId());
+            }
+        }
+        if (evictedIds.isEmpty()) {
+            saveStampedTasks(Collections.<String, Task>emptyMap(), tasks);
+            return;
+        }
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTasks(evictedIds, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> stored) {
+                Map<String, Task> storedById = new HashMap<>(stored.size());
+                for (Task task : stored) {
+                    storedById.put(task.getId(), task);
+                }
+                saveStampedTasks(storedById, tasks);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                saveStampedTasks(Collections.<String, Task>emptyMap(), tasks);
+            }
+        });
+    }
+
+    /**
+     * Stamps and saves {@code tasks}, comparing each with its cached copy or else its copy in
+     * {@code stored}.
+     */
+    private void saveStampedTasks(@NonNull Map<String, Task> stored, @NonNull List<Task> tasks) {
+        List<Task> stamped = new ArrayList<>(tasks.size());
+        List<TaskChange> changes = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            Task previous = mCachedTasks.peek(task.getId());
+            if (previous == null) {
+                previous = stored.get(task.getId());
+            }
+            Task stampedTask = stampEdits(previous, task);
+            stamped.add(stampedTask);
+            if (mChangeDispatcher.hasSubscribers()) {
+                changes.add(previous != null
+                        ? TaskChange.update(stampedTask)
+                        : TaskChange.insert(stampedTask));
+            }
+        }
+        tasks = stamped;
+        mPendingWrites.flush();
+        mTasksLocalDataSource.saveTasks(tasks);
+        mOutboxReplayer.replay(null);
+
+        // Do in memory cache update to keep the app UI up to date
+        mCachedTasks.putAll(tasks);
+        for (Task task : tasks) {
+            mTaskTree.put(task);
+            mMissingTasks.recordPresent(task.getId());
+        }
+        mChangeDispatcher.dispatchAll(changes);
+    }
+
+    /**
+     * Written behind, like {@link #saveTask(Task)}.
+     */
+    @Override
+    public void completeTask(@NonNull Task task) {
+        checkNotNull(task);
+        mClock.update(TaskMerger.latestStamp(task));
+        Task completedTask = task.withCompleted(true, mClock.now());
+        mPendingWrites.save(completedTask);
+
+        // Do in memory cache update to keep the app UI up to date
+        mCachedTasks.put(completedTask);
+        mTaskTree.put(completedTask);
+        mChangeDispatcher.dispatch(TaskChange.update(completedTask));
+    }
+
+    /**
+     * Falls back to the local data source if the task has been evicted from the cache. Does
+     * nothing if the task doesn't exist.
+     */
+    @Override
+    public void completeTask(@NonNull String taskId) {
+        checkNotNull(taskId);
+        getTaskForUpdate(taskId, new GetTaskCallback() {
+            @Override
+            public void onTaskLoaded(Task task) {
+                completeTask(task);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // The task was deleted; there is nothing to complete.
+            }
+        });
+    }
+
+    /**
+     * Written behind, like {@link #saveTask(Task)}.
+     */
+    @Override
+    public void activateTask(@NonNull Task task) {
+        checkNotNull(task);
+        mClock.update(TaskMerger.latestStamp(task));
+        Task activeTask = task.withCompleted(false, mClock.now());
+        mPendingWrites.save(activeTask);
+
+        // Do in memory cache update to keep the app UI up to date
+        mCachedTasks.put(activeTask);
+        mTaskTree.put(activeTask);
+        mChangeDispatcher.dispatch(TaskChange.update(activeTask));
+    }
+
+    /**
+     * Falls back to the local data source if the task has been evicted from the cache. Does
+     * nothing if the task doesn't exist.
+     */
+    @Override
+    public void activateTask(@NonNull String taskId) {
+        checkNotNull(taskId);
+        getTaskForUpdate(taskId, new GetTaskCallback() {
+            @Override
+            public void onTaskLoaded(Task task) {
+                activateTask(task);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // The task was deleted; there is nothing to activate.
+            }
+        });
+    }
+
+    @Override
+    public void clearCompletedTasks() {
+        mPendingWrites.flush();
+        mTasksLocalDataSource.clearCompletedTasks();
+        mOutboxReplayer.replay(null);
+
+        // Do in memory cache update to keep the app UI up to date
+        boolean cacheWasComplete = mCachedTasks.isComplete();
+        List<Task> cleared = mCachedTasks.getCompleted();
+        for (Task task : cleared) {
+            mTaskTree.remove(task.getId());
+            mMissingTasks.recordMissing(task.getId());
+        }
+        mCachedTasks.removeCompleted();
+        if (!cacheWasComplete) {
+            mTaskTree.invalidate();
+        }
+
+        if (cacheWasComplete) {
+            List<TaskChange> changes = new ArrayList<>(cleared.size());
+            for (Task task : cleared) {
+                changes.add(TaskChange.delete(task.getId()));
+            }
+            mChangeDispatcher.dispatchAll(changes);
+        } else {
+            // Completed tasks that were evicted from the cache are gone too, but there's no
+            // record of which they were.
+            mChangeDispatcher.invalidate();
+        }
+    }
+
+    /**
+     * Gets tasks from local data source (sqlite) unless the table is new or empty. In that case it
+     * uses the network data source. This is done to simplify the sample.
+     * <p>
+     * Ids that are known not to exist, because they were never seen in the last full load or
+     * were recently looked up in vain, are reported as unavailable without querying either data
+     * source.
+     * <p>
+     * The task is always delivered with the whole of its description. A cached copy that was
+     * loaded for the list only has the start of it, so the task is loaded again and the cache
+     * updated.
+     * <p>
+     * Note: {@link GetTaskCallback#onDataNotAvailable()} is fired if both data sources fail to
+     * get the data.
+     */
+    @Override
+    public void getTask(@NonNull final String taskId, @NonNull final GetTaskCallback callback) {
+        checkNotNull(taskId);
+        checkNotNull(callback);
+
+        Task cachedTask = getTaskWithId(taskId);
+
+        // Respond immediately with cache if available
+        if (cachedTask != null && cachedTask.isDescriptionLoaded()) {
+            callback.onTaskLoaded(cachedTask);
+            return;
+        }
+
+        // Fail fast for ids that are known not to exist anywhere, such as stale deep links.
+        if (mMissingTasks.isKnownMissing(taskId)) {
+            callback.onDataNotAvailable();
+            return;
+        }
+
+        // Load from server/persisted if needed.
+
+        mPendingWrites.flush();
+        if (mParallelTaskLookups) {
+            new ParallelTaskLookup(taskId, callback).start();
+            return;
+        }
+
+        // Is the task in the local data source? If not, query the network.
+        mTasksLocalDataSource.getTask(taskId, new GetTaskCallback() {
+            @Override
+            public void onTaskLoaded(Task task) {
+                // Do in memory cache update to keep the app UI up to date
+                mCachedTasks.put(task);
+                mMissingTasks.recordPresent(task.getId());
+                callback.onTaskLoaded(task);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                mTasksRemoteDataSource.getTask(taskId, new GetTaskCallback() {
+                    @Override
+                    public void onTaskLoaded(Task task) {
+                        // Do in memory cache update to keep the app UI up to date
+                        mCachedTasks.put(task);
+                        mMissingTasks.recordPresent(task.getId());
+                        callback.onTaskLoaded(task);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        mMissingTasks.recordMissing(taskId);
+                        callback.onDataNotAvailable();
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * The lookup itself isn't interrupted by {@code cancellationSignal}, but {@code callback} is
+     * not invoked once it has been cancelled.
+     */
+    @Override
+    public void getTask(@NonNull String taskId,
+                        @Nullable final CancellationSignal cancellationSignal,
+                        @NonNull final GetTaskCallback callback) {
+        checkNotNull(callback);
+        if (cancellationSignal == null) {
+            getTask(taskId, callback);
+            return;
+        }
+        getTask(taskId, new GetTaskCallback() {
+            @Override
+            public void onTaskLoaded(Task task) {
+                if (!cancellationSignal.isCanceled()) {
+                    callback.onTaskLoaded(task);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (!cancellationSignal.isCanceled()) {
+                    callback.onDataNotAvailable();
+                }
+            }
+        });
+    }
+
+    /**
+     * Answers cache hits straight away, then looks the remaining ids up in the local data source
+     * and whatever is still missing in the remote one, with one batch per data source. Ids that
+     * are known not to exist are skipped. The tasks are delivered in the order of
+     * {@code taskIds}. As with {@link #getTask(String, GetTaskCallback)}, cached tasks without
+     * the whole of their description are loaded again.
+     * <p>
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if none of the tasks can be
+     * found.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         @NonNull final LoadTasksCallback callback) {
+        checkNotNull(taskIds);
+        checkNotNull(callback);
+
+        final List<String> requestedIds = ImmutableList.copyOf(new LinkedHashSet<>(taskIds));
+        final Map<String, Task> found = new HashMap<>();
+        final List<String> misses = new ArrayList<>();
+        for (String taskId : requestedIds) {
+            Task cachedTask = getTaskWithId(taskId);
+            if (cachedTask != null && cachedTask.isDescriptionLoaded()) {
+                found.put(taskId, cachedTask);
+            } else if (!mMissingTasks.isKnownMissing(taskId)) {
+                misses.add(taskId);
+            }
+        }
+        if (misses.isEmpty()) {
+            deliverTasks(requestedIds, found, callback);
+            return;
+        }
+
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTasks(misses, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                cacheLoadedTasks(tasks, found);
+                getRemainingTasksFromRemoteDataSource();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                getRemainingTasksFromRemoteDataSource();
+            }
+
+            private void getRemainingTasksFromRemoteDataSource() {
+                final List<String> remaining = new ArrayList<>();
+                for (String taskId : misses) {
+                    if (!found.containsKey(taskId)) {
+                        remaining.add(taskId);
+                    }
+                }
+                if (remaining.isEmpty()) {
+                    deliverTasks(requestedIds, found, callback);
+                    return;
+                }
+                mTasksRemoteDataSource.getTasks(remaining, new LoadTasksCallback() {
+                    @Override
+                    public void onTasksLoaded(List<Task> tasks) {
+                        cacheLoadedTasks(tasks, found);
+                        for (String taskId : remaining) {
+                            if (!found.containsKey(taskId)) {
+                                mMissingTasks.recordMissing(taskId);
+                            }
+                        }
+                        deliverTasks(requestedIds, found, callback);
+                    }
+
+                    @Override
+                    public void onDataNotAvailable() {
+                        for (String taskId : remaining) {
+                            mMissingTasks.recordMissing(taskId);
+                        }
+                        deliverTasks(requestedIds, found, callback);
+                    }
+                });
+            }
+        });
+    }
+
+    @Override
+    public void refreshTasks() {
+        mCacheIsDirty = true;
+        // The remote may have gained tasks since the known ids were collected.
+        mMissingTasks.invalidateKnownIds();
+    }
+
+    @Override
+    public void deleteAllTasks() {
+        mPendingWrites.flush();
+        mTasksLocalDataSource.deleteAllTasks();
+        mOutboxReplayer.replay(null);
+
+        mCachedTasks.clear();
+        mTaskTree.clear();
+        mMissingTasks.rebuild(ImmutableList.<Task>of());
+        TasksSnapshotStore snapshotStore = mSnapshotStore;
+        if (snapshotStore != null) {
+            // Otherwise the next cold start would briefly show the deleted tasks again.
+            snapshotStore.delete();
+        }
+        mChangeDispatcher.dispatchSnapshot(ImmutableList.<Task>of());
+    }
+
+    /**
+     * Written behind, like {@link #saveTask(Task)}.
+     */
+    @Override
+    public void deleteTask(@NonNull String taskId) {
+        mPendingWrites.delete(checkNotNull(taskId));
+
+        mCachedTasks.remove(taskId);
+        mTaskTree.remove(taskId);
+        mMissingTasks.recordMissing(taskId);
+        mChangeDispatcher.dispatch(TaskChange.delete(taskId));
+    }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds);
+        mPendingWrites.flush();
+        mTasksLocalDataSource.deleteTasks(taskIds);
+        mOutboxReplayer.replay(null);
+
+        mCachedTasks.removeAll(taskIds);
+        List<TaskChange> changes = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            mTaskTree.remove(taskId);
+            mMissingTasks.recordMissing(taskId);
+            changes.add(TaskChange.delete(taskId));
+        }
+        mChangeDispatcher.dispatchAll(changes);
+    }
+
+    /**
+     * Like {@link #updateCompletion(Collection, boolean, long)}, stamping the change with the
+     * repository's clock.
+     */
+    public void updateCompletion(@NonNull Collection<String> taskIds, boolean completed) {
+        updateCompletion(taskIds, completed, mClock.now());
+    }
+
+    @Override
+    public void updateCompletion(@NonNull Collection<String> taskIds, boolean completed,
+                                 long completedStamp) {
+        checkNotNull(taskIds);
+        mPendingWrites.flush();
+        mTasksLocalDataSource.updateCompletion(taskIds, completed, completedStamp);
+        mOutboxReplayer.replay(null);
+
+        // Do in memory cache update to keep the app UI up to date
+        // The cache takes the same stamp as SQLite, so that the task tree built from it matches
+        // the one built from SQLite.
+        mCachedTasks.setCompleted(taskIds, completed, completedStamp);
+        for (String taskId : taskIds) {
+            Task task = mCachedTasks.peek(taskId);
+            if (task == null) {
+                mTaskTree.invalidate();
+                break;
+            }
+            mTaskTree.put(task);
+        }
+
+        if (!mChangeDispatcher.hasSubscribers()) {
+            return;
+        }
+        List<TaskChange> changes = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            Task task = mCachedTasks.peek(taskId);
+            if (task == null) {
+                // The new state of an uncached task isn't known here, so listeners have to
+                // reload.
+                mChangeDispatcher.invalidate();
+                return;
+            }
+            changes.add(TaskChange.update(task));
+        }
+        mChangeDispatcher.dispatchAll(changes);
+    }
+
+    /**
+     * Not required because the {@link TasksRepository} fetches deltas from the remote data
+     * source itself when its cache is refreshed.
+     */
+    @Override
+    public void getTaskDelta(long syncToken, @NonNull GetTaskDeltaCallback callback) {
+        checkNotNull(callback);
+        callback.onDataNotAvailable();
+    }
+
+    /**
+     * Applies a delta from the remote data source to SQLite and then to the cache, touching only
+     * the tasks it names. A full snapshot replaces everything. Changed tasks are merged with the
+     * local copies, so that local edits the remote has not seen yet survive.
+     */
+    @Override
+    public void applyTaskDelta(@NonNull TaskDelta delta) {
+        checkNotNull(delta);
+        mPendingWrites.flush();
+        mTasksLocalDataSource.applyTaskDelta(delta);
+
+        // SQLite merged the same way, and it held the same copies as the cache once the pending
+        // writes were flushed.
+        delta = mergeWithCache(delta);
+        boolean cacheWasComplete = mCachedTasks.isComplete();
+        if (delta.isFullSnapshot()) {
+            refreshCache(delta.changed(), true);
+            if (!cacheWasComplete) {
+                mTaskTree.invalidate();
+            }
+            return;
+        }
+
+        List<TaskChange> changes =
+                new ArrayList<>(delta.changed().size() + delta.deletedIds().size());
+        if (mChangeDispatcher.hasSubscribers()) {
+            for (Task task : delta.changed()) {
+                changes.add(mCachedTasks.peek(task.getId()) != null
+                        ? TaskChange.update(task)
+                        : TaskChange.insert(task));
+            }
+            for (String taskId : delta.deletedIds()) {
+                changes.add(TaskChange.delete(taskId));
+            }
+        }
+
+        // An incomplete cache is reloaded from SQLite by the caller, but the entries it does hold
+        // must not go stale in the meantime. Tasks it doesn't hold may have been merged with
+        // SQLite differently, so they are left to that reload.
+        if (cacheWasComplete) {
+            mCachedTasks.putAll(delta.changed());
+            for (Task task : delta.changed()) {
+                mTaskTree.put(task);
+            }
+        } else {
+            List<Task> cached = new ArrayList<>();
+            for (Task task : delta.changed()) {
+                if (mCachedTasks.peek(task.getId()) != null) {
+                    cached.add(task);
+                }
+            }
+            mCachedTasks.putAll(cached);
+            if (cached.size() < delta.changed().size()) {
+                mTaskTree.invalidate();
+            }
+            for (Task task : cached) {
+                mTaskTree.put(task);
+            }
+        }
+        mCachedTasks.removeAll(delta.deletedIds());
+        for (String taskId : delta.deletedIds()) {
+            mTaskTree.remove(taskId);
+        }
+        // The cache may have been filled from SQLite alone, so it can't stand in for every id
+        // the remote knows; only the ids the delta names are updated.
+        for (Task task : delta.changed()) {
+            mMissingTasks.recordPresent(task.getId());
+        }
+        for (String taskId : delta.deletedIds()) {
+            mMissingTasks.recordMissing(taskId);
+        }
+        mCacheRefreshedAtMillis = SystemClock.elapsedRealtime();
+        mChangeDispatcher.dispatchAll(changes);
+    }
+
+    @Override
+    public void getSyncToken(@NonNull GetSyncTokenCallback callback) {
+        checkNotNull(callback);
+        mTasksLocalDataSource.getSyncToken(callback);
+    }
+
+    /**
+     * Not required because the {@link TasksRepository} pushes writes to the remote data source
+     * itself, from the outbox.
+     */
+    @Override
+    public void pushTaskWrites(@NonNull List<TaskWrite> writes,
+                               @NonNull PushTaskWritesCallback callback) {
+        checkNotNull(callback);
+        callback.onDataNotAvailable();
+    }
+
+    /**
+     * Not required because the {@link TasksRepository} compares its own tree of the local tasks
+     * with the remote data source's.
+     */
+    @Override
+    public void getTaskTreeHashes(@NonNull List<Integer> nodes,
+                                  @NonNull GetTaskTreeHashesCallback callback) {
+        checkNotNull(callback);
+        callback.onDataNotAvailable();
+    }
+
+    /**
+     * Not required because the {@link TasksRepository} compares its own tree of the local tasks
+     * with the remote data source's.
+     */
+    @Override
+    public void getTasksInTreeBuckets(@NonNull Collection<Integer> buckets,
+                                      @NonNull LoadTasksCallback callback) {
+        checkNotNull(callback);
+        callback.onDataNotAvailable();
+    }
+
+    /**
+     * Returns {@code task} with a new clock stamp on each field that differs from
+     * {@code previous}. Without a previous copy, which callers look for in the local data source
+     * as well as the cache, the task is new and every field is treated as edited. A task without
+     * the whole of its description can't have edited it; one with it is treated as having
+     * edited it if the previous copy doesn't have all of it.
+     */
+    @NonNull
+    private Task stampEdits(@Nullable Task previous, @NonNull Task task) {
+        if (previous != null) {
+            mClock.update(TaskMerger.latestStamp(previous));
+        }
+        long now = mClock.now();
+        boolean titleEdited = previous == null
+                || !Objects.equal(previous.getTitle(), task.getTitle());
+        boolean descriptionEdited = previous == null
+                || (task.isDescriptionLoaded() && (!previous.isDescriptionLoaded()
+                        || !Objects.equal(previous.getDescription(), task.getDescription())));
+        boolean completedEdited = previous == null
+                || previous.isCompleted() != task.isCompleted();
+        return new Task(task.getTitle(), task.getDescription(), task.getId(),
+                task.isCompleted(),
+                previous == null ? task.getVersion() : previous.getVersion(),
+                titleEdited ? now : previous.getTitleStamp(),
+                descriptionEdited ? now : previous.getDescriptionStamp(),
+                completedEdited ? now : previous.getCompletedStamp(),
+                task.isDescriptionLoaded());
+    }
+
+    /**
+     * Merges each task in {@code delta} with its cached copy, if any, and advances the clock past
+     * every stamp the remote sent.
+     */
+    @NonNull
+    private TaskDelta mergeWithCache(@NonNull TaskDelta delta) {
+        List<Task> merged = new ArrayList<>(delta.changed().size());
+        for (Task task : delta.changed()) {
+            mClock.update(TaskMerger.latestStamp(task));
+            Task cached = mCachedTasks.peek(task.getId());
+            merged.add(cached == null ? task : TaskMerger.merge(cached, task));
+        }
+        return delta.isFullSnapshot()
+                ? TaskDelta.createFullSnapshot(merged, delta.syncToken())
+                : TaskDelta.create(merged, delta.deletedIds(), delta.syncToken());
+    }
+
+    private void getTasksFromLocalDataSource(@NonNull LoadTasksCallback callback) {
+        synchronized (mPendingLoadsLock) {
+            mPendingLocalLoads.add(callback);
+            if (mPendingLocalLoads.size() > 1) {
+                mCoalescedLocalLoads++;
+                return;
+            }
+            mLocalLoads++;
+        }
+
+        loadTasksFromLocalDataSource(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                List<Task> loaded = refreshCache(tasks, false);
+                for (LoadTasksCallback waiting : drainPendingLoads(mPendingLocalLoads)) {
+                    waiting.onTasksLoaded(loaded);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // Every waiting caller falls through to the network, where they are coalesced
+                // again onto a single remote load.
+                for (LoadTasksCallback waiting : drainPendingLoads(mPendingLocalLoads)) {
+                    getTasksFromRemoteDataSource(waiting);
+                }
+            }
+        });
+    }
+
+    /**
+     * Loads every task from SQLite, for replacing the cache with. The load replaces the cache, so
+     * SQLite must first catch up with it: pending writes are flushed, and the load is repeated if
+     * more were queued while it was in flight.
+     */
+    private void loadTasksFromLocalDataSource(@NonNull final LoadTasksCallback callback) {
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTasks(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                if (!mPendingWrites.isEmpty()) {
+                    loadTasksFromLocalDataSource(callback);
+                    return;
+                }
+                callback.onTasksLoaded(tasks);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (!mPendingWrites.isEmpty()) {
+                    loadTasksFromLocalDataSource(callback);
+                    return;
+                }
+                callback.onDataNotAvailable();
+            }
+        });
+    }
+
+    private void getTasksFromRemoteDataSource(@NonNull LoadTasksCallback callback) {
+        synchronized (mPendingLoadsLock) {
+            mPendingRemoteLoads.add(callback);
+            if (mPendingRemoteLoads.size() > 1) {
+                mCoalescedRemoteLoads++;
+                return;
+            }
+            mRemoteLoads++;
+        }
+
+        // Local writes go out first, so that the sync can't bring back what they replaced.
+        mPendingWrites.flush();
+        mOutboxReplayer.replay(new TaskOutboxReplayer.ReplayCallback() {
+            @Override
+            public void onReplayed() {
+                mTasksLocalDataSource.getSyncToken(new GetSyncTokenCallback() {
+                    @Override
+                    public void onSyncTokenLoaded(long syncToken) {
+                        syncFromRemoteDataSource(syncToken);
+                    }
+                });
+            }
+
+            @Override
+            public void onReplayFailed() {
+                failRemoteLoad();
+            }
+        });
+    }
+
+    /**
+     * Fetches what changed remotely since {@code syncToken}, applies it to SQLite and the cache,
+     * and hands the resulting tasks to every caller waiting on the remote load. Falls back to
+     * comparing task trees if the token has expired.
+     */
+    private void syncFromRemoteDataSource(long syncToken) {
+        mTasksRemoteDataSource.getTaskDelta(syncToken, new GetTaskDeltaCallback() {
+            @Override
+            public void onTaskDeltaLoaded(TaskDelta delta) {
+                applyRemoteDelta(delta);
+            }
+
+            @Override
+            public void onSyncTokenExpired() {
+                reconcileWithRemoteDataSource();
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                failRemoteLoad();
+            }
+        });
+    }
+
+    /**
+     * Brings SQLite in line with the remote data source by comparing their task trees, for when
+     * there is no usable sync token. Needs the tree of SQLite, so first loads it in full if the
+     * tree is not valid.
+     */
+    private void reconcileWithRemoteDataSource() {
+        if (mTaskTree.isValid()) {
+            compareTaskTrees(Collections.singletonList(TaskMerkleTree.ROOT), 0);
+            return;
+        }
+        loadTasksFromLocalDataSource(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                refreshCache(tasks, false);
+                compareTaskTrees(Collections.singletonList(TaskMerkleTree.ROOT), 0);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                refreshCache(ImmutableList.<Task>of(), false);
+                compareTaskTrees(Collections.singletonList(TaskMerkleTree.ROOT), 0);
+            }
+        });
+    }
+
+    /**
+     * Compares one level of the task trees, at {@code nodes}, and descends into the nodes that
+     * differ. {@code syncToken} is the remote's token when the root was compared, or 0 before
+     * that; changes made after it are picked up by the next delta sync.
+     */
+    private void compareTaskTrees(@NonNull final List<Integer> nodes, final long syncToken) {
+        mTasksRemoteDataSource.getTaskTreeHashes(nodes, new GetTaskTreeHashesCallback() {
+            @Override
+            public void onTaskTreeHashesLoaded(long[] remoteHashes, long remoteSyncToken) {
+                long token = syncToken != 0 ? syncToken : remoteSyncToken;
+                long[] localHashes = mTaskTree.getHashes(nodes);
+                List<Integer> differing = new ArrayList<>();
+                List<Integer> differingBuckets = new ArrayList<>();
+                for (int i = 0; i < nodes.size(); i++) {
+                    if (localHashes[i] == remoteHashes[i]) {
+                        continue;
+                    }
+                    int node = nodes.get(i);
+                    if (TaskMerkleTree.isBucketNode(node)) {
+                        differingBuckets.add(TaskMerkleTree.bucketOfNode(node));
+                    } else {
+                        int firstChild = TaskMerkleTree.firstChildOf(node);
+                        for (int child = 0; child < TaskMerkleTree.FAN_OUT; child++) {
+                            differing.add(firstChild + child);
+                        }
+                    }
+                }
+                if (!differing.isEmpty()) {
+                    compareTaskTrees(differing, token);
+                } else {
+                    repairTaskTreeBuckets(differingBuckets, token);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                failRemoteLoad();
+            }
+        });
+    }
+
+    /**
+     * Replaces the tasks in {@code buckets} with the remote's copies, merged with the local ones.
+     */
+    private void repairTaskTreeBuckets(@NonNull final List<Integer> buckets,
+                                       final long syncToken) {
+        if (buckets.isEmpty()) {
+            // Already in sync; only the token needs recording.
+            applyRemoteDelta(TaskDelta.create(
+                    ImmutableList.<Task>of(), ImmutableList.<String>of(), syncToken));
+            return;
+        }
+        mTasksRemoteDataSource.getTasksInTreeBuckets(buckets, new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(final List<Task> tasks) {
+                getOutboxStats(new GetOutboxStatsCallback() {
+                    @Override
+                    public void onOutboxStatsLoaded(TaskOutboxStats stats) {
+                        boolean settled = stats.pendingWrites() == 0 && mPendingWrites.isEmpty();
+                        List<String> deletedIds = settled
+                                ? findRemotelyDeleted(buckets, tasks)
+                                : ImmutableList.<String>of();
+                        applyRemoteDelta(TaskDelta.create(tasks, deletedIds, syncToken));
+                    }
+                });
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                failRemoteLoad();
+            }
+        });
+    }
+
+    /**
+     * Returns the ids in {@code buckets} that SQLite has but {@code remoteTasks} lacks. These were
+     * deleted remotely, unless they were written since the outbox was last replayed, in which
+     * case it's too soon to tell; callers only ask once nothing is waiting to be pushed.
+     */
+    @NonNull
+    private List<String> findRemotelyDeleted(@NonNull List<Integer> buckets,
+                                             @NonNull List<Task> remoteTasks) {
+        Set<String> remoteIds = new HashSet<>();
+        for (Task task : remoteTasks) {
+            remoteIds.add(task.getId());
+        }
+        List<String> deletedIds = new ArrayList<>();
+        for (String taskId : mTaskTree.getTaskIds(buckets)) {
+            if (!remoteIds.contains(taskId)) {
+                deletedIds.add(taskId);
+            }
         }
+        return deletedIds;
+    }
+
+    /**
+     * Stops trusting the cache and the task tree after SQLite dropped writes, since both still
+     * hold what those writes would have stored. The next load reads SQLite again, and every
+     * subscriber reloads.
+     */
+    private void invalidateAfterFailedWrites() {
+        mCachedTasks.trimToSize(0);
+        mTaskTree.invalidate();
+        mChangeDispatcher.invalidate();
+    }
+
+    /**
+     * Applies {@code delta} and hands the resulting tasks to every caller waiting on the remote
+     * load.
+     */
+    private void applyRemoteDelta(@NonNull TaskDelta delta) {
+        applyTaskDelta(delta);
         mCacheIsDirty = false;
+        if (mCachedTasks.isComplete()) {
+            deliverRemoteLoad(mCachedTasks.getAll());
+            return;
+        }
+        // Only the delta came over the network; the rest of the tasks are in SQLite, which the
+        // delta has just brought up to date with the remote.
+        loadTasksFromLocalDataSource(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                deliverRemoteLoad(refreshCache(tasks, true));
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // This may be a failed read rather than an empty table, so the ids seen before
+                // are kept.
+                deliverRemoteLoad(refreshCache(ImmutableList.<Task>of(), false));
+            }
+        });
     }
 
-    private void refreshLocalDataSource(List<Task> tasks) {
-        mTasksLocalDataSource.deleteAllTasks();
+    /**
+     * Rolls back writes the remote refused because their task had been deleted there, by
+     * deleting the task here as well, and then tells the failure listeners.
+     */
+    private void rollBackRejectedWrites(@NonNull List<TaskWrite> rejected) {
+        Set<String> taskIds = new LinkedHashSet<>();
+        for (TaskWrite write : rejected) {
+            taskIds.add(write.taskId());
+        }
+        // The delete already happened on the remote, so it is applied like one from a sync: it
+        // isn't queued in the outbox, and the sync token stays where it is.
+        applyTaskDelta(TaskDelta.create(
+                ImmutableList.<Task>of(), taskIds, TaskDelta.NO_SYNC_TOKEN));
+
+        for (TaskWrite write : rejected) {
+            TaskWriteFailure failure =
+                    TaskWriteFailure.create(write, TaskWriteFailure.Reason.TASK_DELETED);
+            for (TaskWriteFailureListener listener : mWriteFailureListeners) {
+                listener.onTaskWriteFailed(failure);
+            }
+        }
+    }
+
+    private void failRemoteLoad() {
+        for (LoadTasksCallback waiting : drainPendingLoads(mPendingRemoteLoads)) {
+            waiting.onDataNotAvailable();
+        }
+    }
+
+    private void deliverRemoteLoad(@NonNull List<Task> loaded) {
+        for (LoadTasksCallback waiting : drainPendingLoads(mPendingRemoteLoads)) {
+            waiting.onTasksLoaded(loaded);
+        }
+    }
+
+    /**
+     * Answers the first load after a cold start from the persisted snapshot, then reconciles the
+     * cache with SQLite. The snapshot is read on the store's I/O thread. If there is no usable
+     * snapshot, it has already been used, or the cache was written while it was being read,
+     * {@code fallback} is run instead.
+     */
+    private void getTasksFromSnapshot(@NonNull final LoadTasksCallback callback,
+                                      @NonNull final Runnable fallback) {
+        TasksSnapshotStore snapshotStore = mSnapshotStore;
+        if (snapshotStore == null || !mSnapshotConsumed.compareAndSet(false, true)) {
+            fallback.run();
+            return;
+        }
+        final long cacheModificationCount = mCachedTasks.modificationCount();
+        snapshotStore.read(new TasksSnapshotStore.LoadSnapshotCallback() {
+            @Override
+            public void onSnapshotLoaded(List<Task> snapshot) {
+                if (mCacheIsDirty || mCachedTasks.modificationCount() != cacheModificationCount) {
+                    // The snapshot is older than what the cache now holds.
+                    fallback.run();
+                    return;
+                }
+                serveSnapshot(snapshot, callback);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                fallback.run();
+            }
+        });
+    }
+
+    private void serveSnapshot(@NonNull List<Task> snapshot,
+                               @NonNull final LoadTasksCallback callback) {
+        // The snapshot may be older than SQLite, so it doesn't touch the known ids that getTask
+        // relies on to fail fast.
+        advanceClockPast(snapshot);
+        mCachedTasks.replaceAll(snapshot);
+        final List<Task> served =
+                mCachedTasks.isComplete() ? mCachedTasks.getAll() : ImmutableList.copyOf(snapshot);
+        mChangeDispatcher.dispatchSnapshot(served);
+        callback.onTasksLoaded(served);
+
+        getTasksFromLocalDataSource(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                if (!sameTasks(served, tasks)) {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // SQLite has no tasks, so the snapshot was out of date, and the network couldn't
+                // supply any either.
+                mCachedTasks.clear();
+                mChangeDispatcher.dispatchSnapshot(ImmutableList.<Task>of());
+                callback.onTasksLoaded(ImmutableList.<Task>of());
+            }
+        });
+    }
+
+    /**
+     * Loads tasks from the remote data source and invokes {@code callback} again only if they
+     * differ from the {@code servedTasks} it has already received.
+     */
+    private void revalidateInBackground(@NonNull final List<Task> servedTasks,
+                                        @NonNull final LoadTasksCallback callback) {
+        getTasksFromRemoteDataSource(new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                if (!sameTasks(servedTasks, tasks)) {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                // The caller keeps the stale data. The cache stays dirty, so the next request
+                // tries the network again.
+            }
+        });
+    }
+
+    /**
+     * Compares two task lists including completion state, which {@link Task#equals(Object)}
+     * ignores.
+     */
+    private static boolean sameTasks(@NonNull List<Task> first, @NonNull List<Task> second) {
+        if (first.size() != second.size()) {
+            return false;
+        }
+        for (int i = 0; i < first.size(); i++) {
+            Task a = first.get(i);
+            Task b = second.get(i);
+            if (!a.equals(b) || a.isCompleted() != b.isCompleted()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes and returns every callback waiting on a load, ending that load's single-flight
+     * window so that the next caller starts a fresh one.
+     */
+    @NonNull
+    private List<LoadTasksCallback> drainPendingLoads(@NonNull List<LoadTasksCallback> pending) {
+        synchronized (mPendingLoadsLock) {
+            List<LoadTasksCallback> drained = new ArrayList<>(pending);
+            pending.clear();
+            return drained;
+        }
+    }
+
+    /**
+     * Replaces the cache with {@code tasks} and returns them as an immutable list, read from the
+     * cache when they all fit in its budget.
+     * <p>
+     * The known ids are rebuilt from {@code tasks} only if {@code includesRemote}, i.e. they are
+     * every task the remote data source has too. SQLite alone may lack tasks that exist only on
+     * the remote, and treating those as missing would make {@link #getTask} fail for them, so
+     * otherwise the loaded ids are just added to the ones already known.
+     */
+    @NonNull
+    private List<Task> refreshCache(List<Task> tasks, boolean includesRemote) {
+        advanceClockPast(tasks);
+        mCachedTasks.replaceAll(tasks);
+        mTaskTree.rebuild(tasks);
+        if (includesRemote) {
+            mMissingTasks.rebuild(tasks);
+        } else {
+            for (Task task : tasks) {
+                mMissingTasks.recordPresent(task.getId());
+            }
+        }
+        mCacheRefreshedAtMillis = SystemClock.elapsedRealtime();
+        List<Task> loaded =
+                mCachedTasks.isComplete() ? mCachedTasks.getAll() : ImmutableList.copyOf(tasks);
+        mChangeDispatcher.dispatchSnapshot(loaded);
+        return loaded;
+    }
+
+    /**
+     * Advances the clock past every stamp on {@code tasks}, which were read from storage. The
+     * clock starts again from the wall clock in every process, so after a restart with the wall
+     * clock behind these stamps, new edits would otherwise lose to what is stored.
+     */
+    private void advanceClockPast(@NonNull Collection<Task> tasks) {
+        long latest = 0;
+        for (Task task : tasks) {
+            latest = Math.max(latest, TaskMerger.latestStamp(task));
+        }
+        mClock.update(latest);
+    }
+
+    private void cacheLoadedTasks(@NonNull List<Task> tasks, @NonNull Map<String, Task> found) {
+        advanceClockPast(tasks);
+        // Do in memory cache update to keep the app UI up to date
+        mCachedTasks.putAll(tasks);
+        for (Task task : tasks) {
+            mMissingTasks.recordPresent(task.getId());
+            found.put(task.getId(), task);
+        }
+    }
+
+    private static void deliverTasks(@NonNull List<String> requestedIds,
+                                     @NonNull Map<String, Task> found,
+                                     @NonNull LoadTasksCallback callback) {
+        if (found.isEmpty()) {
+            callback.onDataNotAvailable();
+            return;
+        }
+        List<Task> tasks = new ArrayList<>(found.size());
+        for (String taskId : requestedIds) {
+            Task task = found.get(taskId);
+            if (task != null) {
+                tasks.add(task);
+            }
+        }
+        callback.onTasksLoaded(tasks);
+    }
+
+    /**
+     * A single {@link #streamTasks(int, LoadTaskPageCallback)} that reads its pages from SQLite.
+     */
+    private final class TaskStream {
+
+        private final int mPageSize;
+
+        private final LoadTaskPageCallback mCallback;
+
+        /**
+         * True if the tasks are checked against the network once every page has been read.
+         */
+        private final boolean mRevalidate;
+
+        private final long mCacheModificationCount = mCachedTasks.modificationCount();
+
+        /**
+         * Every task read so far, by id.
+         */
+        private final Map<String, Task> mTasks = new LinkedHashMap<>();
+
+        TaskStream(int pageSize, @NonNull LoadTaskPageCallback callback, boolean revalidate) {
+            mPageSize = pageSize;
+            mCallback = callback;
+            mRevalidate = revalidate;
+        }
+
+        void readPage(long pageKey) {
+            // Each page reflects every write made before it was read, so a task saved while
+            // paging is read with its new value, and a deleted one isn't read at all.
+            mPendingWrites.flush();
+            mTasksLocalDataSource.getTaskPage(pageKey, mPageSize, new LoadTaskPageCallback() {
+                @Override
+                public void onTaskPageLoaded(TaskPage page) {
+                    // The tasks may be edited as soon as they are shown.
+                    advanceClockPast(page.tasks());
+                    List<Task> unseen = new ArrayList<>(page.tasks().size());
+                    for (Task task : page.tasks()) {
+                        if (mTasks.put(task.getId(), task) == null) {
+                            unseen.add(task);
+                        }
+                    }
+                    mCallback.onTaskPageLoaded(
+                            TaskPage.create(unseen, page.nextPageKey(), page.isLastPage()));
+                    if (!page.isLastPage()) {
+                        readPage(page.nextPageKey());
+                        return;
+                    }
+
+                    // The pages were read at different times, so they only add up to what
+                    // SQLite holds if nothing was written while paging.
+                    List<Task> tasks = new ArrayList<>(mTasks.values());
+                    if (mCachedTasks.modificationCount() == mCacheModificationCount
+                            && mPendingWrites.isEmpty()) {
+                        refreshCache(tasks, false);
+                    }
+                    if (mRevalidate && mCacheIsDirty) {
+                        revalidateInBackground(tasks, asSinglePage(mCallback));
+                    }
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    getTasksFromRemoteDataSource(asSinglePage(mCallback));
+                }
+            });
+        }
+    }
+
+    /**
+     * A single {@link #getTask(String, GetTaskCallback)} that queries both data sources at once.
+     * See {@link #enableParallelTaskLookups()}.
+     */
+    private final class ParallelTaskLookup {
+
+        private final String mTaskId;
+
+        private final GetTaskCallback mCallback;
+
+        private final CancellationSignal mRemoteCancellation = new CancellationSignal();
+
+        // The fields below are guarded by this.
+
+        private boolean mAnswered = false;
+
+        private boolean mLocalMissed = false;
+
+        private boolean mRemoteAnswered = false;
+
+        @Nullable
+        private Task mRemoteTask;
+
+        ParallelTaskLookup(@NonNull String taskId, @NonNull GetTaskCallback callback) {
+            mTaskId = taskId;
+            mCallback = callback;
+        }
+
+        void start() {
+            // The remote request goes out first, so that its latency overlaps the local query.
+            mTasksRemoteDataSource.getTask(mTaskId, mRemoteCancellation, new GetTaskCallback() {
+                @Override
+                public void onTaskLoaded(Task task) {
+                    onRemoteAnswered(task);
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    onRemoteAnswered(null);
+                }
+            });
+            mTasksLocalDataSource.getTask(mTaskId, new GetTaskCallback() {
+                @Override
+                public void onTaskLoaded(Task task) {
+                    onLocalHit(task);
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    synchronized (ParallelTaskLookup.this) {
+                        mLocalMissed = true;
+                    }
+                    answerFromRemoteIfReady();
+                }
+            });
+        }
+
+        private void onLocalHit(@NonNull Task task) {
+            synchronized (this) {
+                if (mAnswered) {
+                    return;
+                }
+                mAnswered = true;
+            }
+            mRemoteCancellation.cancel();
+
+            // Do in memory cache update to keep the app UI up to date
+            mCachedTasks.put(task);
+            mMissingTasks.recordPresent(task.getId());
+            mCallback.onTaskLoaded(task);
+        }
+
+        private void onRemoteAnswered(@Nullable Task task) {
+            synchronized (this) {
+                mRemoteAnswered = true;
+                mRemoteTask = task;
+            }
+            answerFromRemoteIfReady();
+        }
+
+        private void answerFromRemoteIfReady() {
+            Task task;
+            synchronized (this) {
+                if (mAnswered || !mLocalMissed || !mRemoteAnswered) {
+                    return;
+                }
+                mAnswered = true;
+                task = mRemoteTask;
+            }
+            if (task == null) {
+                mMissingTasks.recordMissing(mTaskId);
+                mCallback.onDataNotAvailable();
+                return;
+            }
+
+            // SQLite has no copy to merge with, so the task is stored as the remote sent it,
+            // without moving the sync token or queueing it for the outbox.
+            mTasksLocalDataSource.applyTaskDelta(TaskDelta.create(
+                    Collections.singletonList(task),
+                    ImmutableList.<String>of(),
+                    TaskDelta.NO_SYNC_TOKEN));
+            // The cache may still hold the copy loaded for the list, which observers already
+            // have, so the task is only new to them if it wasn't cached.
+            boolean cached = mCachedTasks.peek(task.getId()) != null;
+            mCachedTasks.put(task);
+            mTaskTree.put(task);
+            mMissingTasks.recordPresent(task.getId());
+            mChangeDispatcher.dispatch(cached ? TaskChange.update(task) : TaskChange.insert(task));
+            mCallback.onTaskLoaded(task);
+        }
+    }
+
+    @NonNull
+    private static LoadTasksCallback asSinglePage(@NonNull final LoadTaskPageCallback callback) {
+        return new LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> tasks) {
+                callback.onTaskPageLoaded(TaskPage.create(tasks, TaskPage.FIRST_PAGE_KEY, true));
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                callback.onDataNotAvailable();
+            }
+        };
+    }
+
+    @NonNull
+    private static List<Task> filterByCompletion(@NonNull List<Task> tasks, boolean completed) {
+        List<Task> filtered = new ArrayList<>();
         for (Task task : tasks) {
-            mTasksLocalDataSource.saveTask(task);
+            if (task.isCompleted() == completed) {
+                filtered.add(task);
+            }
         }
+        return filtered;
     }
 
     @Nullable
     private Task getTaskWithId(@NonNull String id) {
         checkNotNull(id);
-        if (mCachedTasks == null || mCachedTasks.isEmpty()) {
-            return null;
-        } else {
-            return mCachedTasks.get(id);
+        return mCachedTasks.get(id);
+    }
+
+    /**
+     * Delivers the cached task with {@code taskId}, or else reads it from the local data source
+     * after flushing pending writes. The task may carry only the start of its description.
+     */
+    private void getTaskForUpdate(@NonNull String taskId, @NonNull GetTaskCallback callback) {
+        Task cachedTask = getTaskWithId(taskId);
+        if (cachedTask != null) {
+            callback.onTaskLoaded(cachedTask);
+            return;
         }
+        mPendingWrites.flush();
+        mTasksLocalDataSource.getTask(taskId, callback);
+    }
+
+    /**
+     * Returns true if a task with {@code taskId} may exist even though it isn't cached, because
+     * the cache is incomplete and the id isn't known to be missing.
+     */
+    private boolean mayBeEvicted(@NonNull String taskId) {
+        return mCachedTasks.peek(taskId) == null
+                && !mCachedTasks.isComplete()
+                && !mMissingTasks.isKnownMissing(taskId);
     }
 }
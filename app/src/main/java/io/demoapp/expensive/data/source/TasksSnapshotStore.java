@@ -0,0 +1,267 @@
+package io.demoapp.expensive.data.source;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.support.annotation.WorkerThread;
+import android.util.Log;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Persists a compact binary snapshot of the task cache, so that a cold start can show the task
+ * list without decoding the SQLite table first.
+ * <p>
+ * File layout, big-endian:
+ * <pre>
+ *   int   magic
+ *   int   format version
+ *   int   task count
+ *   task* id, title, description (each an int byte length, -1 for null, then UTF-8 bytes)
+ *         followed by a completed byte, a long version, the long clock stamps of the
+ *         title, description and completed fields and a byte that is 0 if the description
+ *         holds only the start of the task's description
+ *   long  CRC32 of everything above
+ * </pre>
+ * A snapshot is written to a temporary file and renamed into place, so readers only ever see a
+ * complete file. Snapshots with an unknown version or a bad checksum are ignored.
+ * <p>
+ * {@link #read(LoadSnapshotCallback)} and {@link #delete()} can be called from the main thread:
+ * they run on the store's own I/O thread, in the order they were called.
+ */
+public class TasksSnapshotStore {
+
+    private static final String TAG = "TasksSnapshotStore";
+
+    private static final int MAGIC = 0x5441534b; // "TASK"
+
+    private static final int FORMAT_VERSION = 4;
+
+    private static final int HEADER_BYTES = 12;
+
+    private static final int TRAILER_BYTES = 8;
+
+    private static final int CHECKSUM_CHUNK_BYTES = 8 * 1024;
+
+    private final File mFile;
+
+    private final ExecutorService mIoExecutor = Executors.newSingleThreadExecutor();
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    public interface LoadSnapshotCallback {
+
+        void onSnapshotLoaded(List<Task> tasks);
+
+        void onDataNotAvailable();
+    }
+
+    public TasksSnapshotStore(@NonNull File file) {
+        mFile = checkNotNull(file);
+    }
+
+    /**
+     * Writes {@code tasks} as the new snapshot, replacing any previous one.
+     */
+    @WorkerThread
+    public synchronized void write(@NonNull Collection<Task> tasks) {
+        checkNotNull(tasks);
+        File tempFile = new File(mFile.getPath() + ".tmp");
+        try {
+            FileOutputStream fileOut = new FileOutputStream(tempFile);
+            CheckedOutputStream checkedOut =
+                    new CheckedOutputStream(new BufferedOutputStream(fileOut), new CRC32());
+            DataOutputStream out = new DataOutputStream(checkedOut);
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeInt(tasks.size());
+                for (Task task : tasks) {
+                    writeString(out, task.getId());
+                    writeString(out, task.getTitle());
+                    writeString(out, task.getDescription());
+                    out.writeBoolean(task.isCompleted());
+                    out.writeLong(task.getVersion());
+                    out.writeLong(task.getTitleStamp());
+                    out.writeLong(task.getDescriptionStamp());
+                    out.writeLong(task.getCompletedStamp());
+                    out.writeBoolean(task.isDescriptionLoaded());
+                }
+                out.flush();
+                out.writeLong(checkedOut.getChecksum().getValue());
+                out.flush();
+                fileOut.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!tempFile.renameTo(mFile)) {
+                throw new IOException("Unable to rename " + tempFile + " to " + mFile);
+            }
+        } catch (IOException ex) {
+            Log.w(TAG, "Failed to write task snapshot", ex);
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * Reads the current snapshot on the I/O thread and hands it to {@code callback} on the main
+     * thread. {@link LoadSnapshotCallback#onDataNotAvailable()} is fired if there is no snapshot
+     * or it cannot be used.
+     */
+    public void read(@NonNull final LoadSnapshotCallback callback) {
+        checkNotNull(callback);
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<Task> tasks = read();
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (tasks == null) {
+                            callback.onDataNotAvailable();
+                        } else {
+                            callback.onSnapshotLoaded(tasks);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Memory-maps and decodes the current snapshot. Returns null if there is no snapshot or it
+     * cannot be used.
+     */
+    @WorkerThread
+    @Nullable
+    public synchronized List<Task> read() {
+        if (!mFile.exists()) {
+            return null;
+        }
+        try {
+            RandomAccessFile file = new RandomAccessFile(mFile, "r");
+            try {
+                FileChannel channel = file.getChannel();
+                MappedByteBuffer buffer =
+                        channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                return decode(buffer);
+            } finally {
+                file.close();
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+            Log.w(TAG, "Ignoring unreadable task snapshot", ex);
+            return null;
+        }
+    }
+
+    /**
+     * Removes the snapshot on the I/O thread, e.g. after every task has been deleted.
+     */
+    public void delete() {
+        mIoExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (TasksSnapshotStore.this) {
+                    mFile.delete();
+                }
+            }
+        });
+    }
+
+    @Nullable
+    private static List<Task> decode(@NonNull ByteBuffer buffer) {
+        int payloadBytes = buffer.limit() - TRAILER_BYTES;
+        if (payloadBytes < HEADER_BYTES) {
+            return null;
+        }
+        if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != FORMAT_VERSION) {
+            Log.i(TAG, "Ignoring task snapshot with an unknown format");
+            return null;
+        }
+        if (checksum(buffer, payloadBytes) != buffer.getLong(payloadBytes)) {
+            Log.w(TAG, "Ignoring task snapshot with a bad checksum");
+            return null;
+        }
+
+        buffer.position(8);
+        int count = buffer.getInt();
+        ImmutableList.Builder<Task> tasks = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            String id = readString(buffer);
+            String title = readString(buffer);
+            String description = readString(buffer);
+            boolean completed = buffer.get() != 0;
+            long version = buffer.getLong();
+            long titleStamp = buffer.getLong();
+            long descriptionStamp = buffer.getLong();
+            long completedStamp = buffer.getLong();
+            boolean descriptionLoaded = buffer.get() != 0;
+            if (id == null) {
+                return null;
+            }
+            tasks.add(new Task(title, description, id, completed, version,
+                    titleStamp, descriptionStamp, completedStamp, descriptionLoaded));
+        }
+        return tasks.build();
+    }
+
+    private static long checksum(@NonNull ByteBuffer buffer, int length) {
+        // CRC32.update(ByteBuffer) needs API 26, so go through a small heap buffer.
+        CRC32 crc = new CRC32();
+        byte[] chunk = new byte[CHECKSUM_CHUNK_BYTES];
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(0);
+        payload.limit(length);
+        while (payload.hasRemaining()) {
+            int n = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, n);
+            crc.update(chunk, 0, n);
+        }
+        return crc.getValue();
+    }
+
+    private static void writeString(@NonNull DataOutputStream out, @Nullable String value)
+            throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(Charsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Nullable
+    private static String readString(@NonNull ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, Charsets.UTF_8);
+    }
+}
@@ -0,0 +1,15 @@
+package io.demoapp.expensive.data.source;
+
+/**
+ * A registration of a {@link TaskChangeListener}. Holders must call {@link #dispose()} when they
+ * go away, typically from {@link android.arch.lifecycle.ViewModel#onCleared()}.
+ */
+public interface TasksSubscription {
+
+    /**
+     * Stops all further calls to the listener, including any already queued.
+     */
+    void dispose();
+
+    boolean isDisposed();
+}
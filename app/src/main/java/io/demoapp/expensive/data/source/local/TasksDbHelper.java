@@ -17,42 +17,289 @@
 package io.demoapp.expensive.data.source.local;
 
 import android.content.Context;
+import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.support.annotation.NonNull;
 
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.OutboxEntry;
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.SyncStateEntry;
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.TaskEntry;
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.TaskSearchEntry;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Owns the single, process-wide connection to the tasks database.
+ * <p>
+ * The connection is opened lazily on first use and is never closed by the data source, so the
+ * SQLite page cache survives between queries. Write-ahead logging is enabled so that readers
+ * never block on a concurrent writer.
+ */
 public class TasksDbHelper extends SQLiteOpenHelper {
-    public static final int DATABASE_VERSION = 1;
+    public static final int DATABASE_VERSION = 6;
 
     public static final String DATABASE_NAME = "Tasks.db";
 
+    /**
+     * Upper bound on the memory-mapped I/O region. Reads of mapped pages avoid a copy into the
+     * page cache; SQLite clamps this to the compile-time limit of the platform build.
+     */
+    public static final long MMAP_SIZE_BYTES = 64L * 1024 * 1024;
+
+    /**
+     * Page cache size for the primary connection. Negative values are interpreted by SQLite as
+     * KiB rather than a page count.
+     */
+    public static final int CACHE_SIZE_KIB = 8 * 1024;
+
+    /**
+     * In WAL mode {@code NORMAL} only syncs at checkpoints, which is still safe against
+     * corruption; a power loss can at most roll back the last few committed transactions.
+     */
+    public static final String SYNCHRONOUS_MODE = "NORMAL";
+
+    private static TasksDbHelper INSTANCE;
+
     private static final String TEXT_TYPE = " TEXT";
 
     private static final String BOOLEAN_TYPE = " INTEGER";
 
+    private static final String INTEGER_TYPE = " INTEGER";
+
     private static final String COMMA_SEP = ",";
 
+    private static final String NOT_NULL = " NOT NULL";
+
+    /**
+     * Tasks are keyed on their id. The table keeps its implicit rowid (WITHOUT ROWID needs
+     * SQLite 3.8.2, which is newer than our minimum API level) and the primary key is enforced
+     * through SQLite's automatic unique index on {@code entryid}.
+     */
     private static final String SQL_CREATE_ENTRIES =
-            "CREATE TABLE " + TasksPersistenceContract.TaskEntry.TABLE_NAME + " (" +
-                    TasksPersistenceContract.TaskEntry._ID + TEXT_TYPE + " PRIMARY KEY," +
-                    TasksPersistenceContract.TaskEntry.COLUMN_NAME_ENTRY_ID + TEXT_TYPE + COMMA_SEP +
-                    TasksPersistenceContract.TaskEntry.COLUMN_NAME_TITLE + TEXT_TYPE + COMMA_SEP +
-                    TasksPersistenceContract.TaskEntry.COLUMN_NAME_DESCRIPTION + TEXT_TYPE + COMMA_SEP +
-                    TasksPersistenceContract.TaskEntry.COLUMN_NAME_COMPLETED + BOOLEAN_TYPE +
+            "CREATE TABLE " + TaskEntry.TABLE_NAME + " (" +
+                    TaskEntry.COLUMN_NAME_ENTRY_ID + TEXT_TYPE + NOT_NULL + " PRIMARY KEY" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_TITLE + TEXT_TYPE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + TEXT_TYPE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_COMPLETED + BOOLEAN_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_VERSION + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_TITLE_STAMP + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_COMPLETED_STAMP + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" +
             " )";
 
-    public TasksDbHelper(Context context) {
+    private static final String SQL_CREATE_COMPLETED_INDEX =
+            "CREATE INDEX " + TaskEntry.INDEX_COMPLETED + " ON " + TaskEntry.TABLE_NAME + " (" +
+                    TaskEntry.COLUMN_NAME_COMPLETED +
+            " )";
+
+    private static final String SQL_CREATE_SYNC_STATE =
+            "CREATE TABLE " + SyncStateEntry.TABLE_NAME + " (" +
+                    SyncStateEntry.COLUMN_NAME_KEY + TEXT_TYPE + NOT_NULL + " PRIMARY KEY" + COMMA_SEP +
+                    SyncStateEntry.COLUMN_NAME_VALUE + INTEGER_TYPE +
+            " )";
+
+    /**
+     * AUTOINCREMENT keeps sequence numbers from being reused after the outbox has been emptied,
+     * so replay order always follows insertion order.
+     */
+    private static final String SQL_CREATE_OUTBOX =
+            "CREATE TABLE " + OutboxEntry.TABLE_NAME + " (" +
+                    OutboxEntry.COLUMN_NAME_SEQUENCE + INTEGER_TYPE + " PRIMARY KEY AUTOINCREMENT" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_IDEMPOTENCY_KEY + TEXT_TYPE + NOT_NULL + " UNIQUE" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_OPERATION + TEXT_TYPE + NOT_NULL + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_ENTRY_ID + TEXT_TYPE + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_TITLE + TEXT_TYPE + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_DESCRIPTION + TEXT_TYPE + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_COMPLETED + BOOLEAN_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_VERSION + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_TITLE_STAMP + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_DESCRIPTION_STAMP + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" + COMMA_SEP +
+                    OutboxEntry.COLUMN_NAME_COMPLETED_STAMP + INTEGER_TYPE + NOT_NULL + " DEFAULT 0" +
+            " )";
+
+    /**
+     * An FTS4 index that reads its text from the task table rather than keeping a copy (FTS5
+     * needs a newer SQLite than our minimum API level ships). Prefix indexes for two and three
+     * characters keep short search-as-you-type prefixes from scanning the whole term list. The
+     * default tokenizer only folds ASCII case; unicode61 needs SQLite 3.7.13.
+     */
+    private static final String SQL_CREATE_SEARCH =
+            "CREATE VIRTUAL TABLE " + TaskSearchEntry.TABLE_NAME + " USING fts4(" +
+                    "content=\"" + TaskEntry.TABLE_NAME + "\"" + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_TITLE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + COMMA_SEP +
+                    "prefix=\"2,3\"" +
+            ")";
+
+    private static final String SQL_DELETE_SEARCH_ROW =
+            "DELETE FROM " + TaskSearchEntry.TABLE_NAME +
+            " WHERE " + TaskSearchEntry.COLUMN_NAME_DOC_ID + " = ";
+
+    private static final String SQL_INSERT_SEARCH_ROW =
+            "INSERT INTO " + TaskSearchEntry.TABLE_NAME + " (" +
+                    TaskSearchEntry.COLUMN_NAME_DOC_ID + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_TITLE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION +
+            ") VALUES (new.rowid, new." + TaskEntry.COLUMN_NAME_TITLE +
+                    ", new." + TaskEntry.COLUMN_NAME_DESCRIPTION + ")";
+
+    /**
+     * The index has no copy of the text, so a row's entry must be deleted while the task row
+     * still holds the text it was indexed with, and added back once the row has its new text.
+     * <p>
+     * Saves use INSERT OR REPLACE, whose implicit delete doesn't fire delete triggers unless
+     * recursive triggers are on. The before-insert trigger deletes the entry of the row about
+     * to be replaced instead. Updates that leave the title and description alone, such as
+     * completing a task, don't touch the index.
+     */
+    private static final String[] SQL_CREATE_SEARCH_TRIGGERS = {
+            "CREATE TRIGGER " + TaskSearchEntry.TRIGGER_BEFORE_INSERT +
+                    " BEFORE INSERT ON " + TaskEntry.TABLE_NAME + " BEGIN " +
+                    SQL_DELETE_SEARCH_ROW + "(SELECT rowid FROM " + TaskEntry.TABLE_NAME +
+                    " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = new." +
+                    TaskEntry.COLUMN_NAME_ENTRY_ID + "); END",
+            "CREATE TRIGGER " + TaskSearchEntry.TRIGGER_AFTER_INSERT +
+                    " AFTER INSERT ON " + TaskEntry.TABLE_NAME + " BEGIN " +
+                    SQL_INSERT_SEARCH_ROW + "; END",
+            "CREATE TRIGGER " + TaskSearchEntry.TRIGGER_BEFORE_UPDATE +
+                    " BEFORE UPDATE OF " + TaskEntry.COLUMN_NAME_TITLE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + " ON " + TaskEntry.TABLE_NAME + " BEGIN " +
+                    SQL_DELETE_SEARCH_ROW + "old.rowid; END",
+            "CREATE TRIGGER " + TaskSearchEntry.TRIGGER_AFTER_UPDATE +
+                    " AFTER UPDATE OF " + TaskEntry.COLUMN_NAME_TITLE + COMMA_SEP +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + " ON " + TaskEntry.TABLE_NAME + " BEGIN " +
+                    SQL_INSERT_SEARCH_ROW + "; END",
+            "CREATE TRIGGER " + TaskSearchEntry.TRIGGER_BEFORE_DELETE +
+                    " BEFORE DELETE ON " + TaskEntry.TABLE_NAME + " BEGIN " +
+                    SQL_DELETE_SEARCH_ROW + "old.rowid; END"
+    };
+
+    private static final String TABLE_NAME_V1 = TaskEntry.TABLE_NAME + "_v1";
+
+    // Prevent direct instantiation.
+    private TasksDbHelper(Context context) {
         super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    /**
+     * Returns the process-wide helper, creating it if necessary. The helper is bound to the
+     * application context so it can safely outlive any activity.
+     */
+    public static synchronized TasksDbHelper getInstance(@NonNull Context context) {
+        checkNotNull(context);
+        if (INSTANCE == null) {
+            INSTANCE = new TasksDbHelper(context.getApplicationContext());
+        }
+        return INSTANCE;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        db.execSQL("PRAGMA synchronous = " + SYNCHRONOUS_MODE);
+        db.execSQL("PRAGMA cache_size = " + (-CACHE_SIZE_KIB));
+
+        // Unlike the pragmas above, mmap_size reports the new value back as a row, which
+        // execSQL() refuses to run.
+        Cursor c = db.rawQuery("PRAGMA mmap_size = " + MMAP_SIZE_BYTES, null);
+        try {
+            c.moveToFirst();
+        } finally {
+            c.close();
+        }
     }
 
     public void onCreate(SQLiteDatabase db) {
         db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL(SQL_CREATE_COMPLETED_INDEX);
+        db.execSQL(SQL_CREATE_SYNC_STATE);
+        db.execSQL(SQL_CREATE_OUTBOX);
+        createSearchIndex(db);
     }
 
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Not required as at version 1
+        // Runs inside the transaction opened by SQLiteOpenHelper, so a failed step leaves the
+        // previous schema untouched.
+        if (oldVersion < 2) {
+            // Rebuilds the table with the current columns, including those added since.
+            migrateToVersion2(db);
+        } else {
+            if (oldVersion < 3) {
+                addColumn(db, TaskEntry.TABLE_NAME, TaskEntry.COLUMN_NAME_VERSION);
+            }
+            if (oldVersion < 5) {
+                addClockStampColumns(db, TaskEntry.TABLE_NAME);
+            }
+        }
+        if (oldVersion < 3) {
+            // Existing rows have version 0 and there is no sync token, so the first sync after
+            // the upgrade is a full one.
+            db.execSQL(SQL_CREATE_SYNC_STATE);
+        }
+        if (oldVersion < 4) {
+            db.execSQL(SQL_CREATE_OUTBOX);
+        } else if (oldVersion < 5) {
+            addClockStampColumns(db, OutboxEntry.TABLE_NAME);
+        }
+        if (oldVersion < 6) {
+            createSearchIndex(db);
+        }
     }
 
     public void onDowngrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // Not required as at version 1
+        // Not supported: newer schemas are a superset of older ones and are left as they are.
+    }
+
+    /**
+     * Adds the clock stamps introduced in version 5. Existing values get stamp 0, so any edit
+     * made since, on any device, wins over them.
+     */
+    private static void addClockStampColumns(SQLiteDatabase db, String tableName) {
+        addColumn(db, tableName, TaskEntry.COLUMN_NAME_TITLE_STAMP);
+        addColumn(db, tableName, TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP);
+        addColumn(db, tableName, TaskEntry.COLUMN_NAME_COMPLETED_STAMP);
+    }
+
+    /**
+     * Creates the search index and its triggers, and indexes the tasks already stored.
+     */
+    private static void createSearchIndex(SQLiteDatabase db) {
+        db.execSQL(SQL_CREATE_SEARCH);
+        for (String sql : SQL_CREATE_SEARCH_TRIGGERS) {
+            db.execSQL(sql);
+        }
+        db.execSQL("INSERT INTO " + TaskSearchEntry.TABLE_NAME + " (" +
+                TaskSearchEntry.TABLE_NAME + ") VALUES ('rebuild')");
+    }
+
+    private static void addColumn(SQLiteDatabase db, String tableName, String columnName) {
+        db.execSQL("ALTER TABLE " + tableName + " ADD COLUMN " +
+                columnName + INTEGER_TYPE + NOT_NULL + " DEFAULT 0");
+    }
+
+    /**
+     * Version 1 declared an unused TEXT {@code _id} primary key and no constraint on
+     * {@code entryid}, so the same task could be stored more than once. The table is rebuilt with
+     * {@code entryid} as its key; for duplicated ids the most recently inserted row wins.
+     */
+    private static void migrateToVersion2(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE " + TaskEntry.TABLE_NAME + " RENAME TO " + TABLE_NAME_V1);
+        db.execSQL(SQL_CREATE_ENTRIES);
+        db.execSQL("INSERT OR REPLACE INTO " + TaskEntry.TABLE_NAME + " (" +
+                TaskEntry.COLUMN_NAME_ENTRY_ID + COMMA_SEP +
+                TaskEntry.COLUMN_NAME_TITLE + COMMA_SEP +
+                TaskEntry.COLUMN_NAME_DESCRIPTION + COMMA_SEP +
+                TaskEntry.COLUMN_NAME_COMPLETED +
+                ") SELECT " +
+                TaskEntry.COLUMN_NAME_ENTRY_ID + COMMA_SEP +
+                TaskEntry.COLUMN_NAME_TITLE + COMMA_SEP +
+                TaskEntry.COLUMN_NAME_DESCRIPTION + COMMA_SEP +
+                "COALESCE(" + TaskEntry.COLUMN_NAME_COMPLETED + ", 0)" +
+                " FROM " + TABLE_NAME_V1 +
+                " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " IS NOT NULL" +
+                " ORDER BY rowid");
+        db.execSQL("DROP TABLE " + TABLE_NAME_V1);
+        db.execSQL(SQL_CREATE_COMPLETED_INDEX);
     }
 }
@@ -19,32 +19,272 @@ package io.demoapp.expensive.data.source.local;
 import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.OperationCanceledException;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+import android.util.Log;
+
+import com.google.common.base.Ascii;
+import com.google.common.collect.ObjectArrays;
 
 import io.demoapp.expensive.data.Task;
+import io.demoapp.expensive.data.source.HybridLogicalClock;
+import io.demoapp.expensive.data.source.TaskCounts;
+import io.demoapp.expensive.data.source.TaskDelta;
+import io.demoapp.expensive.data.source.TaskMerger;
+import io.demoapp.expensive.data.source.TaskOutbox;
+import io.demoapp.expensive.data.source.TaskPage;
+import io.demoapp.expensive.data.source.TaskWrite;
 import io.demoapp.expensive.data.source.TasksDataSource;
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.OutboxEntry;
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.SyncStateEntry;
 import io.demoapp.expensive.data.source.local.TasksPersistenceContract.TaskEntry;
+import io.demoapp.expensive.data.source.local.TasksPersistenceContract.TaskSearchEntry;
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
 
 
 /**
  * Concrete implementation of a data source as a db.
+ * <p>
+ * The underlying connection is owned by {@link TasksDbHelper} and stays open for the lifetime of
+ * the process, so none of the methods here close the database after use.
+ * <p>
+ * Every change made through the {@link TasksDataSource} methods is also appended to the outbox,
+ * in the same transaction, to be replayed to the remote data source. Changes that came from the
+ * remote, through {@link #applyTaskDelta(TaskDelta)}, are not; they are merged with the stored
+ * tasks by {@link TaskMerger} instead of replacing them.
+ * <p>
+ * Nothing touches the disk on the calling thread. Writes are queued for a single writer thread,
+ * which commits whatever has queued up in one transaction. Queries run on a small pool of reader
+ * threads, which WAL lets run alongside the writer, and always see every write queued before
+ * them. Callbacks are delivered on the main thread.
  */
-public class TasksLocalDataSource implements TasksDataSource {
+public class TasksLocalDataSource implements TasksDataSource, TaskOutbox {
+
+    private static final String TAG = "TasksLocalDataSource";
+
+    /**
+     * SQLite builds before 3.32 refuse statements with more than 999 bound parameters, so longer
+     * id lists are queried in chunks.
+     */
+    private static final int MAX_QUERY_PARAMETERS = 999;
+
+    /**
+     * With WAL on, readers don't wait for the writer or for each other. Two are enough for the
+     * few queries a screen issues at once.
+     */
+    private static final int READER_THREADS = 2;
+
+    /**
+     * How many times a write that fails on its own is tried before it is reported as failed.
+     */
+    private static final int MAX_COMMIT_ATTEMPTS = 3;
+
+    /**
+     * How many times a read on the reader pool is run again because writes were queued while it
+     * ran, before it is run on the writer thread instead.
+     */
+    private static final int MAX_READ_ATTEMPTS = 3;
+
+    /**
+     * Most tasks a search returns. Only this many are read from the task table, however many
+     * match.
+     */
+    private static final int MAX_SEARCH_RESULTS = 100;
+
+    /**
+     * How much a match in each column of the search index counts, in column order. Matches in
+     * the title count for more than matches in the description.
+     */
+    private static final double[] SEARCH_COLUMN_WEIGHTS = { 2.0, 1.0 };
+
+    /**
+     * The characters the index's tokenizer splits words on: every ASCII character other than a
+     * letter or digit.
+     */
+    private static final Pattern SEARCH_WORD_SEPARATORS =
+            Pattern.compile("[^a-zA-Z0-9\\u0080-\\uffff]+");
 
     private static TasksLocalDataSource INSTANCE;
 
-    private TasksDbHelper mDbHelper;
+    private static final String SQL_INSERT_TASK =
+            "INSERT OR REPLACE INTO " + TaskEntry.TABLE_NAME + " (" +
+                    TaskEntry.COLUMN_NAME_ENTRY_ID + ", " +
+                    TaskEntry.COLUMN_NAME_TITLE + ", " +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + ", " +
+                    TaskEntry.COLUMN_NAME_COMPLETED + ", " +
+                    TaskEntry.COLUMN_NAME_VERSION + ", " +
+                    TaskEntry.COLUMN_NAME_TITLE_STAMP + ", " +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP + ", " +
+                    TaskEntry.COLUMN_NAME_COMPLETED_STAMP +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String SQL_UPDATE_TASK =
+            "UPDATE " + TaskEntry.TABLE_NAME + " SET " +
+                    TaskEntry.COLUMN_NAME_TITLE + " = ?, " +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION + " = ?, " +
+                    TaskEntry.COLUMN_NAME_COMPLETED + " = ?, " +
+                    TaskEntry.COLUMN_NAME_VERSION + " = ?, " +
+                    TaskEntry.COLUMN_NAME_TITLE_STAMP + " = ?, " +
+                    TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP + " = ?, " +
+                    TaskEntry.COLUMN_NAME_COMPLETED_STAMP + " = ?" +
+            " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?";
+
+    private static final String SQL_DELETE_TASK =
+            "DELETE FROM " + TaskEntry.TABLE_NAME +
+            " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?";
+
+    private static final String SQL_UPDATE_COMPLETION =
+            "UPDATE " + TaskEntry.TABLE_NAME +
+            " SET " + TaskEntry.COLUMN_NAME_COMPLETED + " = ?, " +
+                    TaskEntry.COLUMN_NAME_COMPLETED_STAMP + " = ?" +
+            " WHERE " + TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?";
+
+    /**
+     * Matching tasks with their match statistics. Reads only the search index, not the text.
+     */
+    private static final String SQL_SEARCH_TASKS =
+            "SELECT " + TaskSearchEntry.COLUMN_NAME_DOC_ID + ", " +
+                    "matchinfo(" + TaskSearchEntry.TABLE_NAME + ", 'pcx')" +
+            " FROM " + TaskSearchEntry.TABLE_NAME +
+            " WHERE " + TaskSearchEntry.TABLE_NAME + " MATCH ?";
+
+    /**
+     * SQLite answers this from the completion index alone, without reading any task rows.
+     */
+    private static final String SQL_COUNT_TASKS_BY_COMPLETION =
+            "SELECT " + TaskEntry.COLUMN_NAME_COMPLETED + ", COUNT(*)" +
+            " FROM " + TaskEntry.TABLE_NAME +
+            " GROUP BY " + TaskEntry.COLUMN_NAME_COMPLETED;
+
+    private static final String SQL_SAVE_SYNC_TOKEN =
+            "INSERT OR REPLACE INTO " + SyncStateEntry.TABLE_NAME + " (" +
+                    SyncStateEntry.COLUMN_NAME_KEY + ", " +
+                    SyncStateEntry.COLUMN_NAME_VALUE +
+            ") VALUES ('" + SyncStateEntry.KEY_SYNC_TOKEN + "', ?)";
+
+    private static final String SQL_APPEND_WRITE =
+            "INSERT INTO " + OutboxEntry.TABLE_NAME + " (" +
+                    OutboxEntry.COLUMN_NAME_IDEMPOTENCY_KEY + ", " +
+                    OutboxEntry.COLUMN_NAME_OPERATION + ", " +
+                    OutboxEntry.COLUMN_NAME_ENTRY_ID + ", " +
+                    OutboxEntry.COLUMN_NAME_TITLE + ", " +
+                    OutboxEntry.COLUMN_NAME_DESCRIPTION + ", " +
+                    OutboxEntry.COLUMN_NAME_COMPLETED + ", " +
+                    OutboxEntry.COLUMN_NAME_VERSION + ", " +
+                    OutboxEntry.COLUMN_NAME_TITLE_STAMP + ", " +
+                    OutboxEntry.COLUMN_NAME_DESCRIPTION_STAMP + ", " +
+                    OutboxEntry.COLUMN_NAME_COMPLETED_STAMP +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+    private static final String ROW_ID = "rowid";
+
+    private static final String[] TASK_PROJECTION = {
+            TaskEntry.COLUMN_NAME_ENTRY_ID,
+            TaskEntry.COLUMN_NAME_TITLE,
+            TaskEntry.COLUMN_NAME_DESCRIPTION,
+            TaskEntry.COLUMN_NAME_COMPLETED,
+            TaskEntry.COLUMN_NAME_VERSION,
+            TaskEntry.COLUMN_NAME_TITLE_STAMP,
+            TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP,
+            TaskEntry.COLUMN_NAME_COMPLETED_STAMP
+    };
+
+    /**
+     * Number of characters of the description that {@link #LIST_TASK_PROJECTION} reads.
+     */
+    private static final int LIST_DESCRIPTION_LENGTH = 100;
+
+    /**
+     * {@link #TASK_PROJECTION} with only the start of the description, followed by whether that
+     * is all of it. The list only shows a description when a task has no title, so this keeps
+     * long descriptions out of the cursor window and the task cache.
+     */
+    private static final String[] LIST_TASK_PROJECTION = {
+            TaskEntry.COLUMN_NAME_ENTRY_ID,
+            TaskEntry.COLUMN_NAME_TITLE,
+            "substr(" + TaskEntry.COLUMN_NAME_DESCRIPTION + ", 1, "
+                    + LIST_DESCRIPTION_LENGTH + ")",
+            TaskEntry.COLUMN_NAME_COMPLETED,
+            TaskEntry.COLUMN_NAME_VERSION,
+            TaskEntry.COLUMN_NAME_TITLE_STAMP,
+            TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP,
+            TaskEntry.COLUMN_NAME_COMPLETED_STAMP,
+            TaskEntry.COLUMN_NAME_DESCRIPTION + " IS NULL OR length("
+                    + TaskEntry.COLUMN_NAME_DESCRIPTION + ") <= " + LIST_DESCRIPTION_LENGTH
+    };
+
+    /**
+     * {@link #LIST_TASK_PROJECTION} followed by the rowid, which is the key for paging and the
+     * id of a search match.
+     */
+    private static final String[] PAGED_TASK_PROJECTION =
+            ObjectArrays.concat(LIST_TASK_PROJECTION, ROW_ID);
+
+    private final TasksDbHelper mDbHelper;
+
+    private final ExecutorService mWriterExecutor = Executors.newSingleThreadExecutor();
+
+    private final ExecutorService mReaderExecutor = Executors.newFixedThreadPool(READER_THREADS);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private final Runnable mCommitRunnable = new Runnable() {
+        @Override
+        public void run() {
+            commitQueuedWrites();
+        }
+    };
+
+    private final Object mWriteLock = new Object();
+
+    // The fields below are guarded by mWriteLock.
+
+    private final List<Write> mQueuedWrites = new ArrayList<>();
+
+    /**
+     * Number of writes queued since the process started.
+     */
+    private long mQueuedWriteCount = 0;
+
+    /**
+     * Number of writes committed since the process started. Writes commit in the order they
+     * were queued.
+     */
+    private long mCommittedWriteCount = 0;
+
+    private boolean mCommitScheduled = false;
+
+    @Nullable
+    private volatile CommitFailureListener mCommitFailureListener;
 
     // Prevent direct instantiation.
     private TasksLocalDataSource(@NonNull Context context) {
         checkNotNull(context);
-        mDbHelper = new TasksDbHelper(context);
+        mDbHelper = TasksDbHelper.getInstance(context);
     }
 
     public static TasksLocalDataSource getInstance(@NonNull Context context) {
@@ -56,48 +296,38 @@ public class TasksLocalDataSource implements TasksDataSource {
 
     /**
      * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if the database doesn't exist
-     * or the table is empty.
+     * or the table is empty. Long descriptions are cut short, see
+     * {@link Task#isDescriptionLoaded()}.
      */
     @Override
-    public void getTasks(@NonNull LoadTasksCallback callback) {
-        List<Task> tasks = new ArrayList<Task>();
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
-
-        String[] projection = {
-                TaskEntry.COLUMN_NAME_ENTRY_ID,
-                TaskEntry.COLUMN_NAME_TITLE,
-                TaskEntry.COLUMN_NAME_DESCRIPTION,
-                TaskEntry.COLUMN_NAME_COMPLETED
-        };
-
-        Cursor c = db.query(
-                TaskEntry.TABLE_NAME, projection, null, null, null, null, null);
-
-        if (c != null && c.getCount() > 0) {
-            while (c.moveToNext()) {
-                String itemId = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_ENTRY_ID));
-                String title = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_TITLE));
-                String description =
-                        c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_DESCRIPTION));
-                boolean completed =
-                        c.getInt(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_COMPLETED)) == 1;
-                Task task = new Task(title, description, itemId, completed);
-                tasks.add(task);
+    public void getTasks(@NonNull final LoadTasksCallback callback) {
+        checkNotNull(callback);
+        read(new Query<List<Task>>() {
+            @Override
+            public List<Task> run(SQLiteDatabase db) {
+                List<Task> tasks = new ArrayList<Task>();
+                Cursor c = db.query(
+                        TaskEntry.TABLE_NAME, LIST_TASK_PROJECTION, null, null, null, null, null);
+                try {
+                    while (c.moveToNext()) {
+                        tasks.add(readListTask(c));
+                    }
+                } finally {
+                    c.close();
+                }
+                return tasks;
             }
-        }
-        if (c != null) {
-            c.close();
-        }
-
-        db.close();
-
-        if (tasks.isEmpty()) {
-            // This will be called if the table is new or just empty.
-            callback.onDataNotAvailable();
-        } else {
-            callback.onTasksLoaded(tasks);
-        }
-
+        }, new Delivery<List<Task>>() {
+            @Override
+            public void deliver(List<Task> tasks) {
+                if (tasks.isEmpty()) {
+                    // This will be called if the table is new or just empty.
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+        });
     }
 
     /**
@@ -106,75 +336,286 @@ public class TasksLocalDataSource implements TasksDataSource {
      */
     @Override
     public void getTask(@NonNull String taskId, @NonNull GetTaskCallback callback) {
-        SQLiteDatabase db = mDbHelper.getReadableDatabase();
-
-        String[] projection = {
-                TaskEntry.COLUMN_NAME_ENTRY_ID,
-                TaskEntry.COLUMN_NAME_TITLE,
-                TaskEntry.COLUMN_NAME_DESCRIPTION,
-                TaskEntry.COLUMN_NAME_COMPLETED
-        };
-
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
-        String[] selectionArgs = { taskId };
+        getTask(taskId, null, callback);
+    }
 
-        Cursor c = db.query(
-                TaskEntry.TABLE_NAME, projection, selection, selectionArgs, null, null, null);
+    /**
+     * Cancelling {@code cancellationSignal} aborts the query if it is still running.
+     */
+    @Override
+    public void getTask(@NonNull final String taskId,
+                        @Nullable final CancellationSignal cancellationSignal,
+                        @NonNull final GetTaskCallback callback) {
+        checkNotNull(taskId);
+        checkNotNull(callback);
+        read(new Query<Task>() {
+            @Override
+            public Task run(SQLiteDatabase db) {
+                try {
+                    return queryTask(db, taskId, cancellationSignal);
+                } catch (OperationCanceledException ex) {
+                    return null;
+                }
+            }
+        }, new Delivery<Task>() {
+            @Override
+            public void deliver(Task task) {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    return;
+                }
+                if (task != null) {
+                    callback.onTaskLoaded(task);
+                } else {
+                    callback.onDataNotAvailable();
+                }
+            }
+        });
+    }
 
-        Task task = null;
+    /**
+     * Looks the tasks up with one {@code IN} query per {@link #MAX_QUERY_PARAMETERS} ids.
+     * <p>
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if none of the tasks are
+     * found.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         @NonNull final LoadTasksCallback callback) {
+        checkNotNull(taskIds);
+        checkNotNull(callback);
+        final List<String> ids = new ArrayList<>(taskIds);
+        read(new Query<List<Task>>() {
+            @Override
+            public List<Task> run(SQLiteDatabase db) {
+                List<Task> tasks = new ArrayList<>(ids.size());
+                for (int start = 0; start < ids.size(); start += MAX_QUERY_PARAMETERS) {
+                    List<String> chunk = ids.subList(
+                            start, Math.min(ids.size(), start + MAX_QUERY_PARAMETERS));
+                    StringBuilder selection = new StringBuilder(TaskEntry.COLUMN_NAME_ENTRY_ID)
+                            .append(" IN (");
+                    for (int i = 0; i < chunk.size(); i++) {
+                        selection.append(i == 0 ? "?" : ", ?");
+                    }
+                    selection.append(')');
+                    String[] selectionArgs = chunk.toArray(new String[chunk.size()]);
 
-        if (c != null && c.getCount() > 0) {
-            c.moveToFirst();
-            String itemId = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_ENTRY_ID));
-            String title = c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_TITLE));
-            String description =
-                    c.getString(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_DESCRIPTION));
-            boolean completed =
-                    c.getInt(c.getColumnIndexOrThrow(TaskEntry.COLUMN_NAME_COMPLETED)) == 1;
-            task = new Task(title, description, itemId, completed);
-        }
-        if (c != null) {
-            c.close();
-        }
+                    Cursor c = db.query(TaskEntry.TABLE_NAME, TASK_PROJECTION,
+                            selection.toString(), selectionArgs, null, null, null);
+                    try {
+                        while (c.moveToNext()) {
+                            tasks.add(readTask(c));
+                        }
+                    } finally {
+                        c.close();
+                    }
+                }
+                return tasks;
+            }
+        }, new Delivery<List<Task>>() {
+            @Override
+            public void deliver(List<Task> tasks) {
+                if (tasks.isEmpty()) {
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+        });
+    }
 
-        db.close();
+    /**
+     * Pages in rowid order, which is the order {@link #getTasks(LoadTasksCallback)} returns.
+     * Each page is one range scan of the table's own B-tree starting at the key, so the first
+     * page costs the same however many tasks there are. A task saved again while paging moves to
+     * the end, so it may show up on a later page too. Long descriptions are cut short, as for
+     * {@link #getTasks(LoadTasksCallback)}.
+     */
+    @Override
+    public void getTaskPage(final long pageKey, final int pageSize,
+                            @NonNull final LoadTaskPageCallback callback) {
+        checkArgument(pageSize > 0);
+        checkNotNull(callback);
+        read(new Query<TaskPage>() {
+            @Override
+            public TaskPage run(SQLiteDatabase db) {
+                List<Task> tasks = new ArrayList<>(pageSize);
+                long lastRowId = pageKey;
+                String selection = ROW_ID + " > ?";
+                String[] selectionArgs = { Long.toString(pageKey) };
+                Cursor c = db.query(TaskEntry.TABLE_NAME, PAGED_TASK_PROJECTION, selection,
+                        selectionArgs, null, null, ROW_ID, Integer.toString(pageSize));
+                try {
+                    while (c.moveToNext()) {
+                        tasks.add(readListTask(c));
+                        lastRowId = c.getLong(LIST_TASK_PROJECTION.length);
+                    }
+                } finally {
+                    c.close();
+                }
+                return TaskPage.create(tasks, lastRowId, tasks.size() < pageSize);
+            }
+        }, new Delivery<TaskPage>() {
+            @Override
+            public void deliver(TaskPage page) {
+                if (pageKey == TaskPage.FIRST_PAGE_KEY && page.tasks().isEmpty()) {
+                    // This will be called if the table is new or just empty.
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTaskPageLoaded(page);
+                }
+            }
+        });
+    }
 
-        if (task != null) {
-            callback.onTaskLoaded(task);
-        } else {
-            callback.onDataNotAvailable();
-        }
+    /**
+     * Counts with a single {@code GROUP BY} query over the completion index, so no tasks are
+     * read or decoded.
+     * <p>
+     * Note: {@link GetTaskCountsCallback#onDataNotAvailable()} is fired if the database doesn't
+     * exist or the table is empty.
+     */
+    @Override
+    public void getTaskCounts(@NonNull final GetTaskCountsCallback callback) {
+        checkNotNull(callback);
+        read(new Query<TaskCounts>() {
+            @Override
+            public TaskCounts run(SQLiteDatabase db) {
+                int active = 0;
+                int completed = 0;
+                Cursor c = db.rawQuery(SQL_COUNT_TASKS_BY_COMPLETION, null);
+                try {
+                    while (c.moveToNext()) {
+                        if (c.getInt(0) == 1) {
+                            completed = c.getInt(1);
+                        } else {
+                            active = c.getInt(1);
+                        }
+                    }
+                } finally {
+                    c.close();
+                }
+                return TaskCounts.create(active, completed);
+            }
+        }, new Delivery<TaskCounts>() {
+            @Override
+            public void deliver(TaskCounts counts) {
+                if (counts.total() == 0) {
+                    // This will be called if the table is new or just empty.
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTaskCountsLoaded(counts);
+                }
+            }
+        });
     }
 
+    /**
+     * Looks the words up in the full-text index, which the triggers set up by
+     * {@link TasksDbHelper} keep in step with the task table. Matches are ranked from the index
+     * alone, and only the best {@link #MAX_SEARCH_RESULTS} are then read from the task table, so
+     * a search costs little more than the index lookup however many tasks there are. Long
+     * descriptions are cut short, as for {@link #getTasks(LoadTasksCallback)}.
+     */
     @Override
-    public void saveTask(@NonNull Task task) {
-        checkNotNull(task);
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    public void searchTasks(@NonNull String query, @NonNull final LoadTasksCallback callback) {
+        checkNotNull(query);
+        checkNotNull(callback);
+        final String matchQuery = toMatchQuery(query);
+        read(new Query<List<Task>>() {
+            @Override
+            public List<Task> run(SQLiteDatabase db) {
+                if (matchQuery == null) {
+                    return Collections.emptyList();
+                }
+                List<Long> rowIds = rankSearchMatches(db, matchQuery);
+                if (rowIds.isEmpty()) {
+                    return Collections.emptyList();
+                }
+                return queryTasksByRowId(db, rowIds);
+            }
+        }, new Delivery<List<Task>>() {
+            @Override
+            public void deliver(List<Task> tasks) {
+                if (tasks.isEmpty()) {
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTasksLoaded(tasks);
+                }
+            }
+        });
+    }
 
-        ContentValues values = new ContentValues();
-        values.put(TaskEntry.COLUMN_NAME_ENTRY_ID, task.getId());
-        values.put(TaskEntry.COLUMN_NAME_TITLE, task.getTitle());
-        values.put(TaskEntry.COLUMN_NAME_DESCRIPTION, task.getDescription());
-        values.put(TaskEntry.COLUMN_NAME_COMPLETED, task.isCompleted());
+    /**
+     * Saves the task and appends it to the outbox in one transaction. A task whose description
+     * isn't loaded keeps the description already stored.
+     */
+    @Override
+    public void saveTask(final @NonNull Task taskToSave) {
+        checkNotNull(taskToSave);
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                Task task = loadDescription(db, taskToSave);
+                ContentValues values = new ContentValues();
+                values.put(TaskEntry.COLUMN_NAME_ENTRY_ID, task.getId());
+                values.put(TaskEntry.COLUMN_NAME_TITLE, task.getTitle());
+                values.put(TaskEntry.COLUMN_NAME_DESCRIPTION, task.getFullDescription());
+                values.put(TaskEntry.COLUMN_NAME_COMPLETED, task.isCompleted());
+                values.put(TaskEntry.COLUMN_NAME_VERSION, task.getVersion());
+                values.put(TaskEntry.COLUMN_NAME_TITLE_STAMP, task.getTitleStamp());
+                values.put(TaskEntry.COLUMN_NAME_DESCRIPTION_STAMP, task.getDescriptionStamp());
+                values.put(TaskEntry.COLUMN_NAME_COMPLETED_STAMP, task.getCompletedStamp());
 
-        db.insert(TaskEntry.TABLE_NAME, null, values);
+                SQLiteStatement append = db.compileStatement(SQL_APPEND_WRITE);
+                try {
+                    db.insertWithOnConflict(
+                            TaskEntry.TABLE_NAME, null, values, SQLiteDatabase.CONFLICT_REPLACE);
+                    appendWrite(append, TaskWrite.Operation.SAVE, task.getId(), task,
+                            task.isCompleted(), task.getCompletedStamp());
+                } finally {
+                    append.close();
+                }
+            }
+        });
+    }
 
-        db.close();
+    /**
+     * Inserts all tasks in one transaction, reusing a single compiled statement for every row.
+     * Tasks whose description isn't loaded keep the description already stored.
+     */
+    @Override
+    public void saveTasks(final @NonNull List<Task> tasksToSave) {
+        checkNotNull(tasksToSave);
+        if (tasksToSave.isEmpty()) {
+            return;
+        }
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                List<Task> tasks = new ArrayList<>(tasksToSave.size());
+                for (Task task : tasksToSave) {
+                    tasks.add(loadDescription(db, task));
+                }
+                SQLiteStatement statement = db.compileStatement(SQL_INSERT_TASK);
+                SQLiteStatement append = db.compileStatement(SQL_APPEND_WRITE);
+                try {
+                    insertTasks(statement, tasks);
+                    for (Task task : tasks) {
+                        appendWrite(append, TaskWrite.Operation.SAVE, task.getId(), task,
+                                task.isCompleted(), task.getCompletedStamp());
+                    }
+                } finally {
+                    statement.close();
+                    append.close();
+                }
+            }
+        });
     }
 
     @Override
     public void completeTask(@NonNull Task task) {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(TaskEntry.COLUMN_NAME_COMPLETED, true);
-
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
-        String[] selectionArgs = { task.getId() };
-
-        db.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
-
-        db.close();
+        updateCompletion(Collections.singletonList(task.getId()), true,
+                HybridLogicalClock.getInstance().now());
     }
 
     @Override
@@ -185,17 +626,8 @@ public class TasksLocalDataSource implements TasksDataSource {
 
     @Override
     public void activateTask(@NonNull Task task) {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(TaskEntry.COLUMN_NAME_COMPLETED, false);
-
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
-        String[] selectionArgs = { task.getId() };
-
-        db.update(TaskEntry.TABLE_NAME, values, selection, selectionArgs);
-
-        db.close();
+        updateCompletion(Collections.singletonList(task.getId()), false,
+                HybridLogicalClock.getInstance().now());
     }
 
     @Override
@@ -206,14 +638,21 @@ public class TasksLocalDataSource implements TasksDataSource {
 
     @Override
     public void clearCompletedTasks() {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                String selection = TaskEntry.COLUMN_NAME_COMPLETED + " = 1";
 
-        String selection = TaskEntry.COLUMN_NAME_COMPLETED + " LIKE ?";
-        String[] selectionArgs = { "1" };
-
-        db.delete(TaskEntry.TABLE_NAME, selection, selectionArgs);
-
-        db.close();
+                SQLiteStatement append = db.compileStatement(SQL_APPEND_WRITE);
+                try {
+                    db.delete(TaskEntry.TABLE_NAME, selection, null);
+                    appendWrite(append, TaskWrite.Operation.DELETE_COMPLETED, null, null, false,
+                            0);
+                } finally {
+                    append.close();
+                }
+            }
+        });
     }
 
     @Override
@@ -224,22 +663,797 @@ public class TasksLocalDataSource implements TasksDataSource {
 
     @Override
     public void deleteAllTasks() {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                // Without its tasks the sync token no longer describes the table, so the next
+                // sync must be a full one.
+                SQLiteStatement append = db.compileStatement(SQL_APPEND_WRITE);
+                try {
+                    db.delete(TaskEntry.TABLE_NAME, null, null);
+                    db.delete(SyncStateEntry.TABLE_NAME, null, null);
+                    appendWrite(append, TaskWrite.Operation.DELETE_ALL, null, null, false, 0);
+                } finally {
+                    append.close();
+                }
+            }
+        });
+    }
+
+    @Override
+    public void deleteTask(@NonNull String taskId) {
+        deleteTasks(Collections.singletonList(checkNotNull(taskId)));
+    }
 
-        db.delete(TaskEntry.TABLE_NAME, null, null);
+    @Override
+    public void deleteTasks(final @NonNull Collection<String> taskIds) {
+        checkNotNull(taskIds);
+        if (taskIds.isEmpty()) {
+            return;
+        }
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                SQLiteStatement statement = db.compileStatement(SQL_DELETE_TASK);
+                SQLiteStatement append = db.compileStatement(SQL_APPEND_WRITE);
+                try {
+                    for (String taskId : taskIds) {
+                        statement.bindString(1, taskId);
+                        statement.executeUpdateDelete();
+                        appendWrite(append, TaskWrite.Operation.DELETE, taskId, null, false, 0);
+                    }
+                } finally {
+                    statement.close();
+                    append.close();
+                }
+            }
+        });
+    }
 
-        db.close();
+    @Override
+    public void updateCompletion(final @NonNull Collection<String> taskIds,
+                                 final boolean completed, final long stamp) {
+        checkNotNull(taskIds);
+        if (taskIds.isEmpty()) {
+            return;
+        }
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                SQLiteStatement statement = db.compileStatement(SQL_UPDATE_COMPLETION);
+                SQLiteStatement append = db.compileStatement(SQL_APPEND_WRITE);
+                try {
+                    for (String taskId : taskIds) {
+                        statement.bindLong(1, completed ? 1 : 0);
+                        statement.bindLong(2, stamp);
+                        statement.bindString(3, taskId);
+                        statement.executeUpdateDelete();
+                        appendWrite(append, TaskWrite.Operation.SET_COMPLETED, taskId, null,
+                                completed, stamp);
+                    }
+                } finally {
+                    statement.close();
+                    append.close();
+                }
+            }
+        });
     }
 
     @Override
-    public void deleteTask(@NonNull String taskId) {
-        SQLiteDatabase db = mDbHelper.getWritableDatabase();
+    public void getTaskDelta(long syncToken, @NonNull GetTaskDeltaCallback callback) {
+        // Not required for the local data source because the {@link TasksRepository} only syncs
+        // from the remote data source, which keeps the tombstones a delta needs.
+        callback.onDataNotAvailable();
+    }
+
+    /**
+     * Applies the delta and records its sync token in one transaction, so the stored token never
+     * gets ahead of the stored tasks. Each changed task is merged with the stored copy, if any,
+     * so that a local edit the remote has not seen yet is kept.
+     * <p>
+     * Only rows that actually change are written. A full snapshot is diffed against the whole
+     * table by id: new tasks are inserted, changed ones updated in place and missing ones
+     * deleted, so a snapshot that is mostly unchanged costs few page writes.
+     */
+    @Override
+    public void applyTaskDelta(final @NonNull TaskDelta delta) {
+        checkNotNull(delta);
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                long startMillis = SystemClock.elapsedRealtime();
+                int inserted = 0;
+                int updated = 0;
+                int deleted = 0;
+                SQLiteStatement insert = db.compileStatement(SQL_INSERT_TASK);
+                SQLiteStatement update = db.compileStatement(SQL_UPDATE_TASK);
+                SQLiteStatement delete = db.compileStatement(SQL_DELETE_TASK);
+                SQLiteStatement saveToken = db.compileStatement(SQL_SAVE_SYNC_TOKEN);
+                try {
+                    // For a full snapshot one scan of the table replaces a lookup per task, and
+                    // whatever is left over afterwards is what the snapshot no longer has.
+                    Map<String, Task> storedTasks =
+                            delta.isFullSnapshot() ? queryAllTasks(db) : null;
+                    for (Task task : delta.changed()) {
+                        Task stored = storedTasks != null
+                                ? storedTasks.remove(task.getId())
+                                : queryTask(db, task.getId(), null);
+                        if (stored == null) {
+                            insertTasks(insert, Collections.singletonList(task));
+                            inserted++;
+                            continue;
+                        }
+                        Task merged = TaskMerger.merge(stored, task);
+                        if (!sameRow(stored, merged)) {
+                            updateTask(update, merged);
+                            updated++;
+                        }
+                    }
+                    Collection<String> deletedIds =
+                            storedTasks != null ? storedTasks.keySet() : delta.deletedIds();
+                    for (String taskId : deletedIds) {
+                        delete.bindString(1, taskId);
+                        deleted += delete.executeUpdateDelete();
+                    }
+                    if (delta.syncToken() != TaskDelta.NO_SYNC_TOKEN) {
+                        saveToken.bindLong(1, delta.syncToken());
+                        saveToken.executeInsert();
+                    }
+                } finally {
+                    insert.close();
+                    update.close();
+                    delete.close();
+                    saveToken.close();
+                }
+                if (Log.isLoggable(TAG, Log.DEBUG)) {
+                    Log.d(TAG, "Applied " + (delta.isFullSnapshot() ? "snapshot" : "delta")
+                            + " of " + delta.changed().size() + " tasks: " + inserted
+                            + " inserted, " + updated + " updated, " + deleted + " deleted in "
+                            + (SystemClock.elapsedRealtime() - startMillis) + " ms");
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads the token once every write queued so far has been committed.
+     */
+    @Override
+    public void getSyncToken(@NonNull final GetSyncTokenCallback callback) {
+        checkNotNull(callback);
+        read(new Query<Long>() {
+            @Override
+            public Long run(SQLiteDatabase db) {
+                String[] projection = { SyncStateEntry.COLUMN_NAME_VALUE };
+                String selection = SyncStateEntry.COLUMN_NAME_KEY + " = ?";
+                String[] selectionArgs = { SyncStateEntry.KEY_SYNC_TOKEN };
+
+                Cursor c = db.query(SyncStateEntry.TABLE_NAME, projection, selection,
+                        selectionArgs, null, null, null);
+                try {
+                    return c.moveToFirst() ? c.getLong(0) : 0L;
+                } finally {
+                    c.close();
+                }
+            }
+        }, new Delivery<Long>() {
+            @Override
+            public void deliver(Long syncToken) {
+                callback.onSyncTokenLoaded(syncToken);
+            }
+        });
+    }
+
+    @Override
+    public void pushTaskWrites(@NonNull List<TaskWrite> writes,
+                               @NonNull PushTaskWritesCallback callback) {
+        // Not required for the local data source because writes are only ever pushed to the
+        // remote data source.
+        callback.onDataNotAvailable();
+    }
+
+    @Override
+    public void getTaskTreeHashes(@NonNull List<Integer> nodes,
+                                  @NonNull GetTaskTreeHashesCallback callback) {
+        // Not required for the local data source because the {@link TasksRepository} keeps the
+        // tree of the local tasks itself.
+        callback.onDataNotAvailable();
+    }
+
+    @Override
+    public void getTasksInTreeBuckets(@NonNull Collection<Integer> buckets,
+                                      @NonNull LoadTasksCallback callback) {
+        // Not required for the local data source because the {@link TasksRepository} keeps the
+        // tree of the local tasks itself.
+        callback.onDataNotAvailable();
+    }
 
-        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " LIKE ?";
+    /**
+     * Reads the outbox once every write queued so far has been committed.
+     */
+    @Override
+    public void peekPendingWrites(final int maxCount,
+                                  @NonNull final LoadPendingWritesCallback callback) {
+        checkNotNull(callback);
+        read(new Query<List<TaskWrite>>() {
+            @Override
+            public List<TaskWrite> run(SQLiteDatabase db) {
+                return queryPendingWrites(db, maxCount);
+            }
+        }, new Delivery<List<TaskWrite>>() {
+            @Override
+            public void deliver(List<TaskWrite> writes) {
+                callback.onPendingWritesLoaded(writes);
+            }
+        });
+    }
+
+    @NonNull
+    private static List<TaskWrite> queryPendingWrites(@NonNull SQLiteDatabase db, int maxCount) {
+        List<TaskWrite> writes = new ArrayList<>();
+
+        String[] projection = {
+                OutboxEntry.COLUMN_NAME_SEQUENCE,
+                OutboxEntry.COLUMN_NAME_IDEMPOTENCY_KEY,
+                OutboxEntry.COLUMN_NAME_OPERATION,
+                OutboxEntry.COLUMN_NAME_ENTRY_ID,
+                OutboxEntry.COLUMN_NAME_TITLE,
+                OutboxEntry.COLUMN_NAME_DESCRIPTION,
+                OutboxEntry.COLUMN_NAME_COMPLETED,
+                OutboxEntry.COLUMN_NAME_VERSION,
+                OutboxEntry.COLUMN_NAME_TITLE_STAMP,
+                OutboxEntry.COLUMN_NAME_DESCRIPTION_STAMP,
+                OutboxEntry.COLUMN_NAME_COMPLETED_STAMP
+        };
+
+        Cursor c = db.query(OutboxEntry.TABLE_NAME, projection, null, null, null, null,
+                OutboxEntry.COLUMN_NAME_SEQUENCE, Integer.toString(maxCount));
+        try {
+            while (c.moveToNext()) {
+                TaskWrite.Operation operation = TaskWrite.Operation.valueOf(c.getString(2));
+                String taskId = c.getString(3);
+                boolean completed = c.getInt(6) == 1;
+                long completedStamp = c.getLong(10);
+                Task task = operation == TaskWrite.Operation.SAVE
+                        ? new Task(c.getString(4), c.getString(5), taskId, completed,
+                                c.getLong(7), c.getLong(8), c.getLong(9), completedStamp)
+                        : null;
+                writes.add(TaskWrite.create(c.getLong(0), c.getString(1), operation, taskId, task,
+                        completed, completedStamp));
+            }
+        } finally {
+            c.close();
+        }
+        return writes;
+    }
+
+    @Override
+    public void removePendingWrites(final long sequence) {
+        enqueueWrite(new Write() {
+            @Override
+            public void run(SQLiteDatabase db) {
+                String selection = OutboxEntry.COLUMN_NAME_SEQUENCE + " <= ?";
+                String[] selectionArgs = { Long.toString(sequence) };
+
+                db.delete(OutboxEntry.TABLE_NAME, selection, selectionArgs);
+            }
+        });
+    }
+
+    @Override
+    public void setCommitFailureListener(@Nullable CommitFailureListener listener) {
+        mCommitFailureListener = listener;
+    }
+
+    /**
+     * Counts once every write queued so far has been committed.
+     */
+    @Override
+    public void getPendingWriteCount(@NonNull final GetPendingWriteCountCallback callback) {
+        checkNotNull(callback);
+        read(new Query<Integer>() {
+            @Override
+            public Integer run(SQLiteDatabase db) {
+                return (int) DatabaseUtils.queryNumEntries(db, OutboxEntry.TABLE_NAME);
+            }
+        }, new Delivery<Integer>() {
+            @Override
+            public void deliver(Integer count) {
+                callback.onPendingWriteCountLoaded(count);
+            }
+        });
+    }
+
+    /**
+     * Queues {@code write} for the writer thread, after every write queued before it.
+     */
+    private void enqueueWrite(@NonNull Write write) {
+        synchronized (mWriteLock) {
+            mQueuedWrites.add(write);
+            mQueuedWriteCount++;
+            if (!mCommitScheduled) {
+                mCommitScheduled = true;
+                mWriterExecutor.execute(mCommitRunnable);
+            }
+        }
+    }
+
+    /**
+     * Runs on the writer thread. Commits everything queued so far in one transaction, so a burst
+     * of writes costs a single sync to disk. If the group fails, its writes are retried one
+     * transaction each, so that one bad write doesn't take the others down with it. A write that
+     * still fails after {@link #MAX_COMMIT_ATTEMPTS} tries is dropped and reported to the
+     * {@link CommitFailureListener}, as is every write of the group if the database can't be
+     * opened. However the commit ends, the writes count as committed afterwards, so that readers
+     * waiting for them aren't blocked for ever.
+     */
+    private void commitQueuedWrites() {
+        List<Write> writes;
+        long lastWrite;
+        synchronized (mWriteLock) {
+            writes = new ArrayList<>(mQueuedWrites);
+            mQueuedWrites.clear();
+            lastWrite = mQueuedWriteCount;
+            mCommitScheduled = false;
+        }
+
+        // Counts down as writes commit, so it is right however the commit ends.
+        int failedWrites = writes.size();
+        try {
+            SQLiteDatabase db = mDbHelper.getWritableDatabase();
+            try {
+                runInTransaction(db, writes);
+                failedWrites = 0;
+            } catch (RuntimeException groupFailure) {
+                Log.w(TAG, "Group commit of " + writes.size() + " writes failed", groupFailure);
+                for (Write write : writes) {
+                    if (commitAlone(db, write)) {
+                        failedWrites--;
+                    }
+                }
+            }
+        } catch (RuntimeException ex) {
+            Log.e(TAG, "Dropping " + failedWrites + " writes that failed to commit", ex);
+        } finally {
+            synchronized (mWriteLock) {
+                mCommittedWriteCount = lastWrite;
+                mWriteLock.notifyAll();
+            }
+            reportFailedWrites(failedWrites);
+        }
+    }
+
+    /**
+     * Tells the {@link CommitFailureListener}, if there is one, that {@code failedWrites} writes
+     * were dropped.
+     */
+    private void reportFailedWrites(final int failedWrites) {
+        final CommitFailureListener listener = mCommitFailureListener;
+        if (failedWrites > 0 && listener != null) {
+            mMainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.onWritesFailed(failedWrites);
+                }
+            });
+        }
+    }
+
+    /**
+     * Commits {@code write} in a transaction of its own, trying up to
+     * {@link #MAX_COMMIT_ATTEMPTS} times. Returns false if every attempt failed.
+     */
+    private static boolean commitAlone(@NonNull SQLiteDatabase db, @NonNull Write write) {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                runInTransaction(db, Collections.singletonList(write));
+                return true;
+            } catch (RuntimeException ex) {
+                if (attempt >= MAX_COMMIT_ATTEMPTS) {
+                    Log.e(TAG, "Dropping write that failed to commit", ex);
+                    return false;
+                }
+                Log.w(TAG, "Write failed to commit, retrying", ex);
+            }
+        }
+    }
+
+    private static void runInTransaction(@NonNull SQLiteDatabase db,
+                                         @NonNull List<Write> writes) {
+        db.beginTransaction();
+        try {
+            for (Write write : writes) {
+                write.run(db);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private long queuedWriteCount() {
+        synchronized (mWriteLock) {
+            return mQueuedWriteCount;
+        }
+    }
+
+    /**
+     * Blocks until the first {@code writeCount} writes have been committed.
+     */
+    private void awaitWrites(long writeCount) {
+        synchronized (mWriteLock) {
+            boolean interrupted = false;
+            while (mCommittedWriteCount < writeCount) {
+                try {
+                    mWriteLock.wait();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Runs {@code query} on a reader thread, after every write queued by then has committed, and
+     * hands its result to {@code delivery} on the main thread. If more writes were queued in the
+     * meantime the query is run again, so that a callback doesn't see tasks older than a write
+     * made before it runs. After {@link #MAX_READ_ATTEMPTS} such runs, the query is run on the
+     * writer thread instead, so that a steady stream of writes can't hold it off for ever.
+     */
+    private <T> void read(@NonNull Query<T> query, @NonNull Delivery<T> delivery) {
+        read(query, delivery, 1);
+    }
+
+    private <T> void read(@NonNull final Query<T> query, @NonNull final Delivery<T> delivery,
+                          final int attempt) {
+        mReaderExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long seenWrites = queuedWriteCount();
+                awaitWrites(seenWrites);
+                final T result = query.run(mDbHelper.getReadableDatabase());
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (queuedWriteCount() != seenWrites) {
+                            if (attempt < MAX_READ_ATTEMPTS) {
+                                read(query, delivery, attempt + 1);
+                            } else {
+                                readOnWriter(query, delivery);
+                            }
+                            return;
+                        }
+                        delivery.deliver(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Runs {@code query} on the writer thread, which commits writes in the order they were
+     * queued, so every write queued before this call has committed and none can commit while the
+     * query runs. The result is delivered without checking for newer writes again.
+     */
+    private <T> void readOnWriter(@NonNull final Query<T> query,
+                                  @NonNull final Delivery<T> delivery) {
+        mWriterExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final T result = query.run(mDbHelper.getReadableDatabase());
+                mMainHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        delivery.deliver(result);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Appends a write with a fresh idempotency key to the outbox. Must be called inside the
+     * transaction that makes the change it describes.
+     */
+    private static void appendWrite(@NonNull SQLiteStatement statement,
+                                    @NonNull TaskWrite.Operation operation,
+                                    @Nullable String taskId,
+                                    @Nullable Task task,
+                                    boolean completed,
+                                    long completedStamp) {
+        statement.bindString(1, TaskWrite.newIdempotencyKey());
+        statement.bindString(2, operation.name());
+        bindNullableString(statement, 3, taskId);
+        bindNullableString(statement, 4, task == null ? null : task.getTitle());
+        bindNullableString(statement, 5, task == null ? null : task.getFullDescription());
+        statement.bindLong(6, completed ? 1 : 0);
+        statement.bindLong(7, task == null ? 0 : task.getVersion());
+        statement.bindLong(8, task == null ? 0 : task.getTitleStamp());
+        statement.bindLong(9, task == null ? 0 : task.getDescriptionStamp());
+        statement.bindLong(10, completedStamp);
+        statement.executeInsert();
+    }
+
+    @NonNull
+    private static Map<String, Task> queryAllTasks(@NonNull SQLiteDatabase db) {
+        Map<String, Task> tasks = new HashMap<>();
+        Cursor c = db.query(
+                TaskEntry.TABLE_NAME, TASK_PROJECTION, null, null, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                Task task = readTask(c);
+                tasks.put(task.getId(), task);
+            }
+        } finally {
+            c.close();
+        }
+        return tasks;
+    }
+
+    @Nullable
+    private static Task queryTask(@NonNull SQLiteDatabase db, @NonNull String taskId,
+                                  @Nullable CancellationSignal cancellationSignal) {
+        String selection = TaskEntry.COLUMN_NAME_ENTRY_ID + " = ?";
         String[] selectionArgs = { taskId };
 
-        db.delete(TaskEntry.TABLE_NAME, selection, selectionArgs);
+        Cursor c = db.query(false, TaskEntry.TABLE_NAME, TASK_PROJECTION, selection,
+                selectionArgs, null, null, null, null, cancellationSignal);
+        try {
+            return c.moveToFirst() ? readTask(c) : null;
+        } finally {
+            c.close();
+        }
+    }
 
-        db.close();
+    /**
+     * Returns {@code task} with the whole of its description, taken from the stored row if
+     * {@code task} only has the start of it. A task that is no longer stored keeps what it has.
+     */
+    @NonNull
+    private static Task loadDescription(@NonNull SQLiteDatabase db, @NonNull Task task) {
+        if (task.isDescriptionLoaded()) {
+            return task;
+        }
+        Task stored = queryTask(db, task.getId(), null);
+        return stored != null
+                ? task.withDescription(stored.getFullDescription(), stored.getDescriptionStamp())
+                : task.withDescription(task.getDescription(), task.getDescriptionStamp());
+    }
+
+    /**
+     * Reads the task at the cursor's position. The cursor must use {@link #TASK_PROJECTION}.
+     */
+    @NonNull
+    private static Task readTask(@NonNull Cursor c) {
+        return new Task(
+                c.getString(1),
+                c.getString(2),
+                c.getString(0),
+                c.getInt(3) == 1,
+                c.getLong(4),
+                c.getLong(5),
+                c.getLong(6),
+                c.getLong(7));
+    }
+
+    /**
+     * Reads the task at the cursor's position. The cursor must use
+     * {@link #LIST_TASK_PROJECTION}.
+     */
+    @NonNull
+    private static Task readListTask(@NonNull Cursor c) {
+        return new Task(
+                c.getString(1),
+                c.getString(2),
+                c.getString(0),
+                c.getInt(3) == 1,
+                c.getLong(4),
+                c.getLong(5),
+                c.getLong(6),
+                c.getLong(7),
+                c.getInt(8) == 1);
+    }
+
+    private static void insertTasks(@NonNull SQLiteStatement statement,
+                                    @NonNull Collection<Task> tasks) {
+        for (Task task : tasks) {
+            statement.bindString(1, task.getId());
+            bindNullableString(statement, 2, task.getTitle());
+            bindNullableString(statement, 3, task.getFullDescription());
+            statement.bindLong(4, task.isCompleted() ? 1 : 0);
+            statement.bindLong(5, task.getVersion());
+            statement.bindLong(6, task.getTitleStamp());
+            statement.bindLong(7, task.getDescriptionStamp());
+            statement.bindLong(8, task.getCompletedStamp());
+            statement.executeInsert();
+        }
+    }
+
+    private static void updateTask(@NonNull SQLiteStatement statement, @NonNull Task task) {
+        bindNullableString(statement, 1, task.getTitle());
+        bindNullableString(statement, 2, task.getFullDescription());
+        statement.bindLong(3, task.isCompleted() ? 1 : 0);
+        statement.bindLong(4, task.getVersion());
+        statement.bindLong(5, task.getTitleStamp());
+        statement.bindLong(6, task.getDescriptionStamp());
+        statement.bindLong(7, task.getCompletedStamp());
+        statement.bindString(8, task.getId());
+        statement.executeUpdateDelete();
+    }
+
+    /**
+     * Returns true if the two tasks would be stored as identical rows. Unlike
+     * {@link Task#equals(Object)} this compares every column.
+     */
+    private static boolean sameRow(@NonNull Task a, @NonNull Task b) {
+        return a.equals(b)
+                && a.isCompleted() == b.isCompleted()
+                && a.getVersion() == b.getVersion()
+                && a.getTitleStamp() == b.getTitleStamp()
+                && a.getDescriptionStamp() == b.getDescriptionStamp()
+                && a.getCompletedStamp() == b.getCompletedStamp();
+    }
+
+    /**
+     * Turns what the user typed into a query that matches a word starting with each of its words,
+     * or returns null if it has no words. Words are split as the index's tokenizer splits them,
+     * so no characters with a meaning in the query syntax get through. They are lowercased too,
+     * like the indexed words, so AND, OR and NEAR aren't read as operators.
+     */
+    @Nullable
+    private static String toMatchQuery(@NonNull String query) {
+        StringBuilder matchQuery = new StringBuilder();
+        for (String word : SEARCH_WORD_SEPARATORS.split(Ascii.toLowerCase(query))) {
+            if (word.isEmpty()) {
+                continue;
+            }
+            if (matchQuery.length() > 0) {
+                matchQuery.append(' ');
+            }
+            matchQuery.append(word).append('*');
+        }
+        return matchQuery.length() == 0 ? null : matchQuery.toString();
+    }
+
+    /**
+     * Returns the rowids of the best {@link #MAX_SEARCH_RESULTS} matches, best first.
+     */
+    @NonNull
+    private static List<Long> rankSearchMatches(@NonNull SQLiteDatabase db,
+                                                @NonNull String matchQuery) {
+        // Holds the best matches so far, worst at the head.
+        PriorityQueue<SearchMatch> best = new PriorityQueue<>(MAX_SEARCH_RESULTS + 1);
+        Cursor c = db.rawQuery(SQL_SEARCH_TASKS, new String[] { matchQuery });
+        try {
+            while (c.moveToNext()) {
+                best.add(new SearchMatch(c.getLong(0), score(c.getBlob(1))));
+                if (best.size() > MAX_SEARCH_RESULTS) {
+                    best.poll();
+                }
+            }
+        } finally {
+            c.close();
+        }
+        List<SearchMatch> matches = new ArrayList<>(best);
+        Collections.sort(matches, Collections.reverseOrder());
+        List<Long> rowIds = new ArrayList<>(matches.size());
+        for (SearchMatch match : matches) {
+            rowIds.add(match.mRowId);
+        }
+        return rowIds;
+    }
+
+    /**
+     * Scores a match from its {@code matchinfo(..., 'pcx')} blob: the phrase count, the column
+     * count, then for each phrase and column the hits in this row, the hits in all rows and the
+     * number of rows with a hit, each a native-order 32-bit integer. As in the ranking function
+     * of the SQLite FTS documentation, each hit adds its column's weight divided by the hits of
+     * its phrase in all rows, so that hits on rare words count for more.
+     */
+    private static double score(@NonNull byte[] matchInfo) {
+        IntBuffer info = ByteBuffer.wrap(matchInfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = info.get(0);
+        int columns = info.get(1);
+        double score = 0;
+        for (int phrase = 0; phrase < phrases; phrase++) {
+            for (int column = 0; column < columns; column++) {
+                int offset = 2 + 3 * (phrase * columns + column);
+                int hitsInRow = info.get(offset);
+                int hitsInAllRows = info.get(offset + 1);
+                if (hitsInRow > 0) {
+                    score += SEARCH_COLUMN_WEIGHTS[column] * hitsInRow / hitsInAllRows;
+                }
+            }
+        }
+        return score;
+    }
+
+    /**
+     * Reads the tasks with the given rowids, in the same order. Tasks deleted since they were
+     * matched are left out.
+     */
+    @NonNull
+    private static List<Task> queryTasksByRowId(@NonNull SQLiteDatabase db,
+                                                @NonNull List<Long> rowIds) {
+        StringBuilder selection = new StringBuilder(ROW_ID).append(" IN (");
+        String[] selectionArgs = new String[rowIds.size()];
+        for (int i = 0; i < rowIds.size(); i++) {
+            selection.append(i == 0 ? "?" : ", ?");
+            selectionArgs[i] = Long.toString(rowIds.get(i));
+        }
+        selection.append(')');
+
+        Map<Long, Task> tasksByRowId = new HashMap<>();
+        Cursor c = db.query(TaskEntry.TABLE_NAME, PAGED_TASK_PROJECTION, selection.toString(),
+                selectionArgs, null, null, null);
+        try {
+            while (c.moveToNext()) {
+                tasksByRowId.put(c.getLong(LIST_TASK_PROJECTION.length), readListTask(c));
+            }
+        } finally {
+            c.close();
+        }
+        List<Task> tasks = new ArrayList<>(rowIds.size());
+        for (Long rowId : rowIds) {
+            Task task = tasksByRowId.get(rowId);
+            if (task != null) {
+                tasks.add(task);
+            }
+        }
+        return tasks;
+    }
+
+    private static void bindNullableString(
+            @NonNull SQLiteStatement statement, int index, @Nullable String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    /**
+     * A change to the database, run on the writer thread inside a transaction.
+     */
+    private interface Write {
+
+        void run(SQLiteDatabase db);
+    }
+
+    private interface Query<T> {
+
+        T run(SQLiteDatabase db);
+    }
+
+    private interface Delivery<T> {
+
+        void deliver(T result);
+    }
+
+    /**
+     * A search match, ordered by score and then, to keep the order stable, by age.
+     */
+    private static final class SearchMatch implements Comparable<SearchMatch> {
+
+        private final long mRowId;
+
+        private final double mScore;
+
+        SearchMatch(long rowId, double score) {
+            mRowId = rowId;
+            mScore = score;
+        }
+
+        @Override
+        public int compareTo(@NonNull SearchMatch other) {
+            if (mScore != other.mScore) {
+                return mScore > other.mScore ? 1 : -1;
+            }
+            // Older tasks, with smaller rowids, rank higher.
+            return mRowId == other.mRowId ? 0 : (mRowId < other.mRowId ? 1 : -1);
+        }
     }
 }
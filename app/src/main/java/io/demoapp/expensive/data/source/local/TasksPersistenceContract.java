@@ -16,8 +16,6 @@
 
 package io.demoapp.expensive.data.source.local;
 
-import android.provider.BaseColumns;
-
 /**
  * The contract used for the db to save the tasks locally.
  */
@@ -28,11 +26,51 @@ public final class TasksPersistenceContract {
     private TasksPersistenceContract() {}
 
     /* Inner class that defines the table contents */
-    public static abstract class TaskEntry implements BaseColumns {
+    public static abstract class TaskEntry {
         public static final String TABLE_NAME = "task";
+        public static final String INDEX_COMPLETED = "task_completed_idx";
         public static final String COLUMN_NAME_ENTRY_ID = "entryid";
         public static final String COLUMN_NAME_TITLE = "title";
         public static final String COLUMN_NAME_DESCRIPTION = "description";
         public static final String COLUMN_NAME_COMPLETED = "completed";
+        public static final String COLUMN_NAME_VERSION = "version";
+        public static final String COLUMN_NAME_TITLE_STAMP = "title_hlc";
+        public static final String COLUMN_NAME_DESCRIPTION_STAMP = "description_hlc";
+        public static final String COLUMN_NAME_COMPLETED_STAMP = "completed_hlc";
+    }
+
+    /* Full-text index over the task titles and descriptions, kept in step by triggers */
+    public static abstract class TaskSearchEntry {
+        public static final String TABLE_NAME = "task_search";
+        public static final String COLUMN_NAME_DOC_ID = "docid";
+        public static final String TRIGGER_BEFORE_INSERT = "task_search_bi";
+        public static final String TRIGGER_AFTER_INSERT = "task_search_ai";
+        public static final String TRIGGER_BEFORE_UPDATE = "task_search_bu";
+        public static final String TRIGGER_AFTER_UPDATE = "task_search_au";
+        public static final String TRIGGER_BEFORE_DELETE = "task_search_bd";
+    }
+
+    /* Local writes waiting to be sent to the remote data source, oldest first */
+    public static abstract class OutboxEntry {
+        public static final String TABLE_NAME = "outbox";
+        public static final String COLUMN_NAME_SEQUENCE = "seq";
+        public static final String COLUMN_NAME_IDEMPOTENCY_KEY = "idempotency_key";
+        public static final String COLUMN_NAME_OPERATION = "operation";
+        public static final String COLUMN_NAME_ENTRY_ID = "entryid";
+        public static final String COLUMN_NAME_TITLE = "title";
+        public static final String COLUMN_NAME_DESCRIPTION = "description";
+        public static final String COLUMN_NAME_COMPLETED = "completed";
+        public static final String COLUMN_NAME_VERSION = "version";
+        public static final String COLUMN_NAME_TITLE_STAMP = "title_hlc";
+        public static final String COLUMN_NAME_DESCRIPTION_STAMP = "description_hlc";
+        public static final String COLUMN_NAME_COMPLETED_STAMP = "completed_hlc";
+    }
+
+    /* Key-value pairs recording how far the local data is synced */
+    public static abstract class SyncStateEntry {
+        public static final String TABLE_NAME = "sync_state";
+        public static final String COLUMN_NAME_KEY = "key";
+        public static final String COLUMN_NAME_VALUE = "value";
+        public static final String KEY_SYNC_TOKEN = "sync_token";
     }
 }
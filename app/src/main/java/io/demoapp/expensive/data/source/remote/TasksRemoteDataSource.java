@@ -16,19 +16,46 @@
 
 package io.demoapp.expensive.data.source.remote;
 
+import android.os.CancellationSignal;
 import android.os.Handler;
 import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
 
 import io.demoapp.expensive.data.Task;
+import io.demoapp.expensive.data.source.HybridLogicalClock;
+import io.demoapp.expensive.data.source.TaskDelta;
+import io.demoapp.expensive.data.source.TaskMerger;
+import io.demoapp.expensive.data.source.TaskMerkleTree;
+import io.demoapp.expensive.data.source.TaskWrite;
 import io.demoapp.expensive.data.source.TasksDataSource;
 import com.google.common.collect.Lists;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation of the data source that adds a latency simulating network.
+ * <p>
+ * Every write stamps the task with the next value of a global version counter, and every
+ * delete leaves a tombstone at the next version, so that
+ * {@link #getTaskDelta(long, GetTaskDeltaCallback)} can answer with only what changed after a
+ * given version. A limited number of tombstones is kept; tokens that predate the oldest
+ * discarded one have expired.
+ * <p>
+ * Writes pushed through {@link #pushTaskWrites(List, PushTaskWritesCallback)} are applied at most
+ * once: the idempotency keys of the most recent writes are remembered and repeats are skipped.
+ * Writes to a task that has been deleted are refused rather than bringing it back.
+ * A written task is merged with the stored one by {@link TaskMerger}, so a device pushing an
+ * older edit of a field doesn't overwrite a newer one from another device.
+ * <p>
+ * A {@link TaskMerkleTree} of the stored tasks is kept up to date with every write, so that a
+ * client can find which tasks it disagrees on in a few round trips.
  */
 public class TasksRemoteDataSource implements TasksDataSource {
 
@@ -36,8 +63,41 @@ public class TasksRemoteDataSource implements TasksDataSource {
 
     private static final int SERVICE_LATENCY_IN_MILLIS = 2000;
 
+    /**
+     * How many tombstones are kept before the oldest are discarded.
+     */
+    private static final int MAX_TOMBSTONES = 1000;
+
+    /**
+     * How many idempotency keys are remembered. A client retries a batch soon after the push
+     * failed, so only recent keys need to be checked.
+     */
+    private static final int MAX_APPLIED_WRITE_KEYS = 10000;
+
     private final static Map<String, Task> TASKS_SERVICE_DATA;
 
+    /**
+     * Version at which each deleted task was deleted, oldest first.
+     */
+    private final Map<String, Long> mTombstones = new LinkedHashMap<>();
+
+    /**
+     * Version of the most recent write or delete. This is the sync token for the current data.
+     */
+    private long mVersion = 0;
+
+    /**
+     * Oldest token that can still be answered with a delta.
+     */
+    private long mMinSyncToken = 0;
+
+    /**
+     * Idempotency keys of the most recently applied writes, oldest first.
+     */
+    private final Set<String> mAppliedWriteKeys = new LinkedHashSet<>();
+
+    private final TaskMerkleTree mTaskTree = new TaskMerkleTree();
+
     static {
         TASKS_SERVICE_DATA = new LinkedHashMap<>(2);
     }
@@ -52,9 +112,8 @@ public class TasksRemoteDataSource implements TasksDataSource {
     // Prevent direct instantiation.
     private TasksRemoteDataSource() {}
 
-    private static void addTask(String title, String description, String id) {
-        Task newTask = new Task(title, description, id);
-        TASKS_SERVICE_DATA.put(newTask.getId(), newTask);
+    private void addTask(String title, String description, String id) {
+        put(new Task(title, description, id));
     }
 
     /**
@@ -75,33 +134,120 @@ public class TasksRemoteDataSource implements TasksDataSource {
     }
 
     /**
-     * Note: {@link GetTaskCallback#onDataNotAvailable()} is never fired. In a real remote data
-     * source implementation, this would be fired if the server can't be contacted or the server
-     * returns an error.
+     * Note: {@link GetTaskCallback#onDataNotAvailable()} is fired if the task doesn't exist. In a
+     * real remote data source implementation, it would also be fired if the server can't be
+     * contacted or the server returns an error.
      */
     @Override
     public void getTask(@NonNull String taskId, final @NonNull GetTaskCallback callback) {
+        getTask(taskId, null, callback);
+    }
+
+    /**
+     * Cancelling {@code cancellationSignal} drops the simulated request if it hasn't been
+     * answered yet.
+     */
+    @Override
+    public void getTask(@NonNull String taskId,
+                        final @Nullable CancellationSignal cancellationSignal,
+                        final @NonNull GetTaskCallback callback) {
         final Task task = TASKS_SERVICE_DATA.get(taskId);
 
+        // Simulate network by delaying the execution.
+        final Handler handler = new Handler();
+        final Runnable response = new Runnable() {
+            @Override
+            public void run() {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    return;
+                }
+                if (task != null) {
+                    callback.onTaskLoaded(task);
+                } else {
+                    callback.onDataNotAvailable();
+                }
+            }
+        };
+        if (cancellationSignal != null) {
+            cancellationSignal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+                @Override
+                public void onCancel() {
+                    handler.removeCallbacks(response);
+                }
+            });
+        }
+        handler.postDelayed(response, SERVICE_LATENCY_IN_MILLIS);
+    }
+
+    /**
+     * Answers every id in a single simulated round trip.
+     * <p>
+     * Note: {@link LoadTasksCallback#onDataNotAvailable()} is fired if none of the tasks exist.
+     * In a real remote data source implementation, it would also be fired if the server can't be
+     * contacted or the server returns an error.
+     */
+    @Override
+    public void getTasks(@NonNull Collection<String> taskIds,
+                         final @NonNull LoadTasksCallback callback) {
+        final List<Task> tasks = new ArrayList<>(taskIds.size());
+        for (String taskId : taskIds) {
+            Task task = TASKS_SERVICE_DATA.get(taskId);
+            if (task != null) {
+                tasks.add(task);
+            }
+        }
+
         // Simulate network by delaying the execution.
         Handler handler = new Handler();
         handler.postDelayed(new Runnable() {
             @Override
             public void run() {
-                callback.onTaskLoaded(task);
+                if (tasks.isEmpty()) {
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTasksLoaded(tasks);
+                }
             }
         }, SERVICE_LATENCY_IN_MILLIS);
     }
 
+    @Override
+    public void getTaskPage(long pageKey, int pageSize,
+                            @NonNull LoadTaskPageCallback callback) {
+        // Not required for the remote data source because the {@link TasksRepository} only pages
+        // through the tasks stored on the device.
+        callback.onDataNotAvailable();
+    }
+
+    @Override
+    public void searchTasks(@NonNull String query, @NonNull LoadTasksCallback callback) {
+        // Not required for the remote data source because the {@link TasksRepository} searches
+        // the index of the tasks stored on the device.
+        callback.onDataNotAvailable();
+    }
+
+    @Override
+    public void getTaskCounts(@NonNull GetTaskCountsCallback callback) {
+        // Not required for the remote data source because the {@link TasksRepository} counts
+        // the tasks stored on the device.
+        callback.onDataNotAvailable();
+    }
+
     @Override
     public void saveTask(@NonNull Task task) {
-        TASKS_SERVICE_DATA.put(task.getId(), task);
+        put(task);
+    }
+
+    @Override
+    public void saveTasks(@NonNull List<Task> tasks) {
+        for (Task task : tasks) {
+            put(task);
+        }
     }
 
     @Override
     public void completeTask(@NonNull Task task) {
-        Task completedTask = new Task(task.getTitle(), task.getDescription(), task.getId(), true);
-        TASKS_SERVICE_DATA.put(task.getId(), completedTask);
+        put(task.withCompleted(true, HybridLogicalClock.getInstance().now()));
     }
 
     @Override
@@ -112,8 +258,7 @@ public class TasksRemoteDataSource implements TasksDataSource {
 
     @Override
     public void activateTask(@NonNull Task task) {
-        Task activeTask = new Task(task.getTitle(), task.getDescription(), task.getId());
-        TASKS_SERVICE_DATA.put(task.getId(), activeTask);
+        put(task.withCompleted(false, HybridLogicalClock.getInstance().now()));
     }
 
     @Override
@@ -124,13 +269,13 @@ public class TasksRemoteDataSource implements TasksDataSource {
 
     @Override
     public void clearCompletedTasks() {
-        Iterator<Map.Entry<String, Task>> it = TASKS_SERVICE_DATA.entrySet().iterator();
-        while (it.hasNext()) {
-            Map.Entry<String, Task> entry = it.next();
-            if (entry.getValue().isCompleted()) {
-                it.remove();
+        List<String> completedIds = new ArrayList<>();
+        for (Task task : TASKS_SERVICE_DATA.values()) {
+            if (task.isCompleted()) {
+                completedIds.add(task.getId());
             }
         }
+        deleteTasks(completedIds);
     }
 
     @Override
@@ -142,10 +287,222 @@ public class TasksRemoteDataSource implements TasksDataSource {
     @Override
     public void deleteAllTasks() {
         TASKS_SERVICE_DATA.clear();
+        mTaskTree.clear();
+        // Rather than a tombstone per task, expire every token so clients take a full snapshot,
+        // which is empty.
+        mTombstones.clear();
+        mMinSyncToken = ++mVersion;
     }
 
     @Override
     public void deleteTask(@NonNull String taskId) {
-        TASKS_SERVICE_DATA.remove(taskId);
+        remove(taskId);
+    }
+
+    @Override
+    public void deleteTasks(@NonNull Collection<String> taskIds) {
+        for (String taskId : taskIds) {
+            remove(taskId);
+        }
+    }
+
+    @Override
+    public void updateCompletion(@NonNull Collection<String> taskIds, boolean completed,
+                                 long stamp) {
+        for (String taskId : taskIds) {
+            setCompleted(taskId, completed, stamp);
+        }
+    }
+
+    /**
+     * Note: {@link GetTaskDeltaCallback#onSyncTokenExpired()} is fired for tokens older than the
+     * oldest discarded tombstone, and for tokens this data source has never issued, e.g. after
+     * the server lost its data.
+     */
+    @Override
+    public void getTaskDelta(final long syncToken, final @NonNull GetTaskDeltaCallback callback) {
+        // Simulate network by delaying the execution.
+        Handler handler = new Handler();
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (syncToken == 0) {
+                    callback.onTaskDeltaLoaded(
+                            TaskDelta.createFullSnapshot(TASKS_SERVICE_DATA.values(), mVersion));
+                    return;
+                }
+                if (syncToken < mMinSyncToken || syncToken > mVersion) {
+                    callback.onSyncTokenExpired();
+                    return;
+                }
+                // A real server would answer this from an index on the version.
+                List<Task> changed = new ArrayList<>();
+                for (Task task : TASKS_SERVICE_DATA.values()) {
+                    if (task.getVersion() > syncToken) {
+                        changed.add(task);
+                    }
+                }
+                List<String> deletedIds = new ArrayList<>();
+                for (Map.Entry<String, Long> tombstone : mTombstones.entrySet()) {
+                    if (tombstone.getValue() > syncToken) {
+                        deletedIds.add(tombstone.getKey());
+                    }
+                }
+                callback.onTaskDeltaLoaded(TaskDelta.create(changed, deletedIds, mVersion));
+            }
+        }, SERVICE_LATENCY_IN_MILLIS);
+    }
+
+    @Override
+    public void applyTaskDelta(@NonNull TaskDelta delta) {
+        // Not required because the remote data source is the source of the deltas.
+    }
+
+    @Override
+    public void getSyncToken(@NonNull GetSyncTokenCallback callback) {
+        callback.onSyncTokenLoaded(mVersion);
+    }
+
+    /**
+     * Note: {@link PushTaskWritesCallback#onDataNotAvailable()} is never fired. In a real remote
+     * data source implementation, this would be fired if the server can't be contacted or the
+     * server returns an error, in which case the batch may have been partly applied.
+     */
+    @Override
+    public void pushTaskWrites(final @NonNull List<TaskWrite> writes,
+                               final @NonNull PushTaskWritesCallback callback) {
+        final List<TaskWrite> batch = new ArrayList<>(writes);
+
+        // Simulate network by delaying the execution.
+        Handler handler = new Handler();
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                List<TaskWrite> rejected = new ArrayList<>();
+                for (TaskWrite write : batch) {
+                    if (mAppliedWriteKeys.contains(write.idempotencyKey())) {
+                        continue;
+                    }
+                    // A refused write isn't remembered, so a retried batch is refused again.
+                    if (isRejected(write)) {
+                        rejected.add(write);
+                        continue;
+                    }
+                    mAppliedWriteKeys.add(write.idempotencyKey());
+                    apply(write);
+                }
+                Iterator<String> it = mAppliedWriteKeys.iterator();
+                while (mAppliedWriteKeys.size() > MAX_APPLIED_WRITE_KEYS) {
+                    it.next();
+                    it.remove();
+                }
+                if (rejected.isEmpty()) {
+                    callback.onTaskWritesPushed();
+                } else {
+                    callback.onTaskWritesRejected(rejected);
+                }
+            }
+        }, SERVICE_LATENCY_IN_MILLIS);
+    }
+
+    @Override
+    public void getTaskTreeHashes(final @NonNull List<Integer> nodes,
+                                  final @NonNull GetTaskTreeHashesCallback callback) {
+        // Simulate network by delaying the execution.
+        Handler handler = new Handler();
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                callback.onTaskTreeHashesLoaded(mTaskTree.getHashes(nodes), mVersion);
+            }
+        }, SERVICE_LATENCY_IN_MILLIS);
+    }
+
+    @Override
+    public void getTasksInTreeBuckets(final @NonNull Collection<Integer> buckets,
+                                      final @NonNull LoadTasksCallback callback) {
+        // Simulate network by delaying the execution.
+        Handler handler = new Handler();
+        handler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                List<Task> tasks = new ArrayList<>();
+                for (String taskId : mTaskTree.getTaskIds(buckets)) {
+                    tasks.add(TASKS_SERVICE_DATA.get(taskId));
+                }
+                callback.onTasksLoaded(tasks);
+            }
+        }, SERVICE_LATENCY_IN_MILLIS);
+    }
+
+    /**
+     * Returns whether {@code write} changes a task that has been deleted. A save is only refused
+     * while the tombstone is kept; after that it creates the task again.
+     */
+    private boolean isRejected(@NonNull TaskWrite write) {
+        switch (write.operation()) {
+            case SAVE:
+                return mTombstones.containsKey(write.taskId());
+            case SET_COMPLETED:
+                return !TASKS_SERVICE_DATA.containsKey(write.taskId());
+            default:
+                return false;
+        }
+    }
+
+    private void apply(@NonNull TaskWrite write) {
+        switch (write.operation()) {
+            case SAVE:
+                put(write.task());
+                break;
+            case DELETE:
+                remove(write.taskId());
+                break;
+            case SET_COMPLETED:
+                setCompleted(write.taskId(), write.completed(), write.completedStamp());
+                break;
+            case DELETE_COMPLETED:
+                clearCompletedTasks();
+                break;
+            case DELETE_ALL:
+                deleteAllTasks();
+                break;
+        }
+    }
+
+    private void setCompleted(@NonNull String taskId, boolean completed, long stamp) {
+        Task task = TASKS_SERVICE_DATA.get(taskId);
+        if (task != null) {
+            put(task.withCompleted(completed, stamp));
+        }
+    }
+
+    /**
+     * Merges {@code task} into the stored copy, if any, and stores the result with the next
+     * version.
+     */
+    private void put(@NonNull Task task) {
+        Task stored = TASKS_SERVICE_DATA.get(task.getId());
+        Task merged = stored == null ? task : TaskMerger.merge(stored, task);
+        TASKS_SERVICE_DATA.put(merged.getId(), merged.withVersion(++mVersion));
+        mTombstones.remove(merged.getId());
+        mTaskTree.put(merged);
+    }
+
+    /**
+     * Deletes the task with {@code taskId}, leaving a tombstone at the next version.
+     */
+    private void remove(@NonNull String taskId) {
+        if (TASKS_SERVICE_DATA.remove(taskId) == null) {
+            return;
+        }
+        mTaskTree.remove(taskId);
+        mTombstones.put(taskId, ++mVersion);
+        Iterator<Map.Entry<String, Long>> it = mTombstones.entrySet().iterator();
+        while (mTombstones.size() > MAX_TOMBSTONES) {
+            // Clients behind the discarded tombstone can no longer learn about the delete.
+            mMinSyncToken = it.next().getValue();
+            it.remove();
+        }
     }
 }
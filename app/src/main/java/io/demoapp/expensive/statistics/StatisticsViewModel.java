@@ -26,8 +26,12 @@ import android.support.annotation.VisibleForTesting;
 import io.demoapp.expensive.Injection;
 import io.demoapp.expensive.R;
 import io.demoapp.expensive.data.Task;
+import io.demoapp.expensive.data.source.TaskChange;
+import io.demoapp.expensive.data.source.TaskChangeListener;
+import io.demoapp.expensive.data.source.TaskCounts;
 import io.demoapp.expensive.data.source.TasksDataSource;
 import io.demoapp.expensive.data.source.TasksRepository;
+import io.demoapp.expensive.data.source.TasksSubscription;
 import io.demoapp.expensive.util.ObservableViewModel;
 
 import java.util.List;
@@ -54,28 +58,78 @@ public class StatisticsViewModel extends ObservableViewModel {
 
     private final TasksRepository mTasksRepository;
 
+    private TasksSubscription mTasksSubscription;
+
+    /**
+     * Identifies the most recent count, so that an older one that completes late cannot
+     * overwrite it.
+     */
+    private int mCountGeneration = 0;
+
     @Keep
     public StatisticsViewModel(Application application) {
         super(application);
         mTasksRepository = Injection.provideTasksRepository(application);
     }
 
+    /**
+     * Counts the tasks and keeps the counts up to date. No tasks are loaded: the repository
+     * counts them, and any change just has them counted again, which costs one query at most.
+     */
     public void start() {
+        if (mTasksSubscription != null) {
+            return;
+        }
         loadStatistics();
+        mTasksSubscription = mTasksRepository.observeTaskChanges(new TaskChangeListener() {
+            @Override
+            public void onSnapshot(List<Task> tasks) {
+                loadStatistics(false);
+            }
+
+            @Override
+            public void onChanges(List<TaskChange> changes) {
+                loadStatistics(false);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                error.set(true);
+            }
+        });
+    }
+
+    @Override
+    protected void onCleared() {
+        if (mTasksSubscription != null) {
+            mTasksSubscription.dispose();
+            mTasksSubscription = null;
+        }
     }
 
     public void loadStatistics() {
-        dataLoading.set(true);
+        loadStatistics(true);
+    }
+
+    private void loadStatistics(boolean showLoadingUI) {
+        if (showLoadingUI) {
+            dataLoading.set(true);
+        }
 
-        mTasksRepository.getTasks(new TasksDataSource.LoadTasksCallback() {
+        final int generation = ++mCountGeneration;
+        mTasksRepository.getTaskCounts(new TasksDataSource.GetTaskCountsCallback() {
             @Override
-            public void onTasksLoaded(List<Task> tasks) {
-                computeStats(tasks);
+            public void onTaskCountsLoaded(TaskCounts counts) {
+                if (generation == mCountGeneration) {
+                    computeStats(counts);
+                }
             }
 
             @Override
             public void onDataNotAvailable() {
-                error.set(true);
+                if (generation == mCountGeneration) {
+                    error.set(true);
+                }
             }
         });
     }
@@ -110,19 +164,9 @@ public class StatisticsViewModel extends ObservableViewModel {
     /**
      * Called when new data is ready.
      */
-    private void computeStats(List<Task> tasks) {
-        int completed = 0;
-        int active = 0;
-
-        for (Task task : tasks) {
-            if (task.isCompleted()) {
-                completed += 1;
-            } else {
-                active += 1;
-            }
-        }
-        mNumberOfActiveTasks = active;
-        mNumberOfCompletedTasks = completed;
+    private void computeStats(TaskCounts counts) {
+        mNumberOfActiveTasks = counts.active();
+        mNumberOfCompletedTasks = counts.completed();
 
         // There are multiple @Bindable fields in this ViewModel, calling notifyChange() will
         // update all the UI elements that depend on them.
@@ -0,0 +1,92 @@
+package io.demoapp.expensive.tasks;
+
+import android.support.annotation.NonNull;
+
+import io.demoapp.expensive.data.Task;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * Keeps the rows of the task list together with the position of each task by id, so that a
+ * change finds its row without scanning the list. Showing or replacing a task is O(1); removing
+ * one shifts the rows after it, in the list and here alike.
+ * <p>
+ * Every change to the rows must go through this class.
+ */
+final class TaskListRows {
+
+    private final List<Task> mRows;
+
+    private final Map<String, Integer> mPositions = new HashMap<>();
+
+    TaskListRows(@NonNull List<Task> rows) {
+        mRows = checkNotNull(rows);
+        indexFrom(0);
+    }
+
+    boolean contains(@NonNull String taskId) {
+        return mPositions.containsKey(taskId);
+    }
+
+    /**
+     * Replaces every row with {@code tasks}, in a single change to the list.
+     */
+    void replaceAll(@NonNull Collection<Task> tasks) {
+        mRows.clear();
+        mRows.addAll(tasks);
+        mPositions.clear();
+        indexFrom(0);
+    }
+
+    /**
+     * Adds the tasks that aren't shown yet after the last row, in a single change to the list.
+     * Tasks that are already shown keep their row and version.
+     */
+    void appendAll(@NonNull Collection<Task> tasks) {
+        List<Task> added = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            if (!mPositions.containsKey(task.getId())) {
+                mPositions.put(task.getId(), mRows.size() + added.size());
+                added.add(task);
+            }
+        }
+        mRows.addAll(added);
+    }
+
+    /**
+     * Shows {@code task} in place of the row with the same id, or else as a new last row.
+     */
+    void put(@NonNull Task task) {
+        Integer position = mPositions.get(task.getId());
+        if (position != null) {
+            mRows.set(position, task);
+        } else {
+            mPositions.put(task.getId(), mRows.size());
+            mRows.add(task);
+        }
+    }
+
+    /**
+     * Removes the row of the task with {@code taskId}, if it is shown.
+     */
+    void remove(@NonNull String taskId) {
+        Integer position = mPositions.remove(taskId);
+        if (position == null) {
+            return;
+        }
+        mRows.remove((int) position);
+        indexFrom(position);
+    }
+
+    private void indexFrom(int start) {
+        for (int i = start; i < mRows.size(); i++) {
+            mPositions.put(mRows.get(i).getId(), i);
+        }
+    }
+}
@@ -24,6 +24,7 @@ import android.support.design.widget.FloatingActionButton;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.widget.PopupMenu;
+import android.support.v7.widget.SearchView;
 import android.view.LayoutInflater;
 import android.view.Menu;
 import android.view.MenuInflater;
@@ -108,6 +109,7 @@ public class TasksFragment extends Fragment {
     @Override
     public void onCreateOptionsMenu(Menu menu, MenuInflater inflater) {
         inflater.inflate(R.menu.tasks_fragment_menu, menu);
+        setupSearchView((SearchView) menu.findItem(R.id.menu_search).getActionView());
     }
 
     public void setViewModel(TasksViewModel viewModel) {
@@ -146,6 +148,25 @@ public class TasksFragment extends Fragment {
         mTasksViewModel.snackbarText.addOnPropertyChangedCallback(mSnackbarCallback);
     }
 
+    private void setupSearchView(SearchView searchView) {
+        searchView.setQueryHint(getString(R.string.search_hint));
+        // Results follow every keystroke. Collapsing the search box clears the query, which
+        // brings the whole list back.
+        searchView.setOnQueryTextListener(new SearchView.OnQueryTextListener() {
+            @Override
+            public boolean onQueryTextSubmit(String query) {
+                mTasksViewModel.setSearchQuery(query);
+                return true;
+            }
+
+            @Override
+            public boolean onQueryTextChange(String newText) {
+                mTasksViewModel.setSearchQuery(newText);
+                return true;
+            }
+        });
+    }
+
     private void showFilteringPopUpMenu() {
         PopupMenu popup = new PopupMenu(getContext(), getActivity().findViewById(R.id.menu_filter));
         popup.getMenuInflater().inflate(R.menu.filter_tasks, popup.getMenu());
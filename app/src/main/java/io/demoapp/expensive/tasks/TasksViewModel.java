@@ -26,18 +26,27 @@ import android.databinding.ObservableField;
 import android.databinding.ObservableList;
 import android.graphics.drawable.Drawable;
 import android.support.annotation.Keep;
+import android.support.annotation.Nullable;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
 
 import io.demoapp.expensive.BR;
 import io.demoapp.expensive.Injection;
 import io.demoapp.expensive.R;
 import io.demoapp.expensive.addedittask.AddEditTaskActivity;
 import io.demoapp.expensive.data.Task;
+import io.demoapp.expensive.data.source.TaskChange;
+import io.demoapp.expensive.data.source.TaskChangeListener;
+import io.demoapp.expensive.data.source.TaskPage;
 import io.demoapp.expensive.data.source.TasksDataSource;
 import io.demoapp.expensive.data.source.TasksRepository;
+import io.demoapp.expensive.data.source.TasksSubscription;
 import io.demoapp.expensive.taskdetail.TaskDetailActivity;
 import io.demoapp.expensive.util.ObservableViewModel;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 
 /**
@@ -49,6 +58,12 @@ import java.util.List;
  */
 public class TasksViewModel extends ObservableViewModel {
 
+    /**
+     * Tasks read from the database per page when the list is loaded from scratch. A page is
+     * enough to fill the screen.
+     */
+    private static final int TASKS_PAGE_SIZE = 50;
+
     // These observable fields will update Views automatically
     public final ObservableList<Task> items = new ObservableArrayList<>();
 
@@ -64,14 +79,29 @@ public class TasksViewModel extends ObservableViewModel {
 
     final ObservableField<String> snackbarText = new ObservableField<>();
 
+    private final TaskListRows mRows = new TaskListRows(items);
+
     private TasksFilterType mCurrentFiltering = TasksFilterType.ALL_TASKS;
 
+    /**
+     * The words typed into the search box, or null when the list isn't being searched.
+     */
+    @Nullable
+    private String mSearchQuery;
+
     private final TasksRepository mTasksRepository;
 
     private final ObservableBoolean mIsDataLoadingError = new ObservableBoolean(false);
 
     private TasksNavigator mNavigator;
 
+    private TasksSubscription mTasksSubscription;
+
+    /**
+     * Identifies the most recent load, so that the pages of an older one are dropped.
+     */
+    private int mLoadGeneration = 0;
+
     @Keep
     public TasksViewModel(
             Application application) {
@@ -92,7 +122,50 @@ public class TasksViewModel extends ObservableViewModel {
     }
 
     public void start() {
-        loadTasks(false);
+        if (mTasksSubscription == null) {
+            // The subscription keeps the list up to date once it is loaded, so there's no need
+            // to reload each time the screen resumes. It is registered before the load starts,
+            // so that no change made during the load is missed. The list itself is loaded page
+            // by page instead of as the subscription's snapshot, which would wait for the whole
+            // table.
+            mTasksSubscription = mTasksRepository.observeTaskChanges(new TaskChangeListener() {
+                @Override
+                public void onSnapshot(List<Task> tasks) {
+                    dataLoading.set(false);
+                    mIsDataLoadingError.set(false);
+                    if (mSearchQuery != null) {
+                        searchTasks(mSearchQuery, false);
+                    } else if (mCurrentFiltering == TasksFilterType.ALL_TASKS) {
+                        mRows.replaceAll(tasks);
+                        notifyPropertyChanged(BR.empty); // It's a @Bindable so update manually
+                    } else {
+                        // Read the filtered tasks from the repository's completion index
+                        // rather than walking every task here.
+                        loadTasks(false, false);
+                    }
+                }
+
+                @Override
+                public void onChanges(List<TaskChange> changes) {
+                    applyChanges(changes);
+                }
+
+                @Override
+                public void onDataNotAvailable() {
+                    dataLoading.set(false);
+                    mIsDataLoadingError.set(true);
+                }
+            });
+            loadTasks(false, true);
+        }
+    }
+
+    @Override
+    protected void onCleared() {
+        if (mTasksSubscription != null) {
+            mTasksSubscription.dispose();
+            mTasksSubscription = null;
+        }
     }
 
     @Bindable
@@ -140,10 +213,30 @@ public class TasksViewModel extends ObservableViewModel {
         }
     }
 
+    /**
+     * Shows the tasks matching {@code query}, best matches first, or the whole list again if it
+     * is empty. Called on every keystroke in the search box; each search is one lookup in the
+     * database's full-text index.
+     */
+    public void setSearchQuery(@Nullable String query) {
+        String searchQuery = Strings.emptyToNull(Strings.nullToEmpty(query).trim());
+        if (Objects.equal(searchQuery, mSearchQuery)) {
+            return;
+        }
+        mSearchQuery = searchQuery;
+        if (searchQuery != null) {
+            noTasksLabel.set(getApplication().getString(R.string.no_tasks_search));
+        } else {
+            // Restores the labels of the current filter.
+            setFiltering(mCurrentFiltering);
+        }
+        loadTasks(false, false);
+    }
+
     public void clearCompletedTasks() {
+        // The list is updated through the subscription.
         mTasksRepository.clearCompletedTasks();
         snackbarText.set(getApplication().getString(R.string.completed_tasks_cleared));
-        loadTasks(false, false);
     }
 
     public String getSnackbarText() {
@@ -183,6 +276,7 @@ public class TasksViewModel extends ObservableViewModel {
      * @param showLoadingUI Pass in true to display a loading icon in the UI
      */
     private void loadTasks(boolean forceUpdate, final boolean showLoadingUI) {
+        final int generation = ++mLoadGeneration;
         if (showLoadingUI) {
             dataLoading.set(true);
         }
@@ -191,47 +285,158 @@ public class TasksViewModel extends ObservableViewModel {
             mTasksRepository.refreshTasks();
         }
 
-        mTasksRepository.getTasks(new TasksDataSource.LoadTasksCallback() {
+        if (mSearchQuery != null) {
+            searchTasks(mSearchQuery, showLoadingUI);
+            return;
+        }
+
+        TasksDataSource.LoadTasksCallback callback = new TasksDataSource.LoadTasksCallback() {
             @Override
-            public void onTasksLoaded(List<Task> tasks) {
-                List<Task> tasksToShow = new ArrayList<Task>();
-
-                // We filter the tasks based on the requestType
-                for (Task task : tasks) {
-                    switch (mCurrentFiltering) {
-                        case ALL_TASKS:
-                            tasksToShow.add(task);
-                            break;
-                        case ACTIVE_TASKS:
-                            if (task.isActive()) {
-                                tasksToShow.add(task);
-                            }
-                            break;
-                        case COMPLETED_TASKS:
-                            if (task.isCompleted()) {
-                                tasksToShow.add(task);
-                            }
-                            break;
-                        default:
-                            tasksToShow.add(task);
-                            break;
-                    }
+            public void onTasksLoaded(List<Task> tasksToShow) {
+                if (generation != mLoadGeneration) {
+                    return;
                 }
                 if (showLoadingUI) {
                     dataLoading.set(false);
                 }
                 mIsDataLoadingError.set(false);
 
-                items.clear();
-                items.addAll(tasksToShow);
+                mRows.replaceAll(tasksToShow);
+                notifyPropertyChanged(BR.empty); // It's a @Bindable so update manually
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                if (generation == mLoadGeneration) {
+                    mIsDataLoadingError.set(true);
+                }
+            }
+        };
+
+        // The repository filters using its completion index, so there's no need to walk every
+        // task here.
+        switch (mCurrentFiltering) {
+            case ACTIVE_TASKS:
+                mTasksRepository.getActiveTasks(callback);
+                break;
+            case COMPLETED_TASKS:
+                mTasksRepository.getCompletedTasks(callback);
+                break;
+            case ALL_TASKS:
+            default:
+                // Rows are shown page by page as they are read, rather than after the whole
+                // table.
+                mTasksRepository.streamTasks(TASKS_PAGE_SIZE,
+                        newTaskPageCallback(generation, showLoadingUI));
+                break;
+        }
+    }
+
+    /**
+     * Shows the pages of a load as they arrive. A task inserted or changed while the load is in
+     * flight may reach the list through {@link #applyChanges} before its page does; it then
+     * keeps its row and the newer version, and is not shown again from the page.
+     */
+    private TasksDataSource.LoadTaskPageCallback newTaskPageCallback(
+            final int generation, final boolean showLoadingUI) {
+        return new TasksDataSource.LoadTaskPageCallback() {
+            /**
+             * True when the next page starts a new list, which replaces the items.
+             */
+            private boolean mStartsNewList = true;
+
+            @Override
+            public void onTaskPageLoaded(TaskPage page) {
+                if (generation != mLoadGeneration) {
+                    return;
+                }
+                if (mStartsNewList) {
+                    if (showLoadingUI) {
+                        dataLoading.set(false);
+                    }
+                    mIsDataLoadingError.set(false);
+                    mRows.replaceAll(page.tasks());
+                } else {
+                    mRows.appendAll(page.tasks());
+                }
+                mStartsNewList = page.isLastPage();
                 notifyPropertyChanged(BR.empty); // It's a @Bindable so update manually
             }
 
             @Override
             public void onDataNotAvailable() {
-                mIsDataLoadingError.set(true);
+                if (generation == mLoadGeneration) {
+                    mIsDataLoadingError.set(true);
+                }
+            }
+        };
+    }
+
+    /**
+     * Shows the search results for {@code query}, unless the user has typed something else by
+     * the time they arrive.
+     */
+    private void searchTasks(final String query, final boolean showLoadingUI) {
+        mTasksRepository.searchTasks(query, new TasksDataSource.LoadTasksCallback() {
+            @Override
+            public void onTasksLoaded(List<Task> matches) {
+                showSearchResults(matches);
+            }
+
+            @Override
+            public void onDataNotAvailable() {
+                showSearchResults(Collections.<Task>emptyList());
+            }
+
+            private void showSearchResults(List<Task> matches) {
+                if (!query.equals(mSearchQuery)) {
+                    return;
+                }
+                if (showLoadingUI) {
+                    dataLoading.set(false);
+                }
+                mIsDataLoadingError.set(false);
+                // Search results are few, and the full-text index doesn't know about
+                // completion, so they are filtered here.
+                List<Task> shown = new ArrayList<>(matches.size());
+                for (Task task : matches) {
+                    if (matchesFiltering(task)) {
+                        shown.add(task);
+                    }
+                }
+                mRows.replaceAll(shown);
+                notifyPropertyChanged(BR.empty); // It's a @Bindable so update manually
             }
         });
     }
 
+    /**
+     * Applies each change to the visible items in place, so that only the affected rows are
+     * updated. Each change finds its row by id, without scanning the list. While searching,
+     * tasks that aren't shown are left out, as they may not match.
+     */
+    private void applyChanges(List<TaskChange> changes) {
+        for (TaskChange change : changes) {
+            Task task = change.task();
+            if (task == null || !matchesFiltering(task)) {
+                mRows.remove(change.taskId());
+            } else if (mSearchQuery == null || mRows.contains(task.getId())) {
+                mRows.put(task);
+            }
+        }
+        notifyPropertyChanged(BR.empty); // It's a @Bindable so update manually
+    }
+
+    private boolean matchesFiltering(Task task) {
+        switch (mCurrentFiltering) {
+            case ACTIVE_TASKS:
+                return task.isActive();
+            case COMPLETED_TASKS:
+                return task.isCompleted();
+            case ALL_TASKS:
+            default:
+                return true;
+        }
+    }
+
 }
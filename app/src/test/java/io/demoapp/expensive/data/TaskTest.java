@@ -0,0 +1,41 @@
+package io.demoapp.expensive.data;
+
+import org.junit.Test;
+
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for {@link Task}.
+ */
+public class TaskTest {
+
+    private static final String TASK_ID = "1";
+
+    @Test
+    public void getDescription_listCopy_returnsStartOfDescription() {
+        Task listCopy = new Task("Title", "Desc", TASK_ID, false, 0, 0, 0, 0, false);
+
+        assertThat(listCopy.getDescription(), is("Desc"));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void getFullDescription_listCopy_throws() {
+        Task listCopy = new Task("Title", "Desc", TASK_ID, false, 0, 0, 0, 0, false);
+
+        listCopy.getFullDescription();
+    }
+
+    @Test
+    public void equalsAndHashCode_tellListCopyFromWholeTask() {
+        Task listCopy = new Task("Title", "Description", TASK_ID, false, 0, 0, 0, 0, false);
+        Task wholeTask = new Task("Title", "Description", TASK_ID, false, 0, 0, 0, 0, true);
+        Task sameWholeTask = new Task("Title", "Description", TASK_ID, false, 0, 0, 0, 0, true);
+
+        assertThat(listCopy.equals(wholeTask), is(false));
+        assertThat(listCopy.hashCode(), is(not(wholeTask.hashCode())));
+        assertThat(wholeTask.equals(sameWholeTask), is(true));
+        assertThat(wholeTask.hashCode(), is(sameWholeTask.hashCode()));
+    }
+}
@@ -0,0 +1,123 @@
+package io.demoapp.expensive.data.source;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for {@link HybridLogicalClock}, driven by a fake wall clock that the tests move
+ * forwards and backwards.
+ */
+public class HybridLogicalClockTest {
+
+    private static final int LOGICAL_BITS = 16;
+
+    private static final int RUNS = 10000;
+
+    private static final long START_MILLIS = 1500000000000L;
+
+    private static final long MAX_SKEW_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final Random mRandom = new Random(0x5eed015L);
+
+    private FakeWallClock mWallClock;
+
+    private HybridLogicalClock mClock;
+
+    @Before
+    public void setupClock() {
+        mWallClock = new FakeWallClock(START_MILLIS);
+        mClock = new HybridLogicalClock(mWallClock);
+    }
+
+    @Test
+    public void now_alwaysIncreases() {
+        long last = mClock.now();
+        for (int run = 0; run < RUNS; run++) {
+            // The wall clock mostly stands still or moves on, but sometimes goes back.
+            mWallClock.mMillis += mRandom.nextInt(5) - 1;
+
+            long stamp = mClock.now();
+
+            assertThat("run " + run, stamp, greaterThan(last));
+            last = stamp;
+        }
+    }
+
+    @Test
+    public void now_isOrderedAfterEveryObservedStamp() {
+        long largest = mClock.now();
+        for (int run = 0; run < RUNS; run++) {
+            // Stamps from other devices, a little behind or ahead of this one.
+            long observed = largest + mRandom.nextInt(16) - 8;
+            mClock.update(observed);
+            largest = Math.max(largest, observed);
+
+            long stamp = mClock.now();
+
+            assertThat("run " + run, stamp, greaterThan(largest));
+            largest = stamp;
+        }
+    }
+
+    @Test
+    public void now_followsWallClock() {
+        long stamp = mClock.now();
+
+        assertThat(stamp >>> LOGICAL_BITS, is(START_MILLIS));
+    }
+
+    @Test
+    public void now_afterRestartWithWallClockBehind_isOrderedAfterStoredStamps() {
+        for (int run = 0; run < RUNS / 10; run++) {
+            // Edits stored by the previous process.
+            List<Long> stored = new ArrayList<>();
+            int editCount = 1 + mRandom.nextInt(20);
+            for (int i = 0; i < editCount; i++) {
+                mWallClock.mMillis += mRandom.nextInt(1000);
+                stored.add(mClock.now());
+            }
+            long latestStored = Collections.max(stored);
+
+            // The process restarts after the wall clock was put back, e.g. by an NTP
+            // correction or by hand.
+            mWallClock.mMillis -= 1 + (long) (mRandom.nextDouble() * MAX_SKEW_MILLIS);
+            HybridLogicalClock restarted = new HybridLogicalClock(mWallClock);
+            assertThat("run " + run, restarted.now(), lessThan(latestStored));
+
+            // Seeded from storage, as the repository does when it loads the tasks.
+            restarted = new HybridLogicalClock(mWallClock);
+            for (long stamp : stored) {
+                restarted.update(stamp);
+            }
+            for (int i = 0; i < 10; i++) {
+                assertThat("run " + run, restarted.now(), greaterThan(latestStored));
+            }
+            mClock = restarted;
+        }
+    }
+
+    private static final class FakeWallClock implements HybridLogicalClock.WallClock {
+
+        long mMillis;
+
+        FakeWallClock(long millis) {
+            mMillis = millis;
+        }
+
+        @Override
+        public long currentTimeMillis() {
+            return mMillis;
+        }
+    }
+}
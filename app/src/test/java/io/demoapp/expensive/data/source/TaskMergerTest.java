@@ -0,0 +1,151 @@
+package io.demoapp.expensive.data.source;
+
+import android.support.annotation.NonNull;
+
+import io.demoapp.expensive.data.Task;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Property tests for {@link TaskMerger}, over copies of one task drawn from a seeded
+ * {@link Random}. Stamps and values come from small ranges so that ties, which the merge has to
+ * break the same way everywhere, are common.
+ */
+public class TaskMergerTest {
+
+    private static final long SEED = 0x5eed015L;
+
+    private static final int RUNS = 2000;
+
+    private static final String TASK_ID = "1";
+
+    private static final String[] VALUES = {null, "", "a", "b", "ab"};
+
+    private final Random mRandom = new Random(SEED);
+
+    @Test
+    public void merge_isCommutative() {
+        for (int run = 0; run < RUNS; run++) {
+            Task a = randomTask();
+            Task b = randomTask();
+
+            assertThat("run " + run, fieldsOf(TaskMerger.merge(a, b)),
+                    is(fieldsOf(TaskMerger.merge(b, a))));
+        }
+    }
+
+    @Test
+    public void merge_isAssociative() {
+        for (int run = 0; run < RUNS; run++) {
+            Task a = randomTask();
+            Task b = randomTask();
+            Task c = randomTask();
+
+            assertThat("run " + run, fieldsOf(TaskMerger.merge(TaskMerger.merge(a, b), c)),
+                    is(fieldsOf(TaskMerger.merge(a, TaskMerger.merge(b, c)))));
+        }
+    }
+
+    @Test
+    public void merge_isIdempotent() {
+        for (int run = 0; run < RUNS; run++) {
+            Task a = randomTask();
+            Task b = randomTask();
+            Task merged = TaskMerger.merge(a, b);
+
+            assertThat("run " + run, fieldsOf(TaskMerger.merge(a, a)), is(fieldsOf(a)));
+            assertThat("run " + run, fieldsOf(TaskMerger.merge(merged, b)), is(fieldsOf(merged)));
+        }
+    }
+
+    @Test
+    public void merge_keepsLatestStamp() {
+        for (int run = 0; run < RUNS; run++) {
+            Task a = randomTask();
+            Task b = randomTask();
+
+            assertThat("run " + run, TaskMerger.latestStamp(TaskMerger.merge(a, b)),
+                    is(Math.max(TaskMerger.latestStamp(a), TaskMerger.latestStamp(b))));
+        }
+    }
+
+    @Test
+    public void merge_convergesWhateverTheDeliveryOrder() {
+        for (int run = 0; run < RUNS / 10; run++) {
+            List<Task> edits = new ArrayList<>();
+            int editCount = 1 + mRandom.nextInt(8);
+            for (int i = 0; i < editCount; i++) {
+                edits.add(randomTask());
+            }
+
+            // Each replica sees every edit at least once, in its own order, with repeats.
+            List<Object> expected = fieldsOf(mergeAll(edits));
+            for (int replica = 0; replica < 5; replica++) {
+                List<Task> delivered = new ArrayList<>(edits);
+                int repeats = mRandom.nextInt(editCount + 1);
+                for (int i = 0; i < repeats; i++) {
+                    delivered.add(edits.get(mRandom.nextInt(editCount)));
+                }
+                Collections.shuffle(delivered, mRandom);
+
+                assertThat("run " + run + ", replica " + replica,
+                        fieldsOf(mergeAll(delivered)), is(expected));
+            }
+        }
+    }
+
+    @Test
+    public void merge_wholeDescriptionWinsTieWithItsStart() {
+        Task listCopy = new Task("Title", "Desc", TASK_ID, false, 0, 1, 1, 1, false);
+        Task fullCopy = new Task("Title", "Description", TASK_ID, false, 0, 1, 1, 1, true);
+
+        Task merged = TaskMerger.merge(listCopy, fullCopy);
+
+        assertThat(merged.isDescriptionLoaded(), is(true));
+        assertThat(merged.getDescription(), is("Description"));
+    }
+
+    @NonNull
+    private static Task mergeAll(@NonNull List<Task> tasks) {
+        Task merged = tasks.get(0);
+        for (Task task : tasks.subList(1, tasks.size())) {
+            merged = TaskMerger.merge(merged, task);
+        }
+        return merged;
+    }
+
+    @NonNull
+    private Task randomTask() {
+        return new Task(randomValue(), randomValue(), TASK_ID, mRandom.nextBoolean(),
+                mRandom.nextInt(3), randomStamp(), randomStamp(), randomStamp(),
+                mRandom.nextBoolean());
+    }
+
+    private String randomValue() {
+        return VALUES[mRandom.nextInt(VALUES.length)];
+    }
+
+    private long randomStamp() {
+        return mRandom.nextInt(4);
+    }
+
+    /**
+     * Returns every field of {@code task}, since {@link Task#equals(Object)} leaves out the
+     * stamps and the completion state.
+     */
+    @NonNull
+    private static List<Object> fieldsOf(@NonNull Task task) {
+        return Arrays.<Object>asList(task.getId(), task.getTitle(), task.getDescription(),
+                task.isDescriptionLoaded(), task.isCompleted(), task.getVersion(),
+                task.getTitleStamp(), task.getDescriptionStamp(), task.getCompletedStamp());
+    }
+}
@@ -0,0 +1,249 @@
+package io.demoapp.expensive.data.source;
+
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Unit tests for {@link TasksCache}.
+ */
+public class TasksCacheTest {
+
+    private static final int WRITERS = 4;
+
+    private static final int READERS = 2;
+
+    private static final int TASKS_PER_WRITER = 1000;
+
+    private TasksCache mCache;
+
+    @Before
+    public void setupTasksCache() {
+        mCache = new TasksCache(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void putAll_replacingTaskKeepsItsPlace() {
+        mCache.replaceAll(ImmutableList.of(
+                new Task("A", "", "1"), new Task("B", "", "2"), new Task("C", "", "3")));
+
+        mCache.put(new Task("B2", "", "2", true));
+
+        assertThat(titlesOf(mCache.getAll()), contains("A", "B2", "C"));
+        assertThat(titlesOf(mCache.getActive()), contains("A", "C"));
+        assertThat(titlesOf(mCache.getCompleted()), contains("B2"));
+    }
+
+    @Test
+    public void getAll_isNotChangedByLaterWrites() {
+        mCache.replaceAll(ImmutableList.of(new Task("A", "", "1"), new Task("B", "", "2")));
+        List<Task> before = mCache.getAll();
+
+        mCache.remove("1");
+        mCache.put(new Task("C", "", "3"));
+        mCache.setCompleted(Collections.singletonList("2"), true, 1);
+
+        assertThat(titlesOf(before), contains("A", "B"));
+        assertThat(before.get(1).isCompleted(), is(false));
+        assertThat(titlesOf(mCache.getAll()), contains("B", "C"));
+    }
+
+    @Test
+    public void removeCompleted_keepsActiveTasksInOrder() {
+        mCache.replaceAll(ImmutableList.of(
+                new Task("A", "", "1"), new Task("B", "", "2", true), new Task("C", "", "3")));
+
+        mCache.removeCompleted();
+
+        assertThat(titlesOf(mCache.getAll()), contains("A", "C"));
+        assertThat(mCache.completedCount(), is(0));
+        assertThat(mCache.peek("2"), is(nullValue()));
+        assertThat(mCache.getStats().entryCount(), is(2));
+    }
+
+    @Test
+    public void modificationCount_changesOnEveryRemoval() {
+        mCache.replaceAll(ImmutableList.of(
+                new Task("A", "", "1"), new Task("B", "", "2", true), new Task("C", "", "3")));
+
+        long count = mCache.modificationCount();
+        mCache.removeCompleted();
+        assertThat(mCache.modificationCount(), is(not(count)));
+
+        count = mCache.modificationCount();
+        mCache.trimToSize(0);
+        assertThat(mCache.modificationCount(), is(not(count)));
+
+        count = mCache.modificationCount();
+        mCache.clear();
+        assertThat(mCache.modificationCount(), is(not(count)));
+    }
+
+    /**
+     * Several writers add, complete, rewrite and remove their own tasks while readers check
+     * that every snapshot they see is consistent. Afterwards no writer has lost an update.
+     */
+    @Test
+    public void concurrentWriters_neverLoseUpdatesAndReadersSeeConsistentSnapshots()
+            throws Exception {
+        mCache.replaceAll(ImmutableList.<Task>of());
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> writers = new ArrayList<>();
+        for (int w = 0; w < WRITERS; w++) {
+            final int writer = w;
+            writers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        write(writer);
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        List<Thread> readers = new ArrayList<>();
+        for (int r = 0; r < READERS; r++) {
+            readers.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        while (writing.get()) {
+                            checkSnapshots();
+                        }
+                    } catch (Throwable t) {
+                        failure.compareAndSet(null, t);
+                    }
+                }
+            }));
+        }
+        for (Thread thread : writers) {
+            thread.start();
+        }
+        for (Thread thread : readers) {
+            thread.start();
+        }
+
+        start.countDown();
+        for (Thread thread : writers) {
+            thread.join();
+        }
+        writing.set(false);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        Map<String, Boolean> expected = new HashMap<>();
+        for (int w = 0; w < WRITERS; w++) {
+            for (int i = 0; i < TASKS_PER_WRITER; i++) {
+                if (!isRemoved(i)) {
+                    expected.put(idOf(w, i), isCompleted(i));
+                }
+            }
+        }
+        Map<String, Boolean> actual = new HashMap<>();
+        for (Task task : mCache.getAll()) {
+            actual.put(task.getId(), task.isCompleted());
+            assertThat(task.getTitle(), is("rewritten"));
+        }
+        assertThat(actual, is(expected));
+        assertThat(mCache.size(), is(expected.size()));
+        assertThat(mCache.activeCount() + mCache.completedCount(), is(expected.size()));
+        assertThat(mCache.getStats().entryCount(), is(expected.size()));
+        assertTrue(mCache.isComplete());
+    }
+
+    private void write(int writer) {
+        for (int i = 0; i < TASKS_PER_WRITER; i++) {
+            String id = idOf(writer, i);
+            mCache.put(new Task("new", "", id));
+            if (isCompleted(i)) {
+                mCache.setCompleted(Collections.singletonList(id), true, i);
+            }
+            mCache.put(mCache.peek(id).withVersion(1));
+            Task current = mCache.peek(id);
+            mCache.put(new Task("rewritten", "", id, current.isCompleted()));
+            if (isRemoved(i)) {
+                mCache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Checks the invariants that must hold within any one snapshot.
+     */
+    private void checkSnapshots() {
+        List<Task> all = mCache.getAll();
+        Set<String> ids = new HashSet<>();
+        int[] lastIndex = new int[WRITERS];
+        for (int w = 0; w < WRITERS; w++) {
+            lastIndex[w] = -1;
+        }
+        for (Task task : all) {
+            if (!ids.add(task.getId())) {
+                fail("Duplicate task " + task.getId());
+            }
+            // Each writer inserts its tasks in index order and rewrites keep their place.
+            String[] parts = task.getId().split("-");
+            int writer = Integer.parseInt(parts[0]);
+            int index = Integer.parseInt(parts[1]);
+            assertTrue(index > lastIndex[writer]);
+            lastIndex[writer] = index;
+        }
+        for (Task task : mCache.getActive()) {
+            assertThat(task.isCompleted(), is(false));
+        }
+        for (Task task : mCache.getCompleted()) {
+            assertThat(task.isCompleted(), is(true));
+        }
+    }
+
+    private static String idOf(int writer, int index) {
+        return writer + "-" + index;
+    }
+
+    private static boolean isCompleted(int index) {
+        return index % 3 == 0;
+    }
+
+    private static boolean isRemoved(int index) {
+        return index % 5 == 0;
+    }
+
+    private static List<String> titlesOf(List<Task> tasks) {
+        List<String> titles = new ArrayList<>();
+        for (Task task : tasks) {
+            titles.add(task.getTitle());
+        }
+        return titles;
+    }
+}
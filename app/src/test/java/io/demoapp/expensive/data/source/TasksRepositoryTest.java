@@ -0,0 +1,385 @@
+package io.demoapp.expensive.data.source;
+
+import android.os.CancellationSignal;
+import android.os.Handler;
+import android.os.Looper;
+import android.support.annotation.Nullable;
+
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+import io.demoapp.expensive.data.source.TaskOutbox.LoadPendingWritesCallback;
+import io.demoapp.expensive.data.source.TasksDataSource.GetSyncTokenCallback;
+import io.demoapp.expensive.data.source.TasksDataSource.GetTaskCallback;
+import io.demoapp.expensive.data.source.TasksDataSource.GetTaskCountsCallback;
+import io.demoapp.expensive.data.source.TasksDataSource.GetTaskDeltaCallback;
+import io.demoapp.expensive.data.source.TasksDataSource.LoadTaskPageCallback;
+import io.demoapp.expensive.data.source.TasksDataSource.LoadTasksCallback;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+import org.robolectric.Robolectric;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.annotation.Config;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+
+/**
+ * Unit tests for {@link TasksRepository}.
+ * <p>
+ * The fake data sources answer on the main looper after a set delay, and the tests move
+ * Robolectric's clock by hand, so the order in which the answers arrive is fixed.
+ */
+@RunWith(RobolectricTestRunner.class)
+@Config(manifest = Config.NONE, sdk = 25)
+public class TasksRepositoryTest {
+
+    private static final String TASK_ID = "1";
+
+    private static final Task TASK = new Task("Title", "Description", TASK_ID);
+
+    private final Handler mMainHandler = new Handler(Looper.getMainLooper());
+
+    private TasksRepository mTasksRepository;
+
+    @Mock
+    private TasksDataSource mTasksRemoteDataSource;
+
+    @Mock
+    private TasksDataSource mTasksLocalDataSource;
+
+    @Mock
+    private TaskOutbox mTasksOutbox;
+
+    @Mock
+    private GetTaskCallback mGetTaskCallback;
+
+    @Mock
+    private LoadTaskPageCallback mLoadTaskPageCallback;
+
+    @Mock
+    private TaskChangeListener mTaskChangeListener;
+
+    @Captor
+    private ArgumentCaptor<List<TaskChange>> mTaskChangesCaptor;
+
+    @Captor
+    private ArgumentCaptor<LoadPendingWritesCallback> mPendingWritesCaptor;
+
+    @Nullable
+    private CancellationSignal mRemoteCancellation;
+
+    @Before
+    public void setupTasksRepository() {
+        MockitoAnnotations.initMocks(this);
+
+        mTasksRepository = TasksRepository.getInstance(
+                mTasksRemoteDataSource, mTasksLocalDataSource, mTasksOutbox);
+        mTasksRepository.enableParallelTaskLookups();
+    }
+
+    @After
+    public void destroyRepositoryInstance() {
+        TasksRepository.destroyInstance();
+    }
+
+    @Test
+    public void getTask_parallel_localHitFirstCancelsRemote() {
+        answerLocalAfter(10, TASK);
+        answerRemoteAfter(50, new Task("Remote title", "Remote description", TASK_ID));
+
+        mTasksRepository.getTask(TASK_ID, mGetTaskCallback);
+        advanceClockBy(10);
+
+        verify(mGetTaskCallback).onTaskLoaded(TASK);
+        assertThat(mRemoteCancellation.isCanceled(), is(true));
+
+        // The remote answer that was due later never arrives.
+        advanceClockBy(40);
+        verify(mGetTaskCallback).onTaskLoaded(any(Task.class));
+        verify(mGetTaskCallback, never()).onDataNotAvailable();
+    }
+
+    @Test
+    public void getTask_parallel_remoteHitWaitsForLocalMiss() {
+        answerLocalAfter(50, null);
+        answerRemoteAfter(10, TASK);
+
+        mTasksRepository.getTask(TASK_ID, mGetTaskCallback);
+        advanceClockBy(10);
+
+        // A local copy could still turn up and may hold edits the remote hasn't seen.
+        verify(mGetTaskCallback, never()).onTaskLoaded(any(Task.class));
+
+        advanceClockBy(40);
+        verify(mGetTaskCallback).onTaskLoaded(TASK);
+        verify(mTasksLocalDataSource).applyTaskDelta(
+                TaskDelta.create(ImmutableList.of(TASK), ImmutableList.<String>of(),
+                        TaskDelta.NO_SYNC_TOKEN));
+    }
+
+    @Test
+    public void getTask_parallel_bothMissIsNotAvailable() {
+        answerLocalAfter(10, null);
+        answerRemoteAfter(20, null);
+
+        mTasksRepository.getTask(TASK_ID, mGetTaskCallback);
+        advanceClockBy(20);
+
+        verify(mGetTaskCallback).onDataNotAvailable();
+        verify(mGetTaskCallback, never()).onTaskLoaded(any(Task.class));
+    }
+
+    @Test
+    public void getTask_parallel_remoteHitForUncachedTaskIsInsert() {
+        answerLocalAfter(10, null);
+        answerRemoteAfter(20, TASK);
+        mTasksRepository.observeTaskChanges(mTaskChangeListener);
+
+        mTasksRepository.getTask(TASK_ID, mGetTaskCallback);
+        advanceClockBy(20);
+
+        verify(mTaskChangeListener).onChanges(mTaskChangesCaptor.capture());
+        assertThat(mTaskChangesCaptor.getValue(), contains(TaskChange.insert(TASK)));
+    }
+
+    @Test
+    public void getTask_parallel_remoteHitForListCopyIsUpdate() {
+        // The list only loads the start of each description.
+        mTasksRepository.mCachedTasks.put(
+                new Task("Title", "Desc", TASK_ID, false, 0, 0, 0, 0, false));
+        answerLocalAfter(10, null);
+        answerRemoteAfter(20, TASK);
+        mTasksRepository.observeTaskChanges(mTaskChangeListener);
+
+        mTasksRepository.getTask(TASK_ID, mGetTaskCallback);
+        advanceClockBy(20);
+
+        verify(mGetTaskCallback).onTaskLoaded(TASK);
+        verify(mTaskChangeListener).onChanges(mTaskChangesCaptor.capture());
+        assertThat(mTaskChangesCaptor.getValue(), contains(TaskChange.update(TASK)));
+    }
+
+    @Test
+    public void streamTasks_deliversEachPageAsItIsRead() {
+        Task first = new Task("A", "", "1");
+        Task second = new Task("B", "", "2");
+        answerPages(TaskPage.create(ImmutableList.of(first), 1, false),
+                TaskPage.create(ImmutableList.of(second), 2, true));
+
+        mTasksRepository.streamTasks(1, mLoadTaskPageCallback);
+
+        InOrder inOrder = inOrder(mLoadTaskPageCallback);
+        inOrder.verify(mLoadTaskPageCallback)
+                .onTaskPageLoaded(TaskPage.create(ImmutableList.of(first), 1, false));
+        inOrder.verify(mLoadTaskPageCallback)
+                .onTaskPageLoaded(TaskPage.create(ImmutableList.of(second), 2, true));
+        verify(mTasksLocalDataSource, never()).getTasks(any(LoadTasksCallback.class));
+    }
+
+    @Test
+    public void streamTasks_staleWhileRevalidate_pagesLocalTasksFirst() {
+        Task first = new Task("A", "", "1");
+        answerPages(TaskPage.create(ImmutableList.of(first), 1, true));
+        mTasksRepository.enableStaleWhileRevalidate(1, TimeUnit.MINUTES);
+        mTasksRepository.refreshTasks();
+
+        mTasksRepository.streamTasks(1, mLoadTaskPageCallback);
+
+        verify(mLoadTaskPageCallback)
+                .onTaskPageLoaded(TaskPage.create(ImmutableList.of(first), 1, true));
+        verify(mTasksLocalDataSource, never()).getTasks(any(LoadTasksCallback.class));
+    }
+
+    @Test
+    public void updateCompletion_afterLoadingStampsAheadOfWallClock_isOrderedAfterThem() {
+        // Stored by a process whose wall clock was an hour ahead of this one's.
+        long stored = HybridLogicalClock.getInstance().now()
+                + (TimeUnit.HOURS.toMillis(1) << 16);
+        final Task task =
+                new Task("Title", "Description", TASK_ID, false, 0, stored, stored, stored, true);
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((LoadTasksCallback) invocation.getArguments()[0])
+                        .onTasksLoaded(ImmutableList.of(task));
+                return null;
+            }
+        }).when(mTasksLocalDataSource).getTasks(any(LoadTasksCallback.class));
+        mTasksRepository.getTasks(mock(LoadTasksCallback.class));
+
+        mTasksRepository.updateCompletion(ImmutableList.of(TASK_ID), true);
+
+        Task completed = mTasksRepository.mCachedTasks.peek(TASK_ID);
+        assertThat(completed.getCompletedStamp(), greaterThan(stored));
+        assertThat(TaskMerger.merge(task, completed).isCompleted(), is(true));
+    }
+
+    @Test
+    public void getTaskCounts_emptyLocalTable_countsTasksFromRemote() {
+        final List<Task> remoteTasks = ImmutableList.of(
+                new Task("A", "", "1"), new Task("B", "", "2", true), new Task("C", "", "3"));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((GetTaskCountsCallback) invocation.getArguments()[0]).onDataNotAvailable();
+                return null;
+            }
+        }).when(mTasksLocalDataSource).getTaskCounts(any(GetTaskCountsCallback.class));
+        // SQLite is empty until the remote delta has been applied to it.
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((LoadTasksCallback) invocation.getArguments()[0]).onDataNotAvailable();
+                return null;
+            }
+        }).doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((LoadTasksCallback) invocation.getArguments()[0]).onTasksLoaded(remoteTasks);
+                return null;
+            }
+        }).when(mTasksLocalDataSource).getTasks(any(LoadTasksCallback.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((LoadPendingWritesCallback) invocation.getArguments()[1])
+                        .onPendingWritesLoaded(ImmutableList.<TaskWrite>of());
+                return null;
+            }
+        }).when(mTasksOutbox).peekPendingWrites(anyInt(), any(LoadPendingWritesCallback.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((GetSyncTokenCallback) invocation.getArguments()[0]).onSyncTokenLoaded(0);
+                return null;
+            }
+        }).when(mTasksLocalDataSource).getSyncToken(any(GetSyncTokenCallback.class));
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                ((GetTaskDeltaCallback) invocation.getArguments()[1])
+                        .onTaskDeltaLoaded(TaskDelta.createFullSnapshot(remoteTasks, 1));
+                return null;
+            }
+        }).when(mTasksRemoteDataSource).getTaskDelta(anyLong(), any(GetTaskDeltaCallback.class));
+        GetTaskCountsCallback callback = mock(GetTaskCountsCallback.class);
+
+        mTasksRepository.getTaskCounts(callback);
+        // The remote load waits for the outbox replay started when the repository was created,
+        // which finds nothing to send.
+        verify(mTasksOutbox).peekPendingWrites(anyInt(), mPendingWritesCaptor.capture());
+        mPendingWritesCaptor.getValue().onPendingWritesLoaded(ImmutableList.<TaskWrite>of());
+        advanceClockBy(0);
+
+        verify(callback).onTaskCountsLoaded(TaskCounts.create(2, 1));
+        verify(callback, never()).onDataNotAvailable();
+    }
+
+    /**
+     * Makes the local data source answer each page request at once, with the page after the
+     * previous one's key.
+     */
+    private void answerPages(final TaskPage... pages) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                long pageKey = (Long) invocation.getArguments()[0];
+                LoadTaskPageCallback callback =
+                        (LoadTaskPageCallback) invocation.getArguments()[2];
+                long key = TaskPage.FIRST_PAGE_KEY;
+                for (TaskPage page : pages) {
+                    if (key == pageKey) {
+                        callback.onTaskPageLoaded(page);
+                        return null;
+                    }
+                    key = page.nextPageKey();
+                }
+                callback.onDataNotAvailable();
+                return null;
+            }
+        }).when(mTasksLocalDataSource).getTaskPage(
+                anyLong(), anyInt(), any(LoadTaskPageCallback.class));
+    }
+
+    /**
+     * Makes the local data source answer a lookup {@code delayMillis} after it is made, with
+     * {@code task} or, if it is null, with a miss.
+     */
+    private void answerLocalAfter(final long delayMillis, @Nullable final Task task) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                GetTaskCallback callback = (GetTaskCallback) invocation.getArguments()[1];
+                answerAfter(delayMillis, task, null, callback);
+                return null;
+            }
+        }).when(mTasksLocalDataSource).getTask(anyString(), any(GetTaskCallback.class));
+    }
+
+    /**
+     * Like {@link #answerLocalAfter(long, Task)}, for the remote data source. As the real one
+     * does, it doesn't answer once the lookup has been cancelled.
+     */
+    private void answerRemoteAfter(final long delayMillis, @Nullable final Task task) {
+        doAnswer(new Answer<Void>() {
+            @Override
+            public Void answer(InvocationOnMock invocation) {
+                mRemoteCancellation = (CancellationSignal) invocation.getArguments()[1];
+                GetTaskCallback callback = (GetTaskCallback) invocation.getArguments()[2];
+                answerAfter(delayMillis, task, mRemoteCancellation, callback);
+                return null;
+            }
+        }).when(mTasksRemoteDataSource).getTask(
+                anyString(), any(CancellationSignal.class), any(GetTaskCallback.class));
+    }
+
+    private void answerAfter(long delayMillis, @Nullable final Task task,
+                             @Nullable final CancellationSignal cancellationSignal,
+                             final GetTaskCallback callback) {
+        mMainHandler.postDelayed(new Runnable() {
+            @Override
+            public void run() {
+                if (cancellationSignal != null && cancellationSignal.isCanceled()) {
+                    return;
+                }
+                if (task == null) {
+                    callback.onDataNotAvailable();
+                } else {
+                    callback.onTaskLoaded(task);
+                }
+            }
+        }, delayMillis);
+    }
+
+    /**
+     * Runs everything due on the main looper within the next {@code millis}, in order.
+     */
+    private static void advanceClockBy(long millis) {
+        Robolectric.getForegroundThreadScheduler().advanceBy(millis, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,95 @@
+package io.demoapp.expensive.tasks;
+
+import com.google.common.collect.ImmutableList;
+
+import io.demoapp.expensive.data.Task;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.Matchers.contains;
+import static org.hamcrest.Matchers.is;
+import static org.junit.Assert.assertThat;
+
+/**
+ * Unit tests for {@link TaskListRows}.
+ */
+public class TaskListRowsTest {
+
+    private List<Task> mItems;
+
+    private TaskListRows mRows;
+
+    @Before
+    public void setupTaskListRows() {
+        mItems = new ArrayList<>();
+        mRows = new TaskListRows(mItems);
+        mRows.replaceAll(ImmutableList.of(
+                new Task("A", "", "1"), new Task("B", "", "2"), new Task("C", "", "3")));
+    }
+
+    @Test
+    public void put_replacesShownTaskInPlace() {
+        mRows.put(new Task("B2", "", "2"));
+
+        assertThat(titlesOf(mItems), contains("A", "B2", "C"));
+    }
+
+    @Test
+    public void put_addsNewTaskAsLastRow() {
+        mRows.put(new Task("D", "", "4"));
+
+        assertThat(titlesOf(mItems), contains("A", "B", "C", "D"));
+        assertThat(mRows.contains("4"), is(true));
+    }
+
+    @Test
+    public void appendAll_skipsTaskShownByChangeDuringPaging() {
+        // A task saved while the list is paging arrives as a change before its page does.
+        Task saved = new Task("D2", "", "4");
+        mRows.put(saved);
+
+        mRows.appendAll(ImmutableList.of(new Task("D", "", "4"), new Task("E", "", "5")));
+
+        assertThat(titlesOf(mItems), contains("A", "B", "C", "D2", "E"));
+        mRows.remove("4");
+        assertThat(titlesOf(mItems), contains("A", "B", "C", "E"));
+    }
+
+    @Test
+    public void remove_keepsLaterRowsFindable() {
+        mRows.remove("1");
+        mRows.put(new Task("C2", "", "3"));
+        mRows.remove("2");
+
+        assertThat(titlesOf(mItems), contains("C2"));
+        assertThat(mRows.contains("1"), is(false));
+        assertThat(mRows.contains("2"), is(false));
+    }
+
+    @Test
+    public void remove_ignoresTaskNotShown() {
+        mRows.remove("4");
+
+        assertThat(titlesOf(mItems), contains("A", "B", "C"));
+    }
+
+    @Test
+    public void replaceAll_forgetsPreviousRows() {
+        mRows.replaceAll(ImmutableList.of(new Task("D", "", "4")));
+        mRows.put(new Task("A2", "", "1"));
+
+        assertThat(titlesOf(mItems), contains("D", "A2"));
+    }
+
+    private static List<String> titlesOf(List<Task> tasks) {
+        List<String> titles = new ArrayList<>(tasks.size());
+        for (Task task : tasks) {
+            titles.add(task.getTitle());
+        }
+        return titles;
+    }
+}